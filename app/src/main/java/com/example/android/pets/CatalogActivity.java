@@ -17,23 +17,37 @@ package com.example.android.pets;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.SearchView;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.pets.data.HttpSyncTransport;
+import com.example.android.pets.data.Pet;
+import com.example.android.pets.data.PetContract.JobEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWithOwnerEntry;
+import com.example.android.pets.data.PetSyncEngine;
+import com.example.android.pets.data.PetTrace;
+import com.example.android.pets.data.TableGeneration;
+
+import java.io.IOException;
 
 /**
  * Displays list of pets that were entered and stored in the app.
@@ -42,14 +56,50 @@ public class CatalogActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final int PET_LOADER = 0;
+
+    /**
+     * How long to wait after the last keystroke in the search box before querying, in
+     * milliseconds. Typing faster than this doesn't start a query for every letter.
+     */
+    private static final long SEARCH_DELAY_MILLIS = 300;
     PetCursorAdapter cursorAdapter;
 
+    /**
+     * Rows of the {@link CatalogSnapshot} shown while the loader runs its first query, or null if
+     * the list is already showing the real data.
+     */
+    private Cursor snapshotCursor;
+
+    /**
+     * Sort order and filters chosen in the options menu.
+     */
+    private final CatalogFilter filter = new CatalogFilter();
+
+    /**
+     * Handler used to delay the search query until the user stops typing.
+     */
+    private final Handler searchHandler = new Handler();
+
+    /**
+     * Restarts the loader with the text typed into the search box. Restarting the loader cancels
+     * the query of the previous text if it is still running.
+     */
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            getSupportLoaderManager().restartLoader(PET_LOADER, null, CatalogActivity.this);
+        }
+    };
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
+        // Restore the sort order and filters if the activity is being recreated.
+        filter.restoreFrom(savedInstanceState);
+
         // Setup FAB to open EditorActivity
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener() {
@@ -69,9 +119,13 @@ public class CatalogActivity extends AppCompatActivity implements
 
         /*
          * Setup an Adapter to create a list item for each row of pet data in the Cursor. There is
-         * no pet data yet (until the loader finishes) so pass in null for the Cursor.
+         * no pet data yet (until the loader finishes), so start with the rows saved in the catalog
+         * snapshot. This is null if there isn't an up to date snapshot, or if the list is sorted or
+         * filtered differently from the snapshot.
          */
-        cursorAdapter = new PetCursorAdapter(this, null);
+        if (filter.isDefault())
+            snapshotCursor = CatalogSnapshot.read(this, TableGeneration.current(this));
+        cursorAdapter = new PetCursorAdapter(this, snapshotCursor);
         petListView.setAdapter(cursorAdapter);
 
         // Setup the item click listener
@@ -94,6 +148,16 @@ public class CatalogActivity extends AppCompatActivity implements
                 // Set the URI on the data field of the intent
                 intent.setData(currentPetUri);
 
+                /*
+                 * Pass the pet's row along as well, so the editor can show it right away instead
+                 * of waiting for its own query. Rows from the catalog snapshot don't have all the
+                 * columns, so the editor has to wait for the query for those.
+                 */
+                Cursor cursor = (Cursor) adapterView.getItemAtPosition(position);
+                Pet pet = new Pet.Reader(cursor).read();
+                if (pet.getVersion() != Pet.NO_VERSION)
+                    EditorActivity.putPetExtras(intent, pet);
+
                 // Launch the {@link EditorActivity} to display the data for the current pet.
                 startActivity(intent);
             }
@@ -110,11 +174,8 @@ public class CatalogActivity extends AppCompatActivity implements
     private void insertPet() {
         // Create a ContentValues object where column names are the keys,
         // and Toto's pet attributes are the values.
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+        Pet toto = new Pet("Toto", "Terrier", PetEntry.GENDER_MALE, 7);
+        ContentValues values = toto.toContentValues();
 
         // Insert a new row for Toto into the provider using the ContentResolver.
         // Use the {@link PetEntry#CONTENT_URI} to indicate that we want to insert
@@ -124,11 +185,51 @@ public class CatalogActivity extends AppCompatActivity implements
     }
 
     /**
-     * Helper method to delete all pets in the database.
+     * Helper method to delete all pets in the database. The pets are deleted by a job in the
+     * background, a chunk at a time, so a large database doesn't hold up the screen, and the list
+     * empties as the chunks are deleted.
      */
     private void deleteAllPets() {
-        int rowsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-        Log.v("CatalogActivity", rowsDeleted + " rows deleted from pet database");
+        ContentValues values = new ContentValues(1);
+        values.put(JobEntry.COLUMN_JOB_TYPE, JobEntry.TYPE_DELETE_ALL_PETS);
+        Uri jobUri = getContentResolver().insert(JobEntry.CONTENT_URI, values);
+        Log.v("CatalogActivity", "Deleting all pets with job " + jobUri);
+    }
+
+    /**
+     * Syncs the pets with the server in the background, see {@link PetSyncEngine}, and shows how
+     * it went. Only the application context is kept, so the activity isn't held on to while the
+     * sync runs.
+     */
+    private static final class SyncTask extends AsyncTask<Void, Void, PetSyncEngine.Result> {
+
+        private final Context context;
+
+        SyncTask(Context context) {
+            this.context = context.getApplicationContext();
+        }
+
+        @Override
+        protected PetSyncEngine.Result doInBackground(Void... params) {
+            PetSyncEngine engine = new PetSyncEngine(context,
+                    new HttpSyncTransport(context.getString(R.string.sync_server_url)));
+            try {
+                return engine.sync();
+            } catch (IOException e) {
+                Log.w("CatalogActivity", "Sync failed", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(PetSyncEngine.Result result) {
+            if (result == null) {
+                Toast.makeText(context, R.string.sync_failed, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            Toast.makeText(context, context.getString(R.string.sync_finished,
+                    result.getUploaded(), result.getDownloaded()), Toast.LENGTH_SHORT).show();
+        }
     }
 
     @Override
@@ -136,6 +237,89 @@ public class CatalogActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Setup the search box in the app bar to filter the list as the user types.
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        if (!filter.nameQuery.isEmpty()) {
+            MenuItemCompat.expandActionView(searchItem);
+            searchView.setQuery(filter.nameQuery, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // The list is already filtered as the user types, so there's nothing more to do.
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                String nameQuery = newText.trim();
+                if (nameQuery.equals(filter.nameQuery))
+                    return true;
+
+                filter.nameQuery = nameQuery;
+
+                // Only query once the user has stopped typing for a moment.
+                searchHandler.removeCallbacks(searchRunnable);
+                searchHandler.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
+                return true;
+            }
+        });
+        return true;
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        searchHandler.removeCallbacks(searchRunnable);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        filter.saveTo(outState);
+    }
+
+    /**
+     * Check the sort and filter options in the menu that match the current {@link CatalogFilter}.
+     */
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+
+        switch (filter.sort) {
+            case CatalogFilter.SORT_NAME:
+                menu.findItem(R.id.action_sort_name).setChecked(true);
+                break;
+            case CatalogFilter.SORT_BREED:
+                menu.findItem(R.id.action_sort_breed).setChecked(true);
+                break;
+            case CatalogFilter.SORT_WEIGHT:
+                menu.findItem(R.id.action_sort_weight).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.action_sort_default).setChecked(true);
+                break;
+        }
+
+        switch (filter.gender) {
+            case PetEntry.GENDER_MALE:
+                menu.findItem(R.id.action_filter_male).setChecked(true);
+                break;
+            case PetEntry.GENDER_FEMALE:
+                menu.findItem(R.id.action_filter_female).setChecked(true);
+                break;
+            default:
+                menu.findItem(R.id.action_filter_all_genders).setChecked(true);
+                break;
+        }
+
+        menu.findItem(R.id.action_filter_heavy).setChecked(filter.heavyOnly);
+
+        // There's nothing to sync with until a server is set up.
+        menu.findItem(R.id.action_sync).setVisible(
+                !getString(R.string.sync_server_url).isEmpty());
         return true;
     }
 
@@ -143,6 +327,36 @@ public class CatalogActivity extends AppCompatActivity implements
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on one of the sort options
+            case R.id.action_sort_default:
+                applyFilter(CatalogFilter.SORT_DEFAULT, filter.gender, filter.heavyOnly);
+                return true;
+            case R.id.action_sort_name:
+                applyFilter(CatalogFilter.SORT_NAME, filter.gender, filter.heavyOnly);
+                return true;
+            case R.id.action_sort_breed:
+                applyFilter(CatalogFilter.SORT_BREED, filter.gender, filter.heavyOnly);
+                return true;
+            case R.id.action_sort_weight:
+                applyFilter(CatalogFilter.SORT_WEIGHT, filter.gender, filter.heavyOnly);
+                return true;
+            // Respond to a click on one of the filter options
+            case R.id.action_filter_all_genders:
+                applyFilter(filter.sort, -1, filter.heavyOnly);
+                return true;
+            case R.id.action_filter_male:
+                applyFilter(filter.sort, PetEntry.GENDER_MALE, filter.heavyOnly);
+                return true;
+            case R.id.action_filter_female:
+                applyFilter(filter.sort, PetEntry.GENDER_FEMALE, filter.heavyOnly);
+                return true;
+            case R.id.action_filter_heavy:
+                applyFilter(filter.sort, filter.gender, !filter.heavyOnly);
+                return true;
+            // Respond to a click on the "Sync now" menu option
+            case R.id.action_sync:
+                new SyncTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertPet();
@@ -155,23 +369,58 @@ public class CatalogActivity extends AppCompatActivity implements
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Update the {@link CatalogFilter} with the chosen options and query the pets again.
+     */
+    private void applyFilter(int sort, int gender, boolean heavyOnly) {
+        filter.sort = sort;
+        filter.gender = gender;
+        filter.heavyOnly = heavyOnly;
+
+        // Restart the loader, so it runs a new query with the new selection and sort order.
+        getSupportLoaderManager().restartLoader(PET_LOADER, null, this);
+
+        // Update the check marks in the menu to match the new filter.
+        supportInvalidateOptionsMenu();
+    }
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        PetTrace.beginSection("CatalogActivity.onCreateLoader");
+        try {
+            return createLoader();
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    private Loader<Cursor> createLoader() {
 
         // Define a projection that specifies the columns from the table we care about.
         String[] projection = {
                 PetEntry._ID,
                 PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED};
-
-        //This loader will execute the contentProvider's query method on a background thread.
-        return new CursorLoader(
-                this,                  // Parent activity context
-                PetEntry.CONTENT_URI,  // Provider content URI to query
-                projection,            // Columns to include in the resulting Cursor
-                null,                  // No selection clause
-                null,                  // No selection arguments
-                null);                 // Default sort order
+                PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_VERSION,
+                PetWithOwnerEntry.COLUMN_OWNER_NAME};
+
+        /*
+         * This loader will execute the contentProvider's query method on a background thread, and
+         * save the first rows of the result to the catalog snapshot if the list isn't sorted or
+         * filtered. The pets are read together with their owners, so the owner names come from the
+         * same query, along with the rest of each pet, which is handed to the editor when a pet
+         * is clicked.
+         */
+        return new CatalogLoader(
+                this,                          // Parent activity context
+                PetWithOwnerEntry.CONTENT_URI, // Provider content URI to query
+                projection,                    // Columns to include in the resulting Cursor
+                filter.getSelection(),         // Selection clause for the chosen filters
+                filter.getSelectionArgs(),     // Selection arguments for the chosen filters
+                filter.getSortOrder(),         // Chosen sort order
+                filter.isDefault());           // Only the unfiltered list goes in the snapshot
     }
 
     @Override
@@ -179,6 +428,7 @@ public class CatalogActivity extends AppCompatActivity implements
 
         // Update {@link PetCursorAdapter} with this new cursor containing updated pet data
         cursorAdapter.swapCursor(data);
+        closeSnapshot();
 
     }
 
@@ -187,6 +437,18 @@ public class CatalogActivity extends AppCompatActivity implements
 
         // Callback called when the data needs to be deleted.
         cursorAdapter.swapCursor(null);
+        closeSnapshot();
 
     }
+
+    /**
+     * Close the snapshot rows once the list has been handed the real data. The loader's cursors
+     * are owned by the loader, but the snapshot cursor belongs to this activity.
+     */
+    private void closeSnapshot() {
+        if (snapshotCursor != null) {
+            snapshotCursor.close();
+            snapshotCursor = null;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package com.example.android.pets;
+
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link CatalogFilter} holds the sort order and filters chosen in the {@link CatalogActivity}
+ * menu, and turns them into the parameterized selection and sort order of the catalog query.
+ */
+class CatalogFilter {
+
+    /** Possible sort orders of the catalog */
+    static final int SORT_DEFAULT = 0;
+    static final int SORT_NAME = 1;
+    static final int SORT_BREED = 2;
+    static final int SORT_WEIGHT = 3;
+
+    /** Weight in kg above which a pet counts as heavy */
+    static final int HEAVY_WEIGHT = 10;
+
+    /** Keys used to save the filter in a {@link Bundle} */
+    private static final String KEY_SORT = "sort";
+    private static final String KEY_GENDER = "gender";
+    private static final String KEY_HEAVY_ONLY = "heavy_only";
+    private static final String KEY_NAME_QUERY = "name_query";
+
+    /** Sort order of the catalog, one of the SORT_ constants */
+    int sort = SORT_DEFAULT;
+
+    /**
+     * Gender to show, one of the {@link PetEntry} gender constants, or -1 to show every gender.
+     */
+    int gender = -1;
+
+    /** Whether to show only pets heavier than {@link #HEAVY_WEIGHT} */
+    boolean heavyOnly = false;
+
+    /** Text typed into the search box. Only pets whose name starts with it are shown. */
+    String nameQuery = "";
+
+    /**
+     * Returns whether the filter shows every pet in the default order, which is the list that the
+     * {@link CatalogSnapshot} holds.
+     */
+    boolean isDefault() {
+        return sort == SORT_DEFAULT && gender == -1 && !heavyOnly && nameQuery.isEmpty();
+    }
+
+    /**
+     * Returns the selection clause for the catalog query, or null to select every pet. Values are
+     * always passed as "?" placeholders, see {@link #getSelectionArgs()}.
+     */
+    String getSelection() {
+        List<String> clauses = new ArrayList<>();
+        if (gender != -1)
+            clauses.add(PetEntry.COLUMN_PET_GENDER + "=?");
+        if (heavyOnly)
+            clauses.add(PetEntry.COLUMN_PET_WEIGHT + ">?");
+        if (!nameQuery.isEmpty())
+            clauses.add(PetEntry.COLUMN_PET_NAME + " LIKE ? ESCAPE '\\'");
+
+        if (clauses.isEmpty())
+            return null;
+
+        StringBuilder selection = new StringBuilder(clauses.get(0));
+        for (int i = 1; i < clauses.size(); i++)
+            selection.append(" AND ").append(clauses.get(i));
+        return selection.toString();
+    }
+
+    /**
+     * Returns the values for the "?" placeholders of {@link #getSelection()}, or null if there are
+     * none.
+     */
+    String[] getSelectionArgs() {
+        List<String> args = new ArrayList<>();
+        if (gender != -1)
+            args.add(String.valueOf(gender));
+        if (heavyOnly)
+            args.add(String.valueOf(HEAVY_WEIGHT));
+        if (!nameQuery.isEmpty())
+            args.add(escapeLike(nameQuery) + "%");
+
+        return args.isEmpty() ? null : args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Escape the wildcard characters of LIKE in the given text, so they match literally.
+     */
+    private static String escapeLike(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Returns the sort order for the catalog query, or null for the default order.
+     */
+    String getSortOrder() {
+        switch (sort) {
+            case SORT_NAME:
+                return PetEntry.COLUMN_PET_NAME + " ASC";
+            case SORT_BREED:
+                return PetEntry.COLUMN_PET_BREED + " ASC, " + PetEntry.COLUMN_PET_NAME + " ASC";
+            case SORT_WEIGHT:
+                // Heaviest pets first
+                return PetEntry.COLUMN_PET_WEIGHT + " DESC";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Save the filter into the given {@link Bundle}.
+     */
+    void saveTo(Bundle outState) {
+        outState.putInt(KEY_SORT, sort);
+        outState.putInt(KEY_GENDER, gender);
+        outState.putBoolean(KEY_HEAVY_ONLY, heavyOnly);
+        outState.putString(KEY_NAME_QUERY, nameQuery);
+    }
+
+    /**
+     * Restore the filter from the given {@link Bundle}, if there is one.
+     */
+    void restoreFrom(Bundle savedInstanceState) {
+        if (savedInstanceState == null)
+            return;
+
+        sort = savedInstanceState.getInt(KEY_SORT, SORT_DEFAULT);
+        gender = savedInstanceState.getInt(KEY_GENDER, -1);
+        heavyOnly = savedInstanceState.getBoolean(KEY_HEAVY_ONLY, false);
+        nameQuery = savedInstanceState.getString(KEY_NAME_QUERY, "");
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.CursorLoader;
+
+import com.example.android.pets.data.PetTrace;
+import com.example.android.pets.data.TableGeneration;
+
+/**
+ * {@link CatalogLoader} is the {@link CursorLoader} behind the list in {@link CatalogActivity}.
+ * Each time it finishes loading the list, it refreshes the {@link CatalogSnapshot} on the loader's
+ * background thread, so the next start of the app can show the list right away.
+ */
+class CatalogLoader extends CursorLoader {
+
+    /**
+     * Whether the loaded rows should be saved to the {@link CatalogSnapshot}
+     */
+    private final boolean saveSnapshot;
+
+    /**
+     * Constructs a new {@link CatalogLoader}. The arguments are the same as for
+     * {@link CursorLoader}.
+     *
+     * @param saveSnapshot whether the loaded rows should be saved to the {@link CatalogSnapshot}.
+     *                     Only the unsorted, unfiltered list should be saved.
+     */
+    CatalogLoader(Context context, Uri uri, String[] projection, String selection,
+                  String[] selectionArgs, String sortOrder, boolean saveSnapshot) {
+        super(context, uri, projection, selection, selectionArgs, sortOrder);
+        this.saveSnapshot = saveSnapshot;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+
+        /*
+         * Read the table generation before running the query, so the snapshot is never marked as
+         * newer than the data it holds. If the table changes while the query runs, the snapshot is
+         * simply treated as stale on the next start.
+         */
+        long generation = TableGeneration.current(getContext());
+
+        PetTrace.beginSection("CatalogLoader.loadInBackground");
+        try {
+            Cursor cursor = super.loadInBackground();
+            if (cursor != null && saveSnapshot)
+                CatalogSnapshot.write(getContext(), cursor, generation);
+
+            return cursor;
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+}
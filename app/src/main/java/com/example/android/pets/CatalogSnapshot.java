@@ -0,0 +1,218 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWithOwnerEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link CatalogSnapshot} keeps a compact binary copy of the first rows of the catalog on disk, so
+ * that {@link CatalogActivity} can show them straight away on startup instead of waiting for the
+ * loader to run the first query.
+ *
+ * The file starts with a header (magic number, format version, table generation and row count)
+ * followed by one record per row: the pet ID, then the name, breed and owner name as a character
+ * count and the UTF-16 characters (a count of -1 stands for a null value).
+ */
+final class CatalogSnapshot {
+
+    private static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    /** Name of the snapshot file inside the app's files directory */
+    private static final String FILE_NAME = "catalog.snapshot";
+
+    /** Marks the start of a snapshot file */
+    private static final int MAGIC = 0x50455453;
+
+    /** Format version of the snapshot file. Increment it if the layout of the file changes. */
+    private static final int FORMAT_VERSION = 2;
+
+    /** Size of the header in bytes: magic, version, generation and row count */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    /** Smallest size of a row in bytes: the ID and three null strings */
+    private static final int MIN_ROW_SIZE = 8 + 4 + 4 + 4;
+
+    /** Maximum number of rows kept in the snapshot, which is comfortably more than one screen */
+    static final int MAX_ROWS = 64;
+
+    /** Columns of the cursor returned by {@link #read(Context, long)} */
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetWithOwnerEntry.COLUMN_OWNER_NAME};
+
+    /** Generation of the last snapshot written by this process, or -1 if none was written */
+    private static long lastWrittenGeneration = -1;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private CatalogSnapshot() {
+    }
+
+    /**
+     * Maps the snapshot file into memory and returns its rows as a {@link Cursor}.
+     *
+     * @param context    of the app
+     * @param generation current generation of the pets table
+     * @return the snapshot rows, or null if there is no snapshot or it was taken from an older
+     *         generation of the pets table.
+     */
+    static Cursor read(Context context, long generation) {
+        File file = getFile(context);
+        if (!file.exists() || file.length() < HEADER_SIZE)
+            return null;
+
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // Don't show a snapshot that was written in another format or for older data.
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+                    || buffer.getLong() != generation)
+                return null;
+
+            // Check the row count before sizing the cursor by it, so a damaged file can't make it
+            // ask for more memory than the rows it could possibly hold.
+            int rowCount = buffer.getInt();
+            if (rowCount < 0 || rowCount > MAX_ROWS
+                    || rowCount > buffer.remaining() / MIN_ROW_SIZE) {
+                Log.w(LOG_TAG, "Catalog snapshot has a bad row count " + rowCount);
+                return null;
+            }
+
+            MatrixCursor cursor = new MatrixCursor(COLUMNS, rowCount);
+            for (int i = 0; i < rowCount; i++) {
+                long id = buffer.getLong();
+                String name = readString(buffer);
+                String breed = readString(buffer);
+                String owner = readString(buffer);
+                cursor.addRow(new Object[]{id, name, breed, owner});
+            }
+            return cursor;
+        } catch (IOException | RuntimeException e) {
+            // A damaged snapshot is not a problem, the loader will fill in the list shortly.
+            Log.w(LOG_TAG, "Unable to read catalog snapshot", e);
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Writes the first {@link #MAX_ROWS} rows of the given cursor to the snapshot file. The cursor
+     * must contain the {@link PetEntry#_ID}, {@link PetEntry#COLUMN_PET_NAME},
+     * {@link PetEntry#COLUMN_PET_BREED} and {@link PetWithOwnerEntry#COLUMN_OWNER_NAME} columns. It
+     * is moved back before the first row afterwards.
+     *
+     * This does disk I/O, so it should be called from a background thread.
+     *
+     * @param context    of the app
+     * @param cursor     holding the catalog rows
+     * @param generation generation of the pets table the cursor was read from
+     */
+    static void write(Context context, Cursor cursor, long generation) {
+        synchronized (CatalogSnapshot.class) {
+            // Nothing has changed since the last snapshot was written.
+            if (generation == lastWrittenGeneration)
+                return;
+        }
+
+        int idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+        int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        int ownerColumnIndex = cursor.getColumnIndex(PetWithOwnerEntry.COLUMN_OWNER_NAME);
+        if (idColumnIndex == -1 || nameColumnIndex == -1 || breedColumnIndex == -1
+                || ownerColumnIndex == -1)
+            return;
+
+        File file = getFile(context);
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            int rowCount = Math.min(cursor.getCount(), MAX_ROWS);
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(generation);
+            out.writeInt(rowCount);
+
+            for (int i = 0; i < rowCount && cursor.moveToPosition(i); i++) {
+                out.writeLong(cursor.getLong(idColumnIndex));
+                writeString(out, cursor.getString(nameColumnIndex));
+                writeString(out, cursor.getString(breedColumnIndex));
+                writeString(out, cursor.getString(ownerColumnIndex));
+            }
+            out.close();
+            out = null;
+
+            // Replace the old snapshot in one step, so a reader never sees a half written file.
+            if (!tempFile.renameTo(file)) {
+                Log.w(LOG_TAG, "Unable to replace catalog snapshot");
+                return;
+            }
+
+            synchronized (CatalogSnapshot.class) {
+                lastWrittenGeneration = generation;
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Unable to write catalog snapshot", e);
+        } finally {
+            closeQuietly(out);
+            cursor.moveToPosition(-1);
+        }
+    }
+
+    private static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    private static String readString(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0)
+            return null;
+        if (length > buffer.remaining() / 2)
+            throw new IllegalStateException("String of " + length + " characters runs past the end");
+
+        char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + length * 2);
+        return new String(chars);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore, there's nothing more to be done with this file.
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
 import android.support.v7.app.AlertDialog;
@@ -34,11 +35,18 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.AutoCompleteTextView;
 import android.widget.EditText;
+import android.widget.FilterQueryProvider;
+import android.widget.SimpleCursorAdapter;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import com.example.android.pets.data.Pet;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SuggestionEntry;
+import com.example.android.pets.data.PetTrace;
+import com.example.android.pets.data.PetVersionConflictException;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -51,20 +59,30 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private static final int EXISTING_PET_LOADER = 0;
 
+    /**
+     * Extras with the row of the existing pet, as the catalog already has it, so the editor can
+     * show the pet before its loader has run. See {@link #putPetExtras}.
+     */
+    private static final String EXTRA_NAME = "com.example.android.pets.extra.NAME";
+    private static final String EXTRA_BREED = "com.example.android.pets.extra.BREED";
+    private static final String EXTRA_GENDER = "com.example.android.pets.extra.GENDER";
+    private static final String EXTRA_WEIGHT = "com.example.android.pets.extra.WEIGHT";
+    private static final String EXTRA_VERSION = "com.example.android.pets.extra.VERSION";
+
     /**
      * Content URI for the existing pet (null if it's a new pet).
      */
     private Uri currentPetUri;
 
     /**
-     * EditText field to enter the pet's name
+     * EditText field to enter the pet's name, with suggestions of names already in the database
      */
-    private EditText nameEditText;
+    private AutoCompleteTextView nameEditText;
 
     /**
-     * EditText field to enter the pet's breed
+     * EditText field to enter the pet's breed, with suggestions of breeds already in the database
      */
-    private EditText breedEditText;
+    private AutoCompleteTextView breedEditText;
 
     /**
      * EditText field to enter the pet's weight
@@ -89,6 +107,12 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private boolean petHasChanged = false;
 
+    /**
+     * Version of the existing pet when it was loaded into the editor, or -1 if it hasn't been
+     * loaded (or it's a new pet). The save only succeeds if the pet still has this version.
+     */
+    private long loadedVersion = -1;
+
     /**
      * OnTouchListener that listens for any user touches on a View, implying that they are modifying
      * the view, and we change the petHasChanged boolean to true.
@@ -113,8 +137,8 @@ public class EditorActivity extends AppCompatActivity implements
 
 
         // Find all relevant views that we will need to read user input from
-        nameEditText = (EditText) findViewById(R.id.edit_pet_name);
-        breedEditText = (EditText) findViewById(R.id.edit_pet_breed);
+        nameEditText = (AutoCompleteTextView) findViewById(R.id.edit_pet_name);
+        breedEditText = (AutoCompleteTextView) findViewById(R.id.edit_pet_breed);
         weightEditText = (EditText) findViewById(R.id.edit_pet_weight);
         genderSpinner = (Spinner) findViewById(R.id.spinner_gender);
 
@@ -130,6 +154,36 @@ public class EditorActivity extends AppCompatActivity implements
 
         setupSpinner();
 
+        // Suggest names and breeds that are already in the database as the user types.
+        setupSuggestions(nameEditText, false);
+        setupSuggestions(breedEditText, true);
+
+        /*
+         * If the catalog passed the pet along, show it right away. The loader still reads the pet
+         * in the background, and shows it again only if it has changed since.
+         */
+        Intent intent = getIntent();
+        if (currentPetUri != null && intent.hasExtra(EXTRA_VERSION)) {
+            loadedVersion = intent.getLongExtra(EXTRA_VERSION, -1);
+            showPet(intent.getStringExtra(EXTRA_NAME), intent.getStringExtra(EXTRA_BREED),
+                    intent.getIntExtra(EXTRA_GENDER, PetEntry.GENDER_UNKNOWN),
+                    intent.getIntExtra(EXTRA_WEIGHT, 0));
+        }
+
+    }
+
+    /**
+     * Put the row of an existing pet into the intent that opens the editor for it, so the editor
+     * doesn't have to wait for its query to show the pet.
+     *
+     * @param pet as read from the catalog, with its version
+     */
+    static void putPetExtras(Intent intent, Pet pet) {
+        intent.putExtra(EXTRA_NAME, pet.getName());
+        intent.putExtra(EXTRA_BREED, pet.getBreed());
+        intent.putExtra(EXTRA_GENDER, pet.getGender());
+        intent.putExtra(EXTRA_WEIGHT, pet.getWeight());
+        intent.putExtra(EXTRA_VERSION, pet.getVersion());
     }
 
     private void isNewPet() {
@@ -163,6 +217,57 @@ public class EditorActivity extends AppCompatActivity implements
         }
     }
 
+    /**
+     * Setup the autocomplete suggestions of the given field. The suggestions are looked up on the
+     * filter's background thread, from the provider's in-memory index of names or breeds.
+     *
+     * @param field  to show suggestions for
+     * @param breeds true to suggest breeds, false to suggest pet names
+     */
+    private void setupSuggestions(AutoCompleteTextView field, final boolean breeds) {
+        SimpleCursorAdapter adapter = new SimpleCursorAdapter(this,
+                android.R.layout.simple_dropdown_item_1line, null,
+                new String[]{SuggestionEntry.COLUMN_SUGGESTION},
+                new int[]{android.R.id.text1}, 0);
+
+        adapter.setFilterQueryProvider(new FilterQueryProvider() {
+            @Override
+            public Cursor runQuery(CharSequence constraint) {
+                if (TextUtils.isEmpty(constraint))
+                    return null;
+
+                String prefix = constraint.toString();
+                Uri uri = breeds ? SuggestionEntry.buildBreedUri(prefix)
+                        : SuggestionEntry.buildNameUri(prefix);
+                return getContentResolver().query(uri, null, null, null, null);
+            }
+        });
+
+        // Put the text of the chosen suggestion into the field.
+        adapter.setCursorToStringConverter(new SimpleCursorAdapter.CursorToStringConverter() {
+            @Override
+            public CharSequence convertToString(Cursor cursor) {
+                return cursor.getString(
+                        cursor.getColumnIndex(SuggestionEntry.COLUMN_SUGGESTION));
+            }
+        });
+
+        field.setAdapter(adapter);
+    }
+
+    /**
+     * Set the text of an autocomplete field without popping up suggestions for it, which would
+     * happen when the pet data is loaded into the editor.
+     */
+    private static void setTextWithoutSuggestions(AutoCompleteTextView field, String text) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            field.setText(text, false);
+        } else {
+            field.setText(text);
+            field.dismissDropDown();
+        }
+    }
+
     /**
      * Setup the dropdown spinner that allows the user to select the gender of the pet.
      */
@@ -215,13 +320,6 @@ public class EditorActivity extends AppCompatActivity implements
         if (blankFields(nameString, breedString, weightString)) return;
 
 
-        // Create a ContentValues object where column names are the keys,
-        // and pet attributes from the editor are the values.
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, nameString);
-        values.put(PetEntry.COLUMN_PET_BREED, breedString);
-        values.put(PetEntry.COLUMN_PET_GENDER, gender);
-
         /*
          * If the weight is not provided by the user, don't try to parse the string into an
          * integer value. Use 0 by default.
@@ -231,7 +329,10 @@ public class EditorActivity extends AppCompatActivity implements
         if (!TextUtils.isEmpty(weightString)) {
             weight = Integer.parseInt(weightString);
         }
-        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+
+        // Create a ContentValues object where column names are the keys,
+        // and pet attributes from the editor are the values.
+        ContentValues values = new Pet(nameString, breedString, gender, weight).toContentValues();
 
         // Determine if this is a new or existing pet by checking if currentPetUri is null or not
         newOrExistingPet(values);
@@ -258,7 +359,18 @@ public class EditorActivity extends AppCompatActivity implements
          * currentPetUri will already identify the correct row in the database that we want to
          * modify.
          */
-            int rowsAffected = getContentResolver().update(currentPetUri, values, null, null);
+            Uri updateUri = currentPetUri;
+            if (loadedVersion != -1)
+                updateUri = PetEntry.buildVersionedUri(currentPetUri, loadedVersion);
+
+            int rowsAffected;
+            try {
+                rowsAffected = getContentResolver().update(updateUri, values, null, null);
+            } catch (PetVersionConflictException e) {
+                // Someone else saved the pet since it was loaded, so don't overwrite their changes.
+                Toast.makeText(this, R.string.editor_update_conflict, Toast.LENGTH_LONG).show();
+                return;
+            }
 
             // Show a toast message depending on whether or not the update was successful
             if (rowsAffected == 0) {
@@ -383,6 +495,15 @@ public class EditorActivity extends AppCompatActivity implements
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        PetTrace.beginSection("EditorActivity.onCreateLoader");
+        try {
+            return createLoader();
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    private Loader<Cursor> createLoader() {
         /*
          * Since the editor shows all pet attributes, define a projection that contains all columns
          * from the pet table.
@@ -392,7 +513,8 @@ public class EditorActivity extends AppCompatActivity implements
                 PetEntry.COLUMN_PET_NAME,
                 PetEntry.COLUMN_PET_BREED,
                 PetEntry.COLUMN_PET_GENDER,
-                PetEntry.COLUMN_PET_WEIGHT};
+                PetEntry.COLUMN_PET_WEIGHT,
+                PetEntry.COLUMN_PET_VERSION};
 
         // This loader will execute the ContentProvider's query method on a background thread.
         return new CursorLoader(
@@ -412,48 +534,58 @@ public class EditorActivity extends AppCompatActivity implements
         if (cursor == null || cursor.getCount() < 1)
             return;
 
+        /*
+         * If the pet changes somewhere else while it's being edited, the loader loads it again.
+         * Keep the user's edits and the version they started from in that case, so saving them
+         * reports the conflict instead of silently overwriting the other change.
+         */
+        if (petHasChanged && loadedVersion != -1)
+            return;
+
         /*
          * Proceed with moving to the first row of the cursor and reading data from it. (This should
          * be the only row in the cursor)
          */
         if (cursor.moveToFirst()) {
-            // find the columns of pet attributes that we're interested in
-            int nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
-            int breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
-            int genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
-            int weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
-
-            // Extract out the value from the Curor for the given column index
-            String name = cursor.getString(nameColumnIndex);
-            String breed = cursor.getString(breedColumnIndex);
-            int gender = cursor.getInt(genderColumnIndex);
-            int weight = cursor.getInt(weightColumnIndex);
-
-            // Update the views on the screen with the values from the database
-            nameEditText.setText(name);
-            breedEditText.setText(breed);
-            weightEditText.setText(Integer.toString(weight));
+            // Extract out the pet attributes from the Cursor
+            Pet pet = new Pet.Reader(cursor).read();
 
-            /*
-             * Gender is a dropdown spinner, so map the constant value from the database into one of
-             * the dropdown options (0 is Unknown, 1 is Male, 2 is Female). Then call setSelection()
-             * so that option is displayed on screen as the current selection.
-             */
-            switch (gender) {
-                case PetEntry.GENDER_MALE:
-                    genderSpinner.setSelection(1);
-                    break;
-                case PetEntry.GENDER_FEMALE:
-                    genderSpinner.setSelection(2);
-                    break;
-                default:
-                    genderSpinner.setSelection(0);
-                    break;
-            }
+            // The pet is already on screen from the catalog's row, and hasn't changed since.
+            if (pet.getVersion() == loadedVersion)
+                return;
+
+            loadedVersion = pet.getVersion();
+            showPet(pet.getName(), pet.getBreed(), pet.getGender(), pet.getWeight());
         }
 
     }
 
+    /**
+     * Update the views on the screen with the given values of the pet.
+     */
+    private void showPet(String name, String breed, int gender, int weight) {
+        setTextWithoutSuggestions(nameEditText, name);
+        setTextWithoutSuggestions(breedEditText, breed);
+        weightEditText.setText(Integer.toString(weight));
+
+        /*
+         * Gender is a dropdown spinner, so map the constant value from the database into one of
+         * the dropdown options (0 is Unknown, 1 is Male, 2 is Female). Then call setSelection()
+         * so that option is displayed on screen as the current selection.
+         */
+        switch (gender) {
+            case PetEntry.GENDER_MALE:
+                genderSpinner.setSelection(1);
+                break;
+            case PetEntry.GENDER_FEMALE:
+                genderSpinner.setSelection(2);
+                break;
+            default:
+                genderSpinner.setSelection(0);
+                break;
+        }
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
 
@@ -9,7 +9,9 @@ import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 import android.widget.TextView;
 
+import com.example.android.pets.data.Pet;
 import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetTrace;
 
 /**
  * Pets Created by Muir on 30/06/2017.
@@ -21,6 +23,17 @@ import com.example.android.pets.data.PetContract;
 
 public class PetCursorAdapter extends CursorAdapter {
 
+    /**
+     * Reader for the current cursor, so its column indexes are only looked up once per cursor
+     * rather than once per list item.
+     */
+    private Pet.Reader petReader;
+
+    /**
+     * Index of the owner name column in the current cursor, or -1 if it doesn't have one.
+     */
+    private int ownerColumnIndex = -1;
+
     /**
      * Constructs a new {@link PetCursorAdapter}.
      *
@@ -59,25 +72,44 @@ public class PetCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
+        PetTrace.beginSection("PetCursorAdapter.bindView");
+        try {
+            bindPet(view, context, cursor);
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    private void bindPet(View view, Context context, Cursor cursor) {
 
         // Find individual views that we want to modify in the list item layout
         TextView nameTextView = (TextView) view.findViewById(R.id.name);
         TextView summaryTextView = (TextView) view.findViewById(R.id.summary);
 
-        // Find the columns of pet attributes that we're interested in
-        int nameColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.COLUMN_PET_NAME);
-        int breedColumnIndex = cursor.getColumnIndex(PetContract.PetEntry.COLUMN_PET_BREED);
+        // Find the columns of pet attributes, the first time this cursor is bound
+        if (petReader == null || !petReader.isFor(cursor)) {
+            petReader = new Pet.Reader(cursor);
+            ownerColumnIndex =
+                    cursor.getColumnIndex(PetContract.PetWithOwnerEntry.COLUMN_OWNER_NAME);
+        }
 
         // Read the pet attributes from the Cursor for the current pet
-        String petName = cursor.getString(nameColumnIndex);
-        String petBreed = cursor.getString(breedColumnIndex);
+        Pet pet = petReader.read();
+        String petName = pet.getName();
+        String petBreed = pet.getBreed();
 
         if (TextUtils.isEmpty(petBreed))
             petBreed = context.getString(R.string.unknown_breed);
 
+        // Mention the owner of pets that have been adopted.
+        String summary = petBreed;
+        if (ownerColumnIndex != -1 && !cursor.isNull(ownerColumnIndex))
+            summary = context.getString(R.string.summary_adopted, petBreed,
+                    cursor.getString(ownerColumnIndex));
+
         // Update the TextViews with the attributes for the current pet
         nameTextView.setText(petName);
-        summaryTextView.setText(petBreed);
+        summaryTextView.setText(summary);
 
     }
 }
@@ -0,0 +1,109 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory lookup from breed names to their IDs in the breeds table. There are only a few hundred
+ * different breeds, so once the cache is warm, writing a pet doesn't need to touch the breeds
+ * table at all.
+ */
+class BreedCache implements CacheBudgets.Cache {
+
+    /** Estimate of the bytes one cached breed takes, besides the characters of its name */
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    /**
+     * Breed IDs by breed name. Every name in here has a row in the breeds table.
+     */
+    private final Map<String, Long> breedIds = new HashMap<>();
+
+    /** Number of characters of the names in {@link #breedIds} */
+    private long nameChars;
+
+    /**
+     * Returns a copy of the given pet values that can be written to the pets table: the breed name
+     * in {@link PetEntry#COLUMN_PET_BREED} is replaced by its ID in
+     * {@link PetEntry#COLUMN_PET_BREED_ID}. If the values don't have a breed, they are returned as
+     * they are.
+     *
+     * New breeds are added to the breeds table, so this should be called on the writable database,
+     * inside the same transaction as the write to the pets table if there is one.
+     */
+    ContentValues toTableValues(SQLiteDatabase db, ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED))
+            return values;
+
+        ContentValues tableValues = new ContentValues(values);
+        tableValues.remove(PetEntry.COLUMN_PET_BREED);
+        tableValues.put(PetEntry.COLUMN_PET_BREED_ID,
+                getBreedId(db, values.getAsString(PetEntry.COLUMN_PET_BREED)));
+        return tableValues;
+    }
+
+    /**
+     * Returns the ID of the given breed name, adding the breed to the breeds table if it isn't
+     * there yet.
+     *
+     * @param breed name of the breed, may be null for pets without a breed
+     */
+    synchronized long getBreedId(SQLiteDatabase db, String breed) {
+        if (breed == null)
+            return BreedEntry.NO_BREED_ID;
+
+        Long id = breedIds.get(breed);
+        if (id != null)
+            return id;
+
+        // Not cached yet, so look for the breed in the table before adding it.
+        Cursor cursor = db.query(BreedEntry.TABLE_NAME, new String[]{BreedEntry._ID},
+                BreedEntry.COLUMN_BREED_NAME + "=?", new String[]{breed}, null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                id = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (id == null) {
+            ContentValues breedValues = new ContentValues();
+            breedValues.put(BreedEntry.COLUMN_BREED_NAME, breed);
+            id = db.insertOrThrow(BreedEntry.TABLE_NAME, null, breedValues);
+        }
+
+        breedIds.put(breed, id);
+        nameChars += breed.length();
+        return id;
+    }
+
+    /**
+     * Forget every cached breed. Call this when a transaction that may have added breeds is rolled
+     * back, because the cache could otherwise hand out IDs of rows that no longer exist.
+     */
+    synchronized void clear() {
+        breedIds.clear();
+        nameChars = 0;
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        return breedIds.size() * ENTRY_OVERHEAD_BYTES + nameChars * 2;
+    }
+
+    /**
+     * The breeds are looked up again as they are used, so any trim simply forgets them all.
+     */
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        if (getSizeBytes() > maxBytes)
+            clear();
+    }
+}
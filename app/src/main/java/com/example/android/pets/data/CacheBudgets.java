@@ -0,0 +1,204 @@
+package com.example.android.pets.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the in-memory caches of the app within one budget, and lets them go when the system runs
+ * short of memory.
+ *
+ * Each cache registers with a priority, which says how costly it is to fill again. When the system
+ * asks the app to trim its memory, the caches are trimmed lowest priority first: a cache whose
+ * priority is below the severity of the trim is dropped, a cache at that severity is halved, and
+ * the others are kept. The worst trims, and running out of memory, drop every cache. Caches that
+ * grow call {@link #trimToBudget}, which trims them the same way, lowest priority first, until all
+ * caches together fit in {@link #getBudgetBytes}.
+ *
+ * The registry only keeps weak references to the caches, so a cache goes away with whatever owns
+ * it, without having to be unregistered. The owner must hold on to the {@link Cache} it registers
+ * for as long as it should be trimmed.
+ */
+public final class CacheBudgets implements ComponentCallbacks2 {
+
+    private static final String LOG_TAG = CacheBudgets.class.getSimpleName();
+
+    /**
+     * Possible priorities of a cache: cheap to fill again without touching the database, costs a
+     * few queries to fill again, and costs a scan of a table to fill again.
+     */
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    /** Severity of a trim that drops every cache */
+    private static final int SEVERITY_ALL = PRIORITY_HIGH + 1;
+
+    /** Part of the maximum heap that all caches together may use */
+    private static final int BUDGET_HEAP_FRACTION = 8;
+
+    /**
+     * A cache that can tell how much memory it holds, and give some of it back.
+     */
+    public interface Cache {
+
+        /**
+         * Returns an estimate of the bytes the cache holds.
+         */
+        long getSizeBytes();
+
+        /**
+         * Shrink the cache to at most the given number of bytes, as far as it can. 0 empties it.
+         * Called on the main thread for memory trims, and on any thread for the budget.
+         */
+        void trimToSize(long maxBytes);
+    }
+
+    /** The one registry of the app, created by the first call to {@link #getInstance} */
+    private static CacheBudgets instance;
+
+    /** The registered caches, lowest priority first, guarded by this object */
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final long budgetBytes;
+
+    private CacheBudgets(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Returns the registry of the app, which is told about memory trims from the moment it is
+     * created.
+     */
+    public static synchronized CacheBudgets getInstance(Context context) {
+        if (instance == null) {
+            instance = new CacheBudgets(Runtime.getRuntime().maxMemory() / BUDGET_HEAP_FRACTION);
+            context.getApplicationContext().registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Register a cache under the given name, which is used to report its size.
+     *
+     * @param priority one of the PRIORITY values
+     */
+    public synchronized void register(String name, int priority, Cache cache) {
+        if (priority < PRIORITY_LOW || priority > PRIORITY_HIGH)
+            throw new IllegalArgumentException("Invalid cache priority " + priority);
+
+        // Keep the entries in order of priority, and in order of registration within a priority.
+        int i = 0;
+        while (i < entries.size() && entries.get(i).priority <= priority)
+            i++;
+        entries.add(i, new Entry(name, priority, cache));
+    }
+
+    /**
+     * Returns the number of bytes all caches together may use.
+     */
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    /**
+     * Returns the bytes held by each cache by name, lowest priority first. Caches registered under
+     * the same name are added up.
+     */
+    public synchronized Map<String, Long> getSizes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            Cache cache = entry.cache.get();
+            if (cache == null) {
+                iterator.remove();
+                continue;
+            }
+            Long size = sizes.get(entry.name);
+            sizes.put(entry.name, (size == null ? 0 : size) + cache.getSizeBytes());
+        }
+        return sizes;
+    }
+
+    /**
+     * Trim the caches, lowest priority first, until all caches together fit in the budget.
+     */
+    public synchronized void trimToBudget() {
+        long total = 0;
+        for (long size : getSizes().values())
+            total += size;
+
+        for (Entry entry : entries) {
+            if (total <= budgetBytes)
+                break;
+            Cache cache = entry.cache.get();
+            if (cache == null)
+                continue;
+
+            long size = cache.getSizeBytes();
+            cache.trimToSize(Math.max(0, size - (total - budgetBytes)));
+            total -= size - cache.getSizeBytes();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE || level == TRIM_MEMORY_RUNNING_CRITICAL)
+            trim(SEVERITY_ALL, level);
+        else if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_LOW)
+            trim(PRIORITY_HIGH, level);
+        else
+            trim(PRIORITY_NORMAL, level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        trim(SEVERITY_ALL, TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Drop the caches with a priority below the given severity and halve the ones at it, lowest
+     * priority first, and log the sizes before and after.
+     */
+    private synchronized void trim(int severity, int level) {
+        Map<String, Long> sizesBefore = getSizes();
+        for (Entry entry : entries) {
+            if (entry.priority > severity)
+                break;
+            Cache cache = entry.cache.get();
+            if (cache == null)
+                continue;
+            cache.trimToSize(entry.priority < severity ? 0 : cache.getSizeBytes() / 2);
+        }
+        Log.i(LOG_TAG, "Trimmed caches for level " + level + " from " + sizesBefore + " to "
+                + getSizes() + " bytes");
+    }
+
+    /**
+     * A registered cache.
+     */
+    private static final class Entry {
+
+        final String name;
+        final int priority;
+        final WeakReference<Cache> cache;
+
+        Entry(String name, int priority, Cache cache) {
+            this.name = name;
+            this.priority = priority;
+            this.cache = new WeakReference<>(cache);
+        }
+    }
+}
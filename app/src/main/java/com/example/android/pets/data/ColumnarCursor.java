@@ -0,0 +1,317 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Cursor that holds all its rows in memory, one primitive array per column, for large reads of
+ * pets by readers in the app's own process, see {@link PetEntry#buildColumnarUri}.
+ *
+ * A SQLite cursor keeps its rows in a cursor window of about 2 MB, and fills the window again
+ * every time the reader moves to a row outside it, so jumping around a large result reads it from
+ * the database over and over. This cursor reads the result once, front to back, and after that
+ * every row is an array lookup. IDs and versions are kept in long arrays and genders and weights
+ * in int arrays, and all the names, breeds and external IDs of a column share one char array,
+ * with the offset of each value in an int array, instead of one String object per value.
+ *
+ * Only the columns in {@link #COLUMNS} can be read this way.
+ */
+final class ColumnarCursor extends AbstractCursor {
+
+    /** Columns a columnar cursor can hold, and the columns it holds by default */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_EXTERNAL_ID,
+            PetEntry.COLUMN_PET_VERSION};
+
+    private final String[] columnNames;
+    private final Column[] columns;
+    private final int count;
+
+    private ColumnarCursor(String[] columnNames, Column[] columns, int count) {
+        this.columnNames = columnNames;
+        this.columns = columns;
+        this.count = count;
+    }
+
+    /**
+     * Returns the projection to query for a columnar cursor: the given projection, or
+     * {@link #COLUMNS} if it is null.
+     *
+     * @throws IllegalArgumentException if the projection has a column that isn't in
+     *                                  {@link #COLUMNS}
+     */
+    static String[] checkProjection(String[] projection) {
+        if (projection == null)
+            return COLUMNS.clone();
+
+        for (String column : projection) {
+            if (!Arrays.asList(COLUMNS).contains(column))
+                throw new IllegalArgumentException("Column " + column
+                        + " can't be read into a columnar cursor");
+        }
+        return projection;
+    }
+
+    /**
+     * Returns a columnar cursor with all the rows of the given cursor, which must have been
+     * queried with a projection from {@link #checkProjection}. The given cursor is read from the
+     * first row to the last, and isn't closed.
+     */
+    static ColumnarCursor copyOf(Cursor source) {
+        String[] columnNames = source.getColumnNames();
+        int count = source.getCount();
+
+        Column[] columns = new Column[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            String name = columnNames[i];
+            if (PetEntry._ID.equals(name) || PetEntry.COLUMN_PET_VERSION.equals(name))
+                columns[i] = new LongColumn(count);
+            else if (PetEntry.COLUMN_PET_GENDER.equals(name)
+                    || PetEntry.COLUMN_PET_WEIGHT.equals(name))
+                columns[i] = new IntColumn(count);
+            else
+                columns[i] = new StringColumn(count);
+        }
+
+        source.moveToPosition(-1);
+        for (int row = 0; source.moveToNext(); row++) {
+            for (int i = 0; i < columns.length; i++)
+                columns[i].read(source, i, row);
+        }
+        return new ColumnarCursor(columnNames, columns, count);
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    @Override
+    public int getType(int column) {
+        checkPosition();
+        Column values = columns[column];
+        return values.isNull(getPosition()) ? Cursor.FIELD_TYPE_NULL : values.getType();
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        checkPosition();
+        return columns[column].isNull(getPosition());
+    }
+
+    @Override
+    public String getString(int column) {
+        checkPosition();
+        return columns[column].getString(getPosition());
+    }
+
+    /**
+     * Copy the string straight out of the char array of its column, without making a String.
+     */
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        checkPosition();
+        Column values = columns[column];
+        if (values instanceof StringColumn)
+            ((StringColumn) values).copyToBuffer(getPosition(), buffer);
+        else
+            super.copyStringToBuffer(column, buffer);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        return columns[column].getLong(getPosition());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    /**
+     * The values of one column, by row. A null number reads as 0, like in a SQLite cursor.
+     */
+    private abstract static class Column {
+
+        /** Rows whose value is null */
+        final BitSet nulls = new BitSet();
+
+        /**
+         * Read the value of the given column of the row the source cursor is at.
+         */
+        abstract void read(Cursor source, int column, int row);
+
+        abstract int getType();
+
+        abstract long getLong(int row);
+
+        abstract String getString(int row);
+
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+    }
+
+    private static final class LongColumn extends Column {
+
+        private final long[] values;
+
+        LongColumn(int count) {
+            values = new long[count];
+        }
+
+        @Override
+        void read(Cursor source, int column, int row) {
+            if (source.isNull(column))
+                nulls.set(row);
+            else
+                values[row] = source.getLong(column);
+        }
+
+        @Override
+        int getType() {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Long.toString(values[row]);
+        }
+    }
+
+    private static final class IntColumn extends Column {
+
+        private final int[] values;
+
+        IntColumn(int count) {
+            values = new int[count];
+        }
+
+        @Override
+        void read(Cursor source, int column, int row) {
+            if (source.isNull(column))
+                nulls.set(row);
+            else
+                values[row] = source.getInt(column);
+        }
+
+        @Override
+        int getType() {
+            return Cursor.FIELD_TYPE_INTEGER;
+        }
+
+        @Override
+        long getLong(int row) {
+            return values[row];
+        }
+
+        @Override
+        String getString(int row) {
+            return isNull(row) ? null : Integer.toString(values[row]);
+        }
+    }
+
+    /**
+     * Strings of a column, one after the other in one char array. The string of a row runs from
+     * its offset to the offset of the next row.
+     */
+    private static final class StringColumn extends Column {
+
+        /** Reused to copy each string out of the source cursor without making a String */
+        private final CharArrayBuffer buffer = new CharArrayBuffer(64);
+
+        private final int[] offsets;
+        private char[] chars = new char[1024];
+
+        StringColumn(int count) {
+            offsets = new int[count + 1];
+        }
+
+        @Override
+        void read(Cursor source, int column, int row) {
+            int start = offsets[row];
+            if (source.isNull(column)) {
+                nulls.set(row);
+                offsets[row + 1] = start;
+                return;
+            }
+
+            source.copyStringToBuffer(column, buffer);
+            int length = buffer.sizeCopied;
+            if (start + length > chars.length)
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, start + length));
+            System.arraycopy(buffer.data, 0, chars, start, length);
+            offsets[row + 1] = start + length;
+        }
+
+        @Override
+        int getType() {
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        long getLong(int row) {
+            String value = getString(row);
+            if (value == null)
+                return 0;
+
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        String getString(int row) {
+            if (isNull(row))
+                return null;
+            return new String(chars, offsets[row], offsets[row + 1] - offsets[row]);
+        }
+
+        void copyToBuffer(int row, CharArrayBuffer buffer) {
+            int length = offsets[row + 1] - offsets[row];
+            if (buffer.data == null || buffer.data.length < length)
+                buffer.data = new char[length];
+            System.arraycopy(chars, offsets[row], buffer.data, 0, length);
+            buffer.sizeCopied = length;
+        }
+    }
+}
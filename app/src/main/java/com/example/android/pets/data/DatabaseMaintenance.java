@@ -0,0 +1,351 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps the database in shape while the app isn't busy with it. Once nothing has been written for
+ * {@link #IDLE_DELAY_MILLIS}, a maintenance run:
+ *
+ * - updates the statistics of the query planner with ANALYZE, once more than
+ *   {@link #ANALYZE_AFTER_CHANGES} rows have been written or deleted since it last ran,
+ * - gives the pages freed by deletes back to the file system with incremental vacuum, once more
+ *   than {@link #VACUUM_MIN_FREE_PAGES} pages are free, and
+ * - checkpoints the write-ahead log into the database file, if the database uses one.
+ *
+ * Every step runs in small slices (one table, {@link #VACUUM_PAGES_PER_SLICE} pages or one
+ * passive checkpoint), each in its own short transaction. After each slice the run stops if
+ * something was written in the meantime or it has taken longer than {@link #RUN_BUDGET_MILLIS},
+ * and picks up where it left off in the next idle window. So a query never waits for more than
+ * one slice.
+ *
+ * Incremental vacuum only works once the database has auto_vacuum set to INCREMENTAL. New
+ * databases get it when they are created, see {@link PetDbHelper#onConfigure}. Older databases
+ * need a full VACUUM, which rewrites the whole file and can't be cut into slices, so it isn't part
+ * of a run: the first run that finds the database without it adds a
+ * {@link PetContract.JobEntry#TYPE_ENABLE_INCREMENTAL_VACUUM} job, and skips incremental vacuum
+ * until the job has run.
+ */
+final class DatabaseMaintenance {
+
+    private static final String LOG_TAG = DatabaseMaintenance.class.getSimpleName();
+
+    /** Time without writes after which maintenance runs */
+    static final long IDLE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /** Time after which a maintenance run stops, to carry on in the next idle window */
+    static final long RUN_BUDGET_MILLIS = 500;
+
+    /** Number of rows written or deleted after which the statistics are updated */
+    static final long ANALYZE_AFTER_CHANGES = 1000;
+
+    /** Number of free pages from which they are given back to the file system */
+    static final long VACUUM_MIN_FREE_PAGES = 64;
+
+    /** Maximum number of pages given back to the file system in one slice */
+    static final int VACUUM_PAGES_PER_SLICE = 32;
+
+    /** Value of PRAGMA auto_vacuum for incremental vacuum */
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Name of the shared preferences file that holds the number of changes since ANALYZE */
+    private static final String PREFS_NAME = "database_maintenance";
+
+    /** Key of the number of rows written or deleted since ANALYZE last ran */
+    private static final String KEY_CHANGES_SINCE_ANALYZE = "changes_since_analyze";
+
+    private final Context context;
+    private final SQLiteOpenHelper dbHelper;
+
+    /** Held while a run uses the database */
+    private final Lock databaseLock;
+
+    /** Has the jobs run, after a run has added one */
+    private final Runnable scheduleJobs;
+
+    /** Runs maintenance one run at a time, away from the threads that serve queries */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    /** Time of the last write, as given by {@link SystemClock#elapsedRealtime()} */
+    private volatile long lastWriteMillis;
+
+    /** Whether a run is scheduled and hasn't started yet */
+    private boolean scheduled;
+
+    /** Value of total_changes() of the database connection when it was last read */
+    private long lastTotalChanges;
+
+    /** Tables still to be analyzed by the current ANALYZE, or null if none is under way */
+    private List<String> tablesToAnalyze;
+
+    /** What the current run has done so far, for the log */
+    private int analyzedTables;
+    private long freedPages;
+    private boolean checkpointed;
+
+    /**
+     * Constructs a new {@link DatabaseMaintenance} for the database of the given helper.
+     *
+     * @param databaseLock held while a run uses the database
+     * @param scheduleJobs   has the jobs run, after a run has added one
+     */
+    DatabaseMaintenance(Context context, SQLiteOpenHelper dbHelper, Lock databaseLock,
+                        Runnable scheduleJobs) {
+        this.context = context.getApplicationContext();
+        this.dbHelper = dbHelper;
+        this.databaseLock = databaseLock;
+        this.scheduleJobs = scheduleJobs;
+    }
+
+    /**
+     * Schedule a run for the next idle window, to catch up on maintenance that is due from before
+     * the app was started.
+     */
+    void start() {
+        schedule(IDLE_DELAY_MILLIS);
+    }
+
+    /**
+     * Move the next run to the next idle window, which is {@link #IDLE_DELAY_MILLIS} after this
+     * write. Called on every write, so it only records the time if a run is already scheduled.
+     */
+    void onWrite() {
+        lastWriteMillis = SystemClock.elapsedRealtime();
+        schedule(IDLE_DELAY_MILLIS);
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if (scheduled)
+            return;
+
+        scheduled = true;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DatabaseMaintenance.this) {
+                    scheduled = false;
+                }
+
+                // Something was written since this run was scheduled, so wait for the quiet.
+                long idleMillis = SystemClock.elapsedRealtime() - lastWriteMillis;
+                if (idleMillis < IDLE_DELAY_MILLIS) {
+                    schedule(IDLE_DELAY_MILLIS - idleMillis);
+                    return;
+                }
+
+                databaseLock.lock();
+                try {
+                    if (!runSlices())
+                        schedule(IDLE_DELAY_MILLIS);
+                } catch (RuntimeException e) {
+                    // Maintenance is only housekeeping, so a failed run must not take the app down.
+                    Log.e(LOG_TAG, "Database maintenance failed", e);
+                } finally {
+                    databaseLock.unlock();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the maintenance steps that are due, a slice at a time, until they are done or it is time
+     * to stop, and log what was done.
+     *
+     * @return whether every step that was due is done
+     */
+    private boolean runSlices() {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        long sizeBefore = getSize(db);
+        long freePagesBefore = getFreePages(db);
+
+        analyzedTables = 0;
+        freedPages = 0;
+        checkpointed = false;
+        boolean done = runDueSteps(db, start, start + RUN_BUDGET_MILLIS);
+
+        Log.i(LOG_TAG, "Maintenance " + (done ? "finished" : "paused") + " after "
+                + (SystemClock.elapsedRealtime() - start) + " ms: analyzed " + analyzedTables
+                + " tables, freed " + freedPages + " pages" + (checkpointed ? ", checkpointed" : "")
+                + ". Size " + sizeBefore + " bytes with " + freePagesBefore + " free pages before, "
+                + getSize(db) + " bytes with " + getFreePages(db) + " free pages after");
+        return done;
+    }
+
+    /**
+     * Run the steps in order, stopping at the first slice after which it is time to stop.
+     *
+     * @return whether every step that was due is done
+     */
+    private boolean runDueSteps(SQLiteDatabase db, long start, long deadline) {
+        boolean incrementalVacuum = isIncrementalVacuum(db);
+        if (!incrementalVacuum)
+            requestIncrementalVacuum(db);
+
+        // Analyze one table per slice.
+        if (tablesToAnalyze == null && getChangesSinceAnalyze(db) >= ANALYZE_AFTER_CHANGES)
+            tablesToAnalyze = getTables(db);
+        while (tablesToAnalyze != null && !tablesToAnalyze.isEmpty()) {
+            db.execSQL("ANALYZE " + tablesToAnalyze.remove(0) + ";");
+            analyzedTables++;
+            if (tablesToAnalyze.isEmpty()) {
+                tablesToAnalyze = null;
+                setChangesSinceAnalyze(0);
+            }
+            if (shouldStop(start, deadline))
+                return false;
+        }
+
+        // Free a few pages per slice, until there are none left or no more can be freed.
+        long freePages = getFreePages(db);
+        if (incrementalVacuum && freePages >= VACUUM_MIN_FREE_PAGES) {
+            while (freePages > 0) {
+                db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_SLICE + ");");
+                long left = getFreePages(db);
+                freedPages += freePages - left;
+                if (left == freePages)
+                    break;
+                freePages = left;
+                if (shouldStop(start, deadline))
+                    return false;
+            }
+        }
+
+        checkpointed = checkpoint(db);
+        return true;
+    }
+
+    /**
+     * Returns whether the run should stop after the current slice, because a write came in since
+     * it started or it has used up its time.
+     */
+    private boolean shouldStop(long start, long deadline) {
+        return lastWriteMillis > start || SystemClock.elapsedRealtime() > deadline;
+    }
+
+    /**
+     * Returns whether the database has auto_vacuum set to INCREMENTAL.
+     */
+    static boolean isIncrementalVacuum(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Add the job that switches the database to incremental vacuum and have it run, unless it is
+     * already waiting to run.
+     */
+    private void requestIncrementalVacuum(SQLiteDatabase db) {
+        if (PetJobs.hasUnfinished(db, PetContract.JobEntry.TYPE_ENABLE_INCREMENTAL_VACUUM))
+            return;
+
+        Log.i(LOG_TAG, "Adding a job to switch to incremental vacuum");
+        PetJobs.enqueue(db, PetContract.JobEntry.TYPE_ENABLE_INCREMENTAL_VACUUM);
+        scheduleJobs.run();
+    }
+
+    /**
+     * Switch the database to incremental vacuum. The full VACUUM this takes rewrites the whole
+     * file, which blocks writers for as long as that takes, but it is only needed once. It can't
+     * run inside a transaction.
+     */
+    static void enableIncrementalVacuum(SQLiteDatabase db) {
+        Log.i(LOG_TAG, "Switching to incremental vacuum");
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+        db.execSQL("VACUUM;");
+    }
+
+    /**
+     * Copy the pages in the write-ahead log into the database file, as far as that is possible
+     * without waiting for readers or writers.
+     *
+     * @return whether the database uses a write-ahead log
+     */
+    private static boolean checkpoint(SQLiteDatabase db) {
+        String journalMode = DatabaseUtils.stringForQuery(db, "PRAGMA journal_mode", null);
+        if (!"wal".equalsIgnoreCase(journalMode))
+            return false;
+
+        Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of rows written or deleted since ANALYZE last ran. SQLite counts the
+     * changes made through each connection, and all writes go through the one primary connection,
+     * which a transaction makes sure of reading from.
+     */
+    private long getChangesSinceAnalyze(SQLiteDatabase db) {
+        long totalChanges;
+        db.beginTransaction();
+        try {
+            totalChanges = DatabaseUtils.longForQuery(db, "SELECT total_changes()", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The count starts again from 0 when the connection is opened again.
+        long newChanges = totalChanges >= lastTotalChanges
+                ? totalChanges - lastTotalChanges : totalChanges;
+        lastTotalChanges = totalChanges;
+
+        long changes = getPreferences().getLong(KEY_CHANGES_SINCE_ANALYZE, 0) + newChanges;
+        setChangesSinceAnalyze(changes);
+        return changes;
+    }
+
+    private void setChangesSinceAnalyze(long changes) {
+        getPreferences().edit().putLong(KEY_CHANGES_SINCE_ANALYZE, changes).apply();
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the tables of the database, leaving out the ones SQLite and Android keep.
+     */
+    private static List<String> getTables(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table'"
+                + " AND name NOT LIKE 'sqlite_%' AND name != 'android_metadata'", null);
+        try {
+            List<String> tables = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext())
+                tables.add(cursor.getString(0));
+            return tables;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the size of the database in bytes, not counting the write-ahead log.
+     */
+    private static long getSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    private static long getFreePages(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    }
+}
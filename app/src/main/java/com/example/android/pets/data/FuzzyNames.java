@@ -0,0 +1,276 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds pet names that are spelled a little differently from what was typed, such as "Totto", or
+ * "Toto" typed with a Cyrillic "o", for "Toto".
+ *
+ * Every name is folded first: lower case, without accents, with Cyrillic and Greek letters that
+ * look like Latin letters replaced by those, and with everything but letters and digits removed.
+ * The pets table keeps the folded name and its Soundex code, and the trigram table keeps the
+ * three letter pieces of every folded name. A search collects the names that share trigrams or the
+ * Soundex code with the folded query through those indexes, and ranks only those few by their
+ * edit distance, instead of comparing the query with every pet.
+ *
+ * The trigram table is keyed by the folded name rather than by pet, so a name that many pets share
+ * is only indexed once, and writes only need the new name. Names that are no longer used stay in
+ * the table, which is harmless, because they match no pets.
+ */
+final class FuzzyNames {
+
+    /** Name of the table with the trigrams of the folded names */
+    static final String TRIGRAM_TABLE_NAME = "name_trigrams";
+
+    /** Columns of the trigram table */
+    static final String COLUMN_TRIGRAM = "trigram";
+    static final String COLUMN_NAME_FOLD = "name_fold";
+
+    /** Maximum number of candidate names collected from the indexes for one search */
+    private static final int MAX_CANDIDATES = 200;
+
+    /** Maximum number of names returned by one search */
+    static final int MAX_MATCHES = 20;
+
+    /**
+     * Lower case Cyrillic and Greek letters that look like a Latin letter, and that Latin letter.
+     */
+    private static final String CONFUSABLES = "\u0430a\u0432b\u0435e\u043ak\u043cm\u043dh"
+            + "\u043eo\u0440p\u0441c\u0442t\u0443y\u0445x\u0455s\u0456i\u0458j\u0501d\u0261g"
+            + "\u03bfo\u03b1a\u03c1p\u03c4t\u03bdv\u03bak\u03b9i";
+
+    /** Soundex digit of each letter from a to z, where 0 means the letter has no digit */
+    private static final String SOUNDEX_DIGITS = "01230120022455012623010202";
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private FuzzyNames() {
+    }
+
+    /**
+     * Create the trigram table.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TRIGRAM_TABLE_NAME + " ("
+                + COLUMN_TRIGRAM + " TEXT NOT NULL, "
+                + COLUMN_NAME_FOLD + " TEXT NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_TRIGRAM + ", " + COLUMN_NAME_FOLD + "));");
+    }
+
+    /**
+     * Fill in the folded names, Soundex codes and trigrams of the pets that are already in the
+     * pets table.
+     */
+    static void indexExistingNames(SQLiteDatabase db) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                + PetEntry.COLUMN_PET_NAME_FOLD + " = ?, " + PetEntry.COLUMN_PET_NAME_SOUNDEX
+                + " = ? WHERE " + PetEntry.COLUMN_PET_NAME + " = ?");
+        Cursor cursor = db.query(true, PetEntry.TABLE_NAME, new String[]{PetEntry.COLUMN_PET_NAME},
+                null, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String fold = fold(name);
+                bindStringOrNull(update, 1, fold);
+                bindStringOrNull(update, 2, soundex(fold));
+                update.bindString(3, name);
+                update.executeUpdateDelete();
+                addTrigrams(db, fold);
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    /**
+     * Returns the folded form of the given name, or null if it has no letters or digits.
+     */
+    static String fold(String name) {
+        if (name == null)
+            return null;
+
+        // Split accented letters into the letter and the accent, so the accent can be dropped.
+        String decomposed = Normalizer.normalize(name.toLowerCase(Locale.ROOT),
+                Normalizer.Form.NFD);
+
+        StringBuilder folded = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            int confusable = CONFUSABLES.indexOf(c);
+            if (confusable != -1 && confusable % 2 == 0)
+                c = CONFUSABLES.charAt(confusable + 1);
+
+            if (Character.isLetterOrDigit(c))
+                folded.append(c);
+        }
+        return folded.length() == 0 ? null : folded.toString();
+    }
+
+    /**
+     * Returns the Soundex code of the given folded name, for example "t300" for "toto", or null if
+     * it doesn't start with a letter from a to z.
+     */
+    static String soundex(String fold) {
+        if (fold == null || fold.charAt(0) < 'a' || fold.charAt(0) > 'z')
+            return null;
+
+        StringBuilder code = new StringBuilder(4);
+        code.append(fold.charAt(0));
+        char lastDigit = SOUNDEX_DIGITS.charAt(fold.charAt(0) - 'a');
+
+        for (int i = 1; i < fold.length() && code.length() < 4; i++) {
+            char c = fold.charAt(i);
+            if (c < 'a' || c > 'z')
+                continue;
+
+            char digit = SOUNDEX_DIGITS.charAt(c - 'a');
+            if (digit != '0' && digit != lastDigit)
+                code.append(digit);
+
+            // "h" and "w" don't separate letters with the same digit, vowels do.
+            if (c != 'h' && c != 'w')
+                lastDigit = digit;
+        }
+        while (code.length() < 4)
+            code.append('0');
+        return code.toString();
+    }
+
+    /**
+     * Returns the trigrams of the given folded name. The name is padded with two spaces in front
+     * and one behind, so the start and end of the name count more than the middle.
+     */
+    static Set<String> trigrams(String fold) {
+        Set<String> trigrams = new LinkedHashSet<>();
+        if (fold == null)
+            return trigrams;
+
+        String padded = "  " + fold + " ";
+        for (int i = 0; i + 3 <= padded.length(); i++)
+            trigrams.add(padded.substring(i, i + 3));
+        return trigrams;
+    }
+
+    /**
+     * Add the trigrams of the given folded name to the trigram table, if they aren't there yet.
+     */
+    static void addTrigrams(SQLiteDatabase db, String fold) {
+        if (fold == null)
+            return;
+
+        for (String trigram : trigrams(fold))
+            db.execSQL("INSERT OR IGNORE INTO " + TRIGRAM_TABLE_NAME + " (" + COLUMN_TRIGRAM + ", "
+                    + COLUMN_NAME_FOLD + ") VALUES (?, ?);", new Object[]{trigram, fold});
+    }
+
+    /**
+     * Returns the folded names that are close to the given name, closest first, at most
+     * {@link #MAX_MATCHES} of them.
+     */
+    static List<String> findMatches(SQLiteDatabase db, String name) {
+        String query = fold(name);
+        List<String> matches = new ArrayList<>();
+        if (query == null)
+            return matches;
+
+        // Collect the candidates that share the most trigrams, and those that sound the same.
+        Set<String> candidates = new LinkedHashSet<>();
+        Set<String> trigrams = trigrams(query);
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < trigrams.size(); i++)
+            placeholders.append(i == 0 ? "?" : ", ?");
+
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_NAME_FOLD + " FROM " + TRIGRAM_TABLE_NAME
+                + " WHERE " + COLUMN_TRIGRAM + " IN (" + placeholders + ")"
+                + " GROUP BY " + COLUMN_NAME_FOLD + " ORDER BY COUNT(*) DESC LIMIT "
+                + MAX_CANDIDATES, trigrams.toArray(new String[trigrams.size()]));
+        try {
+            while (cursor.moveToNext())
+                candidates.add(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+
+        String soundex = soundex(query);
+        if (soundex != null) {
+            cursor = db.query(true, PetEntry.TABLE_NAME,
+                    new String[]{PetEntry.COLUMN_PET_NAME_FOLD},
+                    PetEntry.COLUMN_PET_NAME_SOUNDEX + "=?", new String[]{soundex},
+                    null, null, null, String.valueOf(MAX_CANDIDATES));
+            try {
+                while (cursor.moveToNext())
+                    candidates.add(cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Keep the candidates within a few edits of the query, closest first. The sort is stable,
+        // so candidates at the same distance stay in the order of the trigrams they share.
+        int maxDistance = Math.max(2, query.length() / 3);
+        final Map<String, Integer> distances = new HashMap<>();
+        for (String candidate : candidates) {
+            int distance = editDistance(query, candidate);
+            if (distance <= maxDistance) {
+                matches.add(candidate);
+                distances.put(candidate, distance);
+            }
+        }
+        Collections.sort(matches, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return distances.get(a).compareTo(distances.get(b));
+            }
+        });
+
+        if (matches.size() > MAX_MATCHES)
+            return new ArrayList<>(matches.subList(0, MAX_MATCHES));
+        return matches;
+    }
+
+    /**
+     * Returns the Levenshtein distance between two strings: the number of letters that have to be
+     * inserted, removed or replaced to turn one into the other.
+     */
+    static int editDistance(String a, String b) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int replace = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(replace, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()];
+    }
+}
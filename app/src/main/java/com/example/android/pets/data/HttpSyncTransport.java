@@ -0,0 +1,184 @@
+package com.example.android.pets.data;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Talks to the sync server over HTTP. Batches are posted to {base URL}/changes, and the changes
+ * on the server are read from {base URL}/changes?since={cursor}.
+ *
+ * Requests that fail on the network, including connect and read timeouts, or that the server
+ * answers with a 5xx or 429 status, are tried again after a pause that doubles every time, at most
+ * {@link #MAX_ATTEMPTS} times in all. Other statuses mean the request itself is wrong, so it isn't
+ * tried again, and neither is a request whose thread was interrupted.
+ */
+public final class HttpSyncTransport implements SyncTransport {
+
+    private static final String LOG_TAG = HttpSyncTransport.class.getSimpleName();
+
+    /** Maximum number of times a request is tried */
+    static final int MAX_ATTEMPTS = 5;
+
+    /** Pause before the second try of a request, doubled before every further try */
+    static final long INITIAL_BACKOFF_MILLIS = 500;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    /** Status the server answers with when it is asked too much */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String changesUrl;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final long initialBackoffMillis;
+
+    /**
+     * Constructs a new {@link HttpSyncTransport}.
+     *
+     * @param baseUrl URL of the sync server, such as "https://example.com/pets"
+     */
+    public HttpSyncTransport(String baseUrl) {
+        this(baseUrl, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS, INITIAL_BACKOFF_MILLIS);
+    }
+
+    /**
+     * Constructs a new {@link HttpSyncTransport} with the given timeouts and first pause between
+     * tries, so tests don't have to wait as long as a real network needs.
+     */
+    HttpSyncTransport(String baseUrl, int connectTimeoutMillis, int readTimeoutMillis,
+                      long initialBackoffMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        try {
+            new URL(baseUrl);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid sync server URL " + baseUrl, e);
+        }
+        changesUrl = baseUrl.replaceAll("/+$", "") + "/changes";
+    }
+
+    @Override
+    public void upload(byte[] gzippedBatch, String idempotencyKey) throws IOException {
+        send("POST", new URL(changesUrl), gzippedBatch, idempotencyKey);
+    }
+
+    @Override
+    public String fetchChanges(String cursor) throws IOException {
+        String url = changesUrl;
+        if (cursor != null)
+            url += "?since=" + URLEncoder.encode(cursor, "UTF-8");
+        return send("GET", new URL(url), null, null);
+    }
+
+    /**
+     * Send a request, trying it again while it fails for a reason that may pass.
+     *
+     * @return the body of the response
+     */
+    private String send(String method, URL url, byte[] body, String idempotencyKey)
+            throws IOException {
+        long backoffMillis = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            IOException failure;
+            try {
+                return sendOnce(method, url, body, idempotencyKey);
+            } catch (HttpStatusException e) {
+                if (!e.isRetryable())
+                    throw e;
+                failure = e;
+            } catch (InterruptedIOException e) {
+                // A timeout is an InterruptedIOException too, but it is worth another try.
+                if (!(e instanceof SocketTimeoutException)
+                        || Thread.currentThread().isInterrupted())
+                    throw e;
+                failure = e;
+            } catch (IOException e) {
+                failure = e;
+            }
+
+            if (attempt == MAX_ATTEMPTS)
+                throw failure;
+
+            Log.w(LOG_TAG, method + " " + url + " failed, trying again in " + backoffMillis
+                    + " ms: " + failure.getMessage());
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Sync was interrupted");
+            }
+            backoffMillis *= 2;
+        }
+    }
+
+    private String sendOnce(String method, URL url, byte[] body, String idempotencyKey)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setRequestMethod(method);
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setRequestProperty("Idempotency-Key", idempotencyKey);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            if (status / 100 != 2)
+                throw new HttpStatusException(method + " " + url + " failed with status " + status,
+                        status == HTTP_TOO_MANY_REQUESTS || status / 100 == 5);
+
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1)
+                    response.write(buffer, 0, count);
+                return response.toString("UTF-8");
+            } finally {
+                in.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * The server answered a request with a status other than 2xx.
+     */
+    private static final class HttpStatusException extends IOException {
+
+        private final boolean retryable;
+
+        HttpStatusException(String message, boolean retryable) {
+            super(message);
+            this.retryable = retryable;
+        }
+
+        boolean isRetryable() {
+            return retryable;
+        }
+    }
+}
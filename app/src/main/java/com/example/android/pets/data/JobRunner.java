@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs the jobs of a {@link Queue} one at a time, oldest first, a chunk at a time. The lock is
+ * taken for each chunk and let go between chunks, so other work that needs it waits for one
+ * chunk at most, and each chunk is given a deadline {@link #CHUNK_BUDGET_MILLIS} away.
+ *
+ * A run ends when there are no jobs left, or after the chunk that is running when
+ * {@link #stop} is called. It is up to each job to save its progress with every chunk, so a job
+ * that is stopped, or cut short by the process dying, goes on from its last chunk.
+ *
+ * The runner only knows the two interfaces below, and nothing of Android or the database, so it
+ * can run on a plain JVM.
+ */
+final class JobRunner {
+
+    /** Time after which a chunk should stop at its next checkpoint */
+    static final long CHUNK_BUDGET_MILLIS = 100;
+
+    /**
+     * A job that can run in chunks.
+     */
+    interface Job {
+
+        /**
+         * Run the next chunk, stopping at the first checkpoint after the given deadline, and save
+         * the progress together with the work of the chunk.
+         *
+         * @param deadlineNanos time to stop by, as given by {@link System#nanoTime()}
+         * @return whether the job is finished
+         */
+        boolean runChunk(long deadlineNanos);
+    }
+
+    /**
+     * The jobs that aren't finished.
+     */
+    interface Queue {
+
+        /**
+         * Returns the oldest job that isn't finished and hasn't failed, or null if there is none.
+         */
+        Job next();
+
+        /**
+         * Record that the given job failed with the given exception, so {@link #next} doesn't
+         * return it again.
+         */
+        void fail(Job job, RuntimeException e);
+    }
+
+    private final Queue queue;
+
+    /** Held while a chunk runs */
+    private final Lock lock;
+
+    private volatile boolean stopped;
+
+    /**
+     * Constructs a new {@link JobRunner} for the jobs of the given queue.
+     *
+     * @param lock held while a chunk runs
+     */
+    JobRunner(Queue queue, Lock lock) {
+        this.queue = queue;
+        this.lock = lock;
+    }
+
+    /**
+     * Run the jobs until there are none left, or the runner is stopped. A job that throws is
+     * recorded as failed, and the run goes on with the next job.
+     *
+     * @return whether every job is finished, rather than stopped
+     */
+    boolean run() {
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(CHUNK_BUDGET_MILLIS);
+        Job job;
+        while (!stopped && (job = queue.next()) != null) {
+            boolean finished = false;
+            while (!finished && !stopped) {
+                lock.lock();
+                try {
+                    finished = job.runChunk(System.nanoTime() + budgetNanos);
+                } catch (RuntimeException e) {
+                    queue.fail(job, e);
+                    finished = true;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        return !stopped;
+    }
+
+    /**
+     * Ask the run to stop after the chunk that is running. Can be called from any thread.
+     */
+    void stop() {
+        stopped = true;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.text.Collator;
+import java.util.Locale;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Collation keys of pet names, stored in {@link PetEntry#COLUMN_PET_NAME_KEY} so that ordering by
+ * name follows the rules of the device language and is still an index walk. SQLite compares the
+ * key blobs byte by byte, which gives the same order as comparing the names with a
+ * {@link Collator} for the language.
+ *
+ * The keys depend on the language, so the language they were made for is stored in the database,
+ * and the keys are made again when the device language changes.
+ */
+final class NameKeys {
+
+    /** Name of the table with the one row that holds the language of the keys */
+    static final String LOCALE_TABLE_NAME = "name_key_locale";
+
+    /** Column with the language of the keys, as given by {@link Locale#toString()} */
+    static final String COLUMN_LOCALE = "locale";
+
+    /** Maximum number of keys made again in one transaction */
+    private static final int BATCH_SIZE = 500;
+
+    /** Collator for {@link #collatorLocale}, made again when the default language changes */
+    private static Collator collator;
+    private static Locale collatorLocale;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private NameKeys() {
+    }
+
+    /**
+     * Create the table that holds the language of the keys. It starts empty, so the keys are made
+     * the first time {@link #isCurrent} is checked.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LOCALE_TABLE_NAME + " ("
+                + COLUMN_LOCALE + " TEXT NOT NULL);");
+    }
+
+    /**
+     * Returns the collation key of the given name in the default language, or null for null.
+     */
+    static synchronized byte[] of(String name) {
+        if (name == null)
+            return null;
+
+        // Collators aren't thread safe, which is why this method is synchronized.
+        Locale locale = Locale.getDefault();
+        if (collator == null || !locale.equals(collatorLocale)) {
+            collator = Collator.getInstance(locale);
+            collatorLocale = locale;
+        }
+        return collator.getCollationKey(name).toByteArray();
+    }
+
+    /**
+     * Returns whether the stored keys were made for the default language.
+     */
+    static boolean isCurrent(SQLiteDatabase db) {
+        long matches = DatabaseUtils.queryNumEntries(db, LOCALE_TABLE_NAME, COLUMN_LOCALE + "=?",
+                new String[]{Locale.getDefault().toString()});
+        return matches != 0;
+    }
+
+    /**
+     * Make the keys of every pet again for the default language, a batch at a time, and then
+     * store the language. Until this is done, pets with keys for the old language sort among the
+     * others in a mixed order. Pets written in the meantime already get keys for the new language.
+     *
+     * Only the key column is written, so this doesn't move the pets on to a new version.
+     *
+     * The given lock is held for one batch at a time, and the database is got from the helper
+     * again for each batch, so whatever waits for the lock waits for one batch at most.
+     *
+     * @return the number of keys made
+     */
+    static int rekey(SQLiteOpenHelper dbHelper, Lock lock) {
+        Locale locale = Locale.getDefault();
+        int count = rekeyTable(dbHelper, lock, PetEntry.TABLE_NAME)
+                + rekeyTable(dbHelper, lock, PetEntry.ARCHIVE_TABLE_NAME);
+
+        lock.lock();
+        try {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.delete(LOCALE_TABLE_NAME, null, null);
+                db.execSQL("INSERT INTO " + LOCALE_TABLE_NAME + " (" + COLUMN_LOCALE
+                        + ") VALUES (?);", new Object[]{locale.toString()});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return count;
+    }
+
+    private static int rekeyTable(SQLiteOpenHelper dbHelper, Lock lock, String table) {
+        int count = 0;
+        long lastId = 0;
+        int batchCount;
+        do {
+            batchCount = 0;
+            lock.lock();
+            try {
+                SQLiteDatabase db = dbHelper.getWritableDatabase();
+                SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET "
+                        + PetEntry.COLUMN_PET_NAME_KEY + " = ? WHERE " + PetEntry._ID + " = ?");
+                db.beginTransaction();
+                try {
+                    // Walk the primary key, so every batch starts where the last one stopped.
+                    Cursor cursor = db.query(table,
+                            new String[]{PetEntry._ID, PetEntry.COLUMN_PET_NAME},
+                            PetEntry._ID + ">?", new String[]{String.valueOf(lastId)},
+                            null, null, PetEntry._ID, String.valueOf(BATCH_SIZE));
+                    try {
+                        while (cursor.moveToNext()) {
+                            lastId = cursor.getLong(0);
+                            update.bindBlob(1, of(cursor.getString(1)));
+                            update.bindLong(2, lastId);
+                            update.executeUpdateDelete();
+                            batchCount++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    update.close();
+                }
+            } finally {
+                lock.unlock();
+            }
+            count += batchCount;
+        } while (batchCount == BATCH_SIZE);
+        return count;
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Immutable copy of one row of pet data, with the one mapping between the {@link PetEntry}
+ * columns and Java fields. Read pets from a cursor with a {@link Reader}, and turn a pet into the
+ * values for an insert or update with {@link #toContentValues()}.
+ */
+public final class Pet {
+
+    /** ID of a pet that hasn't been read from the database */
+    public static final long NO_ID = -1;
+
+    /** Version of a pet that hasn't been read from the database */
+    public static final long NO_VERSION = -1;
+
+    private final long id;
+    private final String name;
+    private final String breed;
+    private final int gender;
+    private final int weight;
+    private final String externalId;
+    private final long version;
+
+    /**
+     * Constructs a new pet that isn't in the database yet.
+     *
+     * @param name   of the pet
+     * @param breed  of the pet, may be null
+     * @param gender one of the {@link PetEntry} gender constants
+     * @param weight in kg
+     */
+    public Pet(String name, String breed, int gender, int weight) {
+        this(NO_ID, name, breed, gender, weight, null, NO_VERSION);
+    }
+
+    private Pet(long id, String name, String breed, int gender, int weight, String externalId,
+                long version) {
+        this.id = id;
+        this.name = name;
+        this.breed = breed;
+        this.gender = gender;
+        this.weight = weight;
+        this.externalId = externalId;
+        this.version = version;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getBreed() {
+        return breed;
+    }
+
+    public int getGender() {
+        return gender;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public String getExternalId() {
+        return externalId;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the values to insert or update this pet with. The ID and version are left out,
+     * because the database assigns them, and so is the external ID if there isn't one.
+     */
+    public ContentValues toContentValues() {
+        ContentValues values = new ContentValues(5);
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, gender);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        if (externalId != null)
+            values.put(PetEntry.COLUMN_PET_EXTERNAL_ID, externalId);
+        return values;
+    }
+
+    /**
+     * Reads pets from the rows of one cursor. The column indexes are looked up once, when the
+     * reader is created, instead of once per row. Columns that aren't in the cursor's projection
+     * are read as null, 0 or {@link #NO_ID} / {@link #NO_VERSION}.
+     */
+    public static final class Reader {
+
+        private final Cursor cursor;
+        private final int idColumnIndex;
+        private final int nameColumnIndex;
+        private final int breedColumnIndex;
+        private final int genderColumnIndex;
+        private final int weightColumnIndex;
+        private final int externalIdColumnIndex;
+        private final int versionColumnIndex;
+
+        /**
+         * Constructs a new {@link Reader} for the given cursor of pet data.
+         */
+        public Reader(Cursor cursor) {
+            this.cursor = cursor;
+            idColumnIndex = cursor.getColumnIndex(PetEntry._ID);
+            nameColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+            breedColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+            genderColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
+            weightColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
+            externalIdColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_EXTERNAL_ID);
+            versionColumnIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_VERSION);
+        }
+
+        /**
+         * Returns whether this reader was created for the given cursor.
+         */
+        public boolean isFor(Cursor cursor) {
+            return this.cursor == cursor;
+        }
+
+        /**
+         * Returns the pet in the row the cursor is at.
+         */
+        public Pet read() {
+            return new Pet(
+                    idColumnIndex == -1 ? NO_ID : cursor.getLong(idColumnIndex),
+                    nameColumnIndex == -1 ? null : cursor.getString(nameColumnIndex),
+                    breedColumnIndex == -1 ? null : cursor.getString(breedColumnIndex),
+                    genderColumnIndex == -1 ? PetEntry.GENDER_UNKNOWN
+                            : cursor.getInt(genderColumnIndex),
+                    weightColumnIndex == -1 ? 0 : cursor.getInt(weightColumnIndex),
+                    externalIdColumnIndex == -1 ? null : cursor.getString(externalIdColumnIndex),
+                    versionColumnIndex == -1 ? NO_VERSION : cursor.getLong(versionColumnIndex));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.AdoptionEntry;
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves pets that are no longer active out of the pets table into the archive table, so the
+ * catalog queries and indexes of the pets table only pay for the pets that are still around.
+ *
+ * A pet counts as inactive once it was adopted more than {@link #ARCHIVE_AFTER_MILLIS} ago. Pets
+ * are moved in batches of {@link #BATCH_SIZE}, each in its own short transaction, so writers are
+ * never held up for long. Archived pets keep their ID, and their owner and adoption time are kept
+ * in the archive, since the adoption itself goes with the pet.
+ */
+final class PetArchiver {
+
+    /** Pets adopted longer ago than this are archived */
+    static final long ARCHIVE_AFTER_MILLIS = TimeUnit.DAYS.toMillis(365);
+
+    /** Maximum number of pets moved in one transaction */
+    static final int BATCH_SIZE = 500;
+
+    /** Columns of the archive table that the pets table doesn't have */
+    static final String COLUMN_OWNER_ID = "owner_id";
+    static final String COLUMN_ADOPTED_AT = "adopted_at";
+    static final String COLUMN_ARCHIVED_AT = "archived_at";
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetArchiver() {
+    }
+
+    /**
+     * Create the archive table, the view that reads the pets and the archive together, and the
+     * index that finds the pets to archive.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PetEntry.ARCHIVE_TABLE_NAME + " ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY, "
+                + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                + PetEntry.COLUMN_PET_BREED_ID + " INTEGER NOT NULL REFERENCES "
+                + BreedEntry.TABLE_NAME + ", "
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + " TEXT, "
+                + PetEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL, "
+                + COLUMN_OWNER_ID + " INTEGER, "
+                + COLUMN_ADOPTED_AT + " INTEGER, "
+                + COLUMN_ARCHIVED_AT + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX pets_archive_name_index ON " + PetEntry.ARCHIVE_TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_NAME + ");");
+        db.execSQL("CREATE INDEX adoptions_adopted_at_index ON " + AdoptionEntry.TABLE_NAME
+                + " (" + AdoptionEntry.COLUMN_ADOPTED_AT + ");");
+
+        createAllPetsView(db);
+    }
+
+    /**
+     * Create the view with the pets of both tiers. It has the columns that the archive table
+     * shares with the pets table, plus the breed name and {@link PetEntry#COLUMN_PET_ARCHIVED}.
+     * When adding a column to the pets table, add it to the archive table as well, and call this
+     * again.
+     */
+    static void createAllPetsView(SQLiteDatabase db) {
+        String copiedColumns = getCopiedColumns(db);
+        db.execSQL("DROP VIEW IF EXISTS " + PetEntry.ALL_VIEW_NAME + ";");
+        db.execSQL("CREATE VIEW " + PetEntry.ALL_VIEW_NAME + " AS"
+                + " SELECT " + copiedColumns + ", " + PetEntry.COLUMN_PET_BREED
+                + ", 0 AS " + PetEntry.COLUMN_PET_ARCHIVED + " FROM " + PetEntry.VIEW_NAME
+                + " UNION ALL"
+                + " SELECT " + qualify("a", copiedColumns) + ", b." + BreedEntry.COLUMN_BREED_NAME
+                + ", 1 FROM " + PetEntry.ARCHIVE_TABLE_NAME + " a JOIN " + BreedEntry.TABLE_NAME
+                + " b ON a." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID + ";");
+    }
+
+    /**
+     * Returns the comma separated columns that the archive table shares with the pets table, that
+     * is every column of the archive table except the ones only the archive has. Reading them from
+     * the schema keeps the archive working at every database version, whichever columns the pets
+     * table had when it was created.
+     */
+    private static String getCopiedColumns(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + PetEntry.ARCHIVE_TABLE_NAME + ")", null);
+        try {
+            int nameColumnIndex = cursor.getColumnIndexOrThrow("name");
+            StringBuilder columns = new StringBuilder();
+            while (cursor.moveToNext()) {
+                String column = cursor.getString(nameColumnIndex);
+                if (column.equals(COLUMN_OWNER_ID) || column.equals(COLUMN_ADOPTED_AT)
+                        || column.equals(COLUMN_ARCHIVED_AT))
+                    continue;
+
+                if (columns.length() > 0)
+                    columns.append(", ");
+                columns.append(column);
+            }
+            return columns.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the given list of columns with each column prefixed by the given table alias.
+     */
+    private static String qualify(String alias, String columns) {
+        return alias + "." + columns.replace(", ", ", " + alias + ".");
+    }
+
+    /**
+     * Move one batch of inactive pets into the archive, in one transaction.
+     *
+     * @param now current time in milliseconds since the epoch
+     * @return the number of pets that were moved, which is less than {@link #BATCH_SIZE} once
+     *         there is nothing left to archive
+     */
+    static int archiveBatch(SQLiteDatabase db, long now) {
+        long cutoff = now - ARCHIVE_AFTER_MILLIS;
+
+        db.beginTransaction();
+        try {
+            // Find the batch with the index on the adoption time, oldest adoptions first.
+            Cursor cursor = db.query(AdoptionEntry.TABLE_NAME, new String[]{AdoptionEntry._ID},
+                    AdoptionEntry.COLUMN_ADOPTED_AT + "<?", new String[]{String.valueOf(cutoff)},
+                    null, null, AdoptionEntry.COLUMN_ADOPTED_AT, String.valueOf(BATCH_SIZE));
+            StringBuilder ids = new StringBuilder();
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    if (ids.length() > 0)
+                        ids.append(',');
+                    ids.append(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (count == 0) {
+                db.setTransactionSuccessful();
+                return 0;
+            }
+
+            // The IDs are numbers read from the database, so they are safe to put in the SQL.
+            String copiedColumns = getCopiedColumns(db);
+            db.execSQL("INSERT INTO " + PetEntry.ARCHIVE_TABLE_NAME + " (" + copiedColumns + ", "
+                    + COLUMN_OWNER_ID + ", " + COLUMN_ADOPTED_AT + ", " + COLUMN_ARCHIVED_AT + ")"
+                    + " SELECT " + qualify("p", copiedColumns) + ", a."
+                    + AdoptionEntry.COLUMN_OWNER_ID + ", a." + AdoptionEntry.COLUMN_ADOPTED_AT
+                    + ", ? FROM " + PetEntry.TABLE_NAME + " p JOIN " + AdoptionEntry.TABLE_NAME
+                    + " a ON a." + AdoptionEntry._ID + " = p." + PetEntry._ID
+                    + " WHERE p." + PetEntry._ID + " IN (" + ids + ");", new Object[]{now});
+
+            // Deleting the pets also deletes their adoptions, through the foreign key. The pets
+            // still exist, so the deletes aren't logged as changes to upload.
+            PetChangeLog.setSuppressed(db, true);
+            db.execSQL("DELETE FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetEntry._ID + " IN (" + ids + ");");
+            PetChangeLog.setSuppressed(db, false);
+
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SyncChanges;
+
+/**
+ * Log of the pets that have changed since they were last uploaded by the sync, kept up to date by
+ * triggers on the pets table so that every way of writing a pet is covered.
+ *
+ * The log holds one row per pet, so a pet that changes many times between two syncs is uploaded
+ * once. Each row has a sequence number that is new for every change, which lets the sync
+ * acknowledge exactly the changes it uploaded: a pet that changes again while an upload is under
+ * way gets a higher number, and stays in the log for the next upload.
+ *
+ * Writes that must not be uploaded, the changes that come from the server and pets that are moved
+ * to the archive, turn the log off with {@link #setSuppressed} for the length of their
+ * transaction.
+ */
+final class PetChangeLog {
+
+    /** Name of the change log table */
+    static final String TABLE_NAME = "pet_changes";
+
+    /** Columns of the change log table */
+    static final String COLUMN_SEQUENCE = "sequence";
+    static final String COLUMN_PET_ID = "pet_id";
+    static final String COLUMN_DELETED = "deleted";
+    static final String COLUMN_EXTERNAL_ID = "external_id";
+
+    /** Name of the table with the one row that says whether the log is turned off */
+    static final String STATE_TABLE_NAME = "pet_changes_state";
+
+    /** Column that is 1 while the log is turned off, and 0 otherwise */
+    static final String COLUMN_SUPPRESSED = "suppressed";
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetChangeLog() {
+    }
+
+    /**
+     * Create the change log, its state and the triggers that fill it, and log every pet that is
+     * already there, so the first sync uploads all of them.
+     *
+     * @param versionedColumns the columns of the pets table whose updates count as a change
+     */
+    static void createTables(SQLiteDatabase db, String versionedColumns) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_SEQUENCE + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_PET_ID + " INTEGER NOT NULL UNIQUE, "
+                + COLUMN_DELETED + " INTEGER NOT NULL, "
+                + COLUMN_EXTERNAL_ID + " TEXT);");
+        db.execSQL("CREATE TABLE " + STATE_TABLE_NAME + " ("
+                + COLUMN_SUPPRESSED + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + STATE_TABLE_NAME + " (" + COLUMN_SUPPRESSED + ") VALUES (0);");
+
+        // Replacing the row of the pet gives it a new sequence number.
+        String logChange = " WHEN (SELECT " + COLUMN_SUPPRESSED + " FROM " + STATE_TABLE_NAME
+                + ") = 0 BEGIN INSERT OR REPLACE INTO " + TABLE_NAME + " (" + COLUMN_PET_ID + ", "
+                + COLUMN_DELETED + ", " + COLUMN_EXTERNAL_ID + ") VALUES ";
+        db.execSQL("CREATE TRIGGER pet_changes_insert_trigger AFTER INSERT ON "
+                + PetEntry.TABLE_NAME + logChange + "(NEW." + PetEntry._ID + ", 0, NEW."
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + "); END;");
+        db.execSQL("CREATE TRIGGER pet_changes_update_trigger AFTER UPDATE OF " + versionedColumns
+                + " ON " + PetEntry.TABLE_NAME + logChange + "(NEW." + PetEntry._ID + ", 0, NEW."
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + "); END;");
+        db.execSQL("CREATE TRIGGER pet_changes_delete_trigger AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + logChange + "(OLD." + PetEntry._ID + ", 1, OLD."
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + "); END;");
+
+        db.execSQL("INSERT INTO " + TABLE_NAME + " (" + COLUMN_PET_ID + ", " + COLUMN_DELETED
+                + ", " + COLUMN_EXTERNAL_ID + ") SELECT " + PetEntry._ID + ", 0, "
+                + PetEntry.COLUMN_PET_EXTERNAL_ID + " FROM " + PetEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Turn the log off or on again. Only call this inside a transaction, and turn the log on again
+     * before the transaction ends, so no other write is ever left out by mistake.
+     */
+    static void setSuppressed(SQLiteDatabase db, boolean suppressed) {
+        ContentValues values = new ContentValues(1);
+        values.put(COLUMN_SUPPRESSED, suppressed ? 1 : 0);
+        db.update(STATE_TABLE_NAME, values, null, null);
+    }
+
+    /**
+     * Read the oldest changes into packed arrays, as described in {@link SyncChanges}. Pets that
+     * were moved to the archive after they changed are read from the archive.
+     */
+    static Bundle read(SQLiteDatabase db, int limit) {
+        Cursor cursor = db.rawQuery("SELECT c." + COLUMN_SEQUENCE + ", c." + COLUMN_PET_ID
+                + ", c." + COLUMN_DELETED + ", COALESCE(p." + PetEntry.COLUMN_PET_EXTERNAL_ID
+                + ", c." + COLUMN_EXTERNAL_ID + "), p." + PetEntry.COLUMN_PET_NAME
+                + ", p." + PetEntry.COLUMN_PET_BREED + ", p." + PetEntry.COLUMN_PET_GENDER
+                + ", p." + PetEntry.COLUMN_PET_WEIGHT + ", p." + PetEntry.COLUMN_PET_VERSION
+                + " FROM " + TABLE_NAME + " c LEFT JOIN " + PetEntry.ALL_VIEW_NAME + " p ON p."
+                + PetEntry._ID + " = c." + COLUMN_PET_ID
+                + " ORDER BY c." + COLUMN_SEQUENCE + " LIMIT " + limit, null);
+        try {
+            int count = cursor.getCount();
+            long[] sequences = new long[count];
+            long[] ids = new long[count];
+            boolean[] deleted = new boolean[count];
+            String[] externalIds = new String[count];
+            String[] names = new String[count];
+            String[] breeds = new String[count];
+            int[] genders = new int[count];
+            int[] weights = new int[count];
+            long[] versions = new long[count];
+
+            for (int i = 0; cursor.moveToNext(); i++) {
+                sequences[i] = cursor.getLong(0);
+                ids[i] = cursor.getLong(1);
+
+                // A pet that is gone without a delete being logged was deleted from the archive.
+                deleted[i] = cursor.getInt(2) != 0 || cursor.isNull(4);
+                externalIds[i] = cursor.getString(3);
+                names[i] = cursor.getString(4);
+                breeds[i] = cursor.getString(5);
+                genders[i] = cursor.getInt(6);
+                weights[i] = cursor.getInt(7);
+                versions[i] = cursor.getLong(8);
+            }
+
+            Bundle result = new Bundle();
+            result.putLongArray(SyncChanges.EXTRA_SEQUENCES, sequences);
+            result.putLongArray(SyncChanges.EXTRA_IDS, ids);
+            result.putBooleanArray(SyncChanges.EXTRA_DELETED, deleted);
+            result.putStringArray(SyncChanges.EXTRA_EXTERNAL_IDS, externalIds);
+            result.putStringArray(SyncChanges.EXTRA_NAMES, names);
+            result.putStringArray(SyncChanges.EXTRA_BREEDS, breeds);
+            result.putIntArray(SyncChanges.EXTRA_GENDERS, genders);
+            result.putIntArray(SyncChanges.EXTRA_WEIGHTS, weights);
+            result.putLongArray(SyncChanges.EXTRA_VERSIONS, versions);
+            result.putBoolean(SyncChanges.EXTRA_HAS_MORE, count == limit);
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Remove the changes up to and including the given sequence number, once they are uploaded.
+     *
+     * @return the number of changes removed
+     */
+    static int acknowledge(SQLiteDatabase db, long sequence) {
+        return db.delete(TABLE_NAME, COLUMN_SEQUENCE + "<=?",
+                new String[]{String.valueOf(sequence)});
+    }
+}
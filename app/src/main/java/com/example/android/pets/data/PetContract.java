@@ -41,7 +41,7 @@ public final class PetContract {
      * Use CONTENT_AUTHORITY to create the base of all URI's which apps will use to contact the
      * content provider.
      */
-    private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
+    static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
     /**
      * Possible path (appended to base content URI for possible URI's).
@@ -51,6 +51,66 @@ public final class PetContract {
      */
     static final String PATH_PETS = "pets";
 
+    /**
+     * Possible path (appended to the URI of a single pet) for the weight history of the pet.
+     */
+    static final String PATH_HISTORY = "history";
+
+    /**
+     * Possible path (appended to the pets path) for the pets in both the pets table and the
+     * archive.
+     */
+    static final String PATH_ALL = "all";
+
+    /**
+     * Possible path (appended to the pets path) for inserting or updating pets by external ID.
+     */
+    static final String PATH_UPSERT = "upsert";
+
+    /**
+     * Possible path (appended to the pets path) for the pets with a name close to a given name.
+     */
+    static final String PATH_FUZZY = "fuzzy";
+
+    /**
+     * Possible paths for the owners, the adoptions and the pets joined with their owners.
+     */
+    static final String PATH_OWNERS = "owners";
+    static final String PATH_ADOPTIONS = "adoptions";
+    static final String PATH_PETS_WITH_OWNER = "pets_with_owner";
+
+    /**
+     * Possible path for autocomplete suggestions of pet names and breeds.
+     */
+    static final String PATH_SUGGESTIONS = "suggestions";
+
+    /**
+     * Possible path for the pets of the other shelters, each of which has a database of its own.
+     */
+    static final String PATH_SHELTERS = "shelters";
+
+    /**
+     * Possible path for the long running jobs, such as deleting every pet.
+     */
+    static final String PATH_JOBS = "jobs";
+
+    /**
+     * Query parameter that marks a write as made by the sync, with the value "true". Such writes
+     * come from the server, so they aren't logged as local changes to upload. See
+     * {@link #asSyncAdapter}.
+     */
+    public static final String CALLER_IS_SYNC_ADAPTER = "caller_is_syncadapter";
+
+    /**
+     * Returns the given content URI marked as used by the sync, see
+     * {@link #CALLER_IS_SYNC_ADAPTER}.
+     */
+    public static Uri asSyncAdapter(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(CALLER_IS_SYNC_ADAPTER, "true")
+                .build();
+    }
+
     /**
      * Inner class that defines constant values for the pets database table.
      * Each entry in the table represents a single pet.
@@ -62,6 +122,21 @@ public final class PetContract {
          */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * The content URI to insert or update pets by their {@link #COLUMN_PET_EXTERNAL_ID}.
+         * Inserting into this URI updates the pet with the same external ID if there is one, and
+         * inserts a new pet otherwise. Use bulkInsert() to upsert many pets in one transaction.
+         */
+        public static final Uri UPSERT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_UPSERT);
+
+        /**
+         * The content URI to query the pets together with the archived pets. Pets that were
+         * adopted long ago are moved to the archive in the background, and {@link #CONTENT_URI}
+         * only returns the pets that haven't been archived. This URI is read only, and its rows
+         * have the extra {@link #COLUMN_PET_ARCHIVED} column.
+         */
+        public static final Uri ALL_CONTENT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_ALL);
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -79,6 +154,23 @@ public final class PetContract {
          */
         final static String TABLE_NAME = "pets";
 
+        /**
+         * Name of the database view that joins the pets table with the breeds table, so that each
+         * row has the breed name in {@link #COLUMN_PET_BREED}. All queries read from this view.
+         */
+        final static String VIEW_NAME = "pets_view";
+
+        /**
+         * Name of database table for archived pets
+         */
+        final static String ARCHIVE_TABLE_NAME = "pets_archive";
+
+        /**
+         * Name of the database view with the pets and the archived pets, see
+         * {@link #ALL_CONTENT_URI}.
+         */
+        final static String ALL_VIEW_NAME = "pets_all";
+
         /**
          * Unique ID number for the pet (only for use in the database table).
          *
@@ -100,6 +192,14 @@ public final class PetContract {
          */
         public final static String COLUMN_PET_BREED = "breed";
 
+        /**
+         * ID of the breed of the pet in the breeds table (only for use in the database table).
+         * The breed name is returned as {@link #COLUMN_PET_BREED} instead.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_PET_BREED_ID = "breed_id";
+
         /**
          * Gender of the pet.
          *
@@ -117,6 +217,94 @@ public final class PetContract {
          */
         public final static String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * ID of the pet in an external system, such as the central shelter server. Unique, but may
+         * be null for pets that were only ever entered on this device.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_PET_EXTERNAL_ID = "external_id";
+
+        /**
+         * Version of the pet, which goes up by one every time the pet is updated. It is set by
+         * the database and can't be written. Read it together with the pet, and pass it to
+         * {@link #buildVersionedUri} to update the pet only if nobody else has changed it since.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_VERSION = "version";
+
+        /**
+         * Collation key of the name in the device language (only for use in the database table).
+         * Sorting by {@link #COLUMN_PET_NAME} sorts by this column instead, so the order follows
+         * the rules of the language and can still walk an index.
+         *
+         * Type: BLOB
+         */
+        final static String COLUMN_PET_NAME_KEY = "name_key";
+
+        /**
+         * The name folded for fuzzy matching, and the Soundex code of the folded name (only for
+         * use in the database table). See {@link #buildFuzzyUri}.
+         *
+         * Type: TEXT
+         */
+        final static String COLUMN_PET_NAME_FOLD = "name_fold";
+        final static String COLUMN_PET_NAME_SOUNDEX = "name_soundex";
+
+        /**
+         * Whether the pet has been archived, 1 if it has and 0 if not. Only in the rows of
+         * {@link #ALL_CONTENT_URI}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_ARCHIVED = "archived";
+
+        /**
+         * Fingerprint of the name, breed, gender and weight of the pet, the same for pets that only
+         * differ in case, accents, punctuation or a few kilograms (only for use in the database
+         * table). See {@link #buildOnDuplicateUri}.
+         *
+         * Type: INTEGER
+         */
+        final static String COLUMN_PET_FINGERPRINT = "fingerprint";
+
+        /**
+         * ID of the older pet that this pet is a duplicate of, or null if it isn't known to be a
+         * duplicate. Set by inserts with {@link #ON_DUPLICATE_FLAG}, and for pets that were already
+         * there, in the background. Set again when the pet changes, and when the pet it duplicates
+         * is deleted or archived, the oldest of its duplicates takes its place. Only the provider
+         * writes it: inserts and updates that have it are rejected.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PET_DUPLICATE_OF = "duplicate_of";
+
+        /**
+         * Query parameter of the URI of a single pet with the version that an update expects the
+         * pet to have. See {@link #buildVersionedUri}.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Query parameter of the pets URIs that asks for a columnar cursor. See
+         * {@link #buildColumnarUri}.
+         */
+        public static final String QUERY_PARAMETER_COLUMNAR = "columnar";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that says what an insert does with a pet that is
+         * already there. See {@link #buildOnDuplicateUri}.
+         */
+        public static final String QUERY_PARAMETER_ON_DUPLICATE = "on_duplicate";
+
+        /**
+         * Possible values of {@link #QUERY_PARAMETER_ON_DUPLICATE}.
+         */
+        public static final String ON_DUPLICATE_REJECT = "reject";
+        public static final String ON_DUPLICATE_MERGE = "merge";
+        public static final String ON_DUPLICATE_FLAG = "flag";
+
         /**
          * Possible values for the gender of the pet.
          */
@@ -131,7 +319,790 @@ public final class PetContract {
         static boolean isValidGender(int gender) {
             return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
         }
+
+        /**
+         * Returns the URI of the given pet for a compare-and-set update. Updating this URI only
+         * changes the pet if its {@link #COLUMN_PET_VERSION} is still the given version, and
+         * throws a {@link PetVersionConflictException} if someone else has changed it since.
+         * No lock or transaction is held between reading the version and the update.
+         *
+         * @param petUri  content URI of the pet, e.g. "content://com.example.android.pets/pets/3"
+         * @param version of the pet when it was read
+         */
+        public static Uri buildVersionedUri(Uri petUri, long version) {
+            return petUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_EXPECTED_VERSION, String.valueOf(version))
+                    .build();
+        }
+
+        /**
+         * Returns the given pets URI, {@link #CONTENT_URI} or {@link #ALL_CONTENT_URI}, for a
+         * query that returns its rows in a cursor that holds them all in memory, one array per
+         * column. It costs one pass over the rows up front, after which moving to any row is
+         * free, so it suits large reads that jump around the result, in the app's own process.
+         * The projection can only have the ID, name, breed, gender, weight, external ID and
+         * version columns, and defaults to all of them.
+         *
+         * @param petsUri content URI of the pets, e.g. "content://com.example.android.pets/pets"
+         */
+        public static Uri buildColumnarUri(Uri petsUri) {
+            return petsUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_COLUMNAR, "true")
+                    .build();
+        }
+
+        /**
+         * Returns {@link #CONTENT_URI} for inserts that look for the pet before adding it. A pet is
+         * already there if it has the same name and breed, ignoring case, accents and
+         * punctuation, the same gender and a weight in the same 5kg range. What happens then
+         * depends on the mode:
+         *
+         * - {@link #ON_DUPLICATE_REJECT} doesn't add the pet. insert() returns null, and
+         *   bulkInsert() leaves it out of the count.
+         * - {@link #ON_DUPLICATE_MERGE} updates the pet that is there with the new values instead,
+         *   and insert() returns its URI.
+         * - {@link #ON_DUPLICATE_FLAG} adds the pet with {@link #COLUMN_PET_DUPLICATE_OF} set to
+         *   the pet that is there.
+         *
+         * Looking for the pet costs one lookup in the index of the fingerprints.
+         *
+         * @param mode one of the ON_DUPLICATE values
+         */
+        public static Uri buildOnDuplicateUri(String mode) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_ON_DUPLICATE, mode)
+                    .build();
+        }
+
+        /**
+         * Returns the URI to query the pets with a name close to the given name, closest first.
+         * Names that differ in case, accents, punctuation, a few typos, or letters from another
+         * alphabet that look the same, such as a Cyrillic "o", count as close. The URI is read
+         * only, and the sort order of a query is ignored.
+         *
+         * @param name to look for, e.g. "Totto" for
+         *             "content://com.example.android.pets/pets/fuzzy/Totto"
+         */
+        public static Uri buildFuzzyUri(String name) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_FUZZY)
+                    .appendPath(name)
+                    .build();
+        }
     }
 
-}
+    /**
+     * Inner class that defines constant values for the other shelters. Each shelter keeps its
+     * pets in a database of its own, so queries and writes for one shelter never scan or lock the
+     * pets of another. The pets of {@link PetEntry#CONTENT_URI} stay in the main database.
+     */
+    public static final class ShelterEntry {
+
+        /**
+         * The content URI under which the pets of every shelter are. Observe it to hear of changes
+         * to the pets of any shelter.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SHELTERS);
+
+        /**
+         * The content URI to read the pets of all shelters at once, from all the shelter databases
+         * in parallel. The rows have the columns of the pets, plus {@link #COLUMN_SHELTER}, and
+         * can be sorted in the same ways as the pets of one shelter. The URI is read only.
+         */
+        public static final Uri ALL_PETS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_PETS);
+
+        /**
+         * Column of {@link #ALL_PETS_URI} with the shelter of each pet. The IDs of pets are only
+         * unique within their shelter.
+         *
+         * Type: TEXT
+         */
+        public static final String COLUMN_SHELTER = "shelter";
+
+        /**
+         * Returns the content URI of the pets of the given shelter, in the shelter's own
+         * database, which is created the first time the shelter is used. The pets can be queried,
+         * inserted and deleted like those of {@link PetEntry#CONTENT_URI}. Append an ID with
+         * {@link android.content.ContentUris#withAppendedId} to query, update or delete a single
+         * pet.
+         *
+         * @param shelter name of the shelter, see {@link #isValidShelter}
+         */
+        public static Uri buildPetsUri(String shelter) {
+            if (!isValidShelter(shelter))
+                throw new IllegalArgumentException("Invalid shelter name " + shelter);
+
+            return CONTENT_URI.buildUpon()
+                    .appendPath(shelter)
+                    .appendPath(PATH_PETS)
+                    .build();
+        }
+
+        /**
+         * Returns whether the given name can be used for a shelter: 1 to 64 letters, digits or
+         * underscores.
+         */
+        public static boolean isValidShelter(String shelter) {
+            return shelter != null && shelter.matches("[A-Za-z0-9_]{1,64}");
+        }
+
+        // To prevent someone from accidentally instantiating this class, give it an empty
+        // constructor.
+        private ShelterEntry() {
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the owners database table. Each entry in the
+     * table represents a person who has adopted one or more pets.
+     */
+    public static final class OwnerEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the owner data in the provider.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_OWNERS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of owners.
+         */
+        static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_OWNERS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single owner.
+         */
+        static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_OWNERS;
+
+        /**
+         * Name of database table for owners
+         */
+        final static String TABLE_NAME = "owners";
+
+        /**
+         * Unique ID number for the owner.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the owner.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_OWNER_NAME = "name";
+
+        /**
+         * Phone number of the owner, may be null.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_OWNER_PHONE = "phone";
+    }
+
+    /**
+     * Inner class that defines constant values for the adoptions database table. Each entry in the
+     * table links one pet to the owner who adopted it. A pet has at most one adoption, so the ID of
+     * the adoption is the ID of the pet. Deleting the pet or the owner deletes the adoption too.
+     */
+    public static final class AdoptionEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the adoptions in the provider. Append the ID of a pet to
+         * access the adoption of that pet. Inserting an adoption for a pet that already has one
+         * replaces it.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_ADOPTIONS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of adoptions.
+         */
+        static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_ADOPTIONS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single adoption.
+         */
+        static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_ADOPTIONS;
+
+        /**
+         * Name of database table for adoptions
+         */
+        final static String TABLE_NAME = "adoptions";
+
+        /**
+         * ID of the adopted pet, see {@link PetEntry#_ID}.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the owner who adopted the pet, see {@link OwnerEntry#_ID}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_OWNER_ID = "owner_id";
+
+        /**
+         * Time of the adoption in milliseconds since the epoch. Defaults to the time the adoption
+         * was inserted.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ADOPTED_AT = "adopted_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the pets joined with their owners. Each row has
+     * every column of {@link PetEntry}, plus the owner columns below, which are null for pets that
+     * haven't been adopted. The join is done by the database in one query, so a list can show the
+     * owner of every pet without looking each one up.
+     */
+    public static final class PetWithOwnerEntry implements BaseColumns {
+
+        /**
+         * The content URI to query the pets with their owners. It is read only.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS_WITH_OWNER);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of pets with their owners.
+         */
+        static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_PETS_WITH_OWNER;
+
+        /**
+         * Name of the database view that joins the pets view with the adoptions and owners tables.
+         */
+        final static String VIEW_NAME = "pets_with_owner";
+
+        /**
+         * ID of the owner of the pet, or null.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_OWNER_ID = "owner_id";
+
+        /**
+         * Name of the owner of the pet, or null.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_OWNER_NAME = "owner_name";
+
+        /**
+         * Time the pet was adopted in milliseconds since the epoch, or null.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ADOPTED_AT = "adopted_at";
+    }
+
+    /**
+     * Inner class that defines constant values for the weight history of a pet. Each row is one
+     * point of the history: for short ranges, one recorded weight (so the minimum, average and
+     * maximum are the same), and for long ranges, a summary of all the weights recorded in one day
+     * or one week.
+     */
+    public static final class HistoryEntry implements BaseColumns {
+
+        /**
+         * The MIME type of the history of a pet.
+         */
+        static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_PETS + "/" + PATH_HISTORY;
+
+        /**
+         * Query parameters for the start and end of the range of the history, in milliseconds
+         * since the epoch. The range defaults to the whole history up to now.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
 
+        /**
+         * Unique ID number for the point within one result.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Time of the point in milliseconds since the epoch. For a summary, the start of the day or
+         * week (in UTC, weeks start on Monday).
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TIME = "time";
+
+        /**
+         * Lowest, average and highest weight of the point.
+         *
+         * Type: INTEGER for the lowest and highest, REAL for the average
+         */
+        public final static String COLUMN_MIN_WEIGHT = "min_weight";
+        public final static String COLUMN_AVG_WEIGHT = "avg_weight";
+        public final static String COLUMN_MAX_WEIGHT = "max_weight";
+
+        /**
+         * Number of weights recorded for the point.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SAMPLE_COUNT = "sample_count";
+
+        /**
+         * Returns the content URI of the weight history of the given pet between two times.
+         *
+         * @param petUri content URI of the pet, e.g. "content://com.example.android.pets/pets/3"
+         * @param from   start of the range in milliseconds since the epoch
+         * @param to     end of the range in milliseconds since the epoch
+         */
+        public static Uri buildHistoryUri(Uri petUri, long from, long to) {
+            return petUri.buildUpon()
+                    .appendPath(PATH_HISTORY)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(to))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines the {@link android.content.ContentProvider#call} method for reading
+     * pets in bulk. Instead of a cursor, the pets come back in a {@link android.os.Bundle} of
+     * packed arrays, one per column, which is much cheaper to send to another process than a
+     * cursor window.
+     *
+     * Pets are returned in order of their ID, a page at a time. To read the next page, call the
+     * method again with {@link #EXTRA_AFTER_ID} set to the last ID of the previous page, until
+     * {@link #EXTRA_HAS_MORE} is false.
+     */
+    public static final class BulkRead {
+
+        /**
+         * Name of the method to pass to {@link ContentResolver#call}, with
+         * {@link PetEntry#CONTENT_URI} as the URI.
+         */
+        public static final String METHOD = "bulk_read";
+
+        /**
+         * Argument (long): only return pets with an ID greater than this. Defaults to 0.
+         */
+        public static final String EXTRA_AFTER_ID = "after_id";
+
+        /**
+         * Argument (int): maximum number of pets to return. Defaults to {@link #DEFAULT_LIMIT} and
+         * can't be more than {@link #MAX_LIMIT}, which keeps the result well within the size limit
+         * of a Binder transaction.
+         */
+        public static final String EXTRA_LIMIT = "limit";
+
+        public static final int DEFAULT_LIMIT = 2000;
+        public static final int MAX_LIMIT = 10000;
+
+        /**
+         * Result (long[]): the {@link PetEntry#_ID} of each pet.
+         */
+        public static final String EXTRA_IDS = "ids";
+
+        /**
+         * Result (int[]): the {@link PetEntry#COLUMN_PET_GENDER} of each pet.
+         */
+        public static final String EXTRA_GENDERS = "genders";
+
+        /**
+         * Result (int[]): the {@link PetEntry#COLUMN_PET_WEIGHT} of each pet.
+         */
+        public static final String EXTRA_WEIGHTS = "weights";
+
+        /**
+         * Result (String[]): the string table. Each distinct name and breed of the page is in here
+         * once.
+         */
+        public static final String EXTRA_STRINGS = "strings";
+
+        /**
+         * Result (int[]): for each pet, the index in {@link #EXTRA_STRINGS} of its name.
+         */
+        public static final String EXTRA_NAME_INDEXES = "name_indexes";
+
+        /**
+         * Result (int[]): for each pet, the index in {@link #EXTRA_STRINGS} of its breed, or -1 if
+         * it has no breed.
+         */
+        public static final String EXTRA_BREED_INDEXES = "breed_indexes";
+
+        /**
+         * Result (boolean): whether there may be more pets after this page.
+         */
+        public static final String EXTRA_HAS_MORE = "has_more";
+
+        // To prevent someone from accidentally instantiating this class, give it an empty
+        // constructor.
+        private BulkRead() {
+        }
+    }
+
+    /**
+     * Inner class that defines the {@link android.content.ContentProvider#call} methods for
+     * taking a snapshot of the whole database and restoring it later. Pass the name of the
+     * snapshot as the argument, made of letters, digits, "-", "_" and ".". Snapshots are kept in
+     * the app's private files.
+     *
+     * Taking a snapshot doesn't stop other readers and writers. A restore replaces the database in
+     * one step: calls that are running finish on the old database first, and calls made in the
+     * meantime wait for the new one. Cursors returned before a restore can't be read any further.
+     *
+     * A snapshot holds the main database only. The databases of the shelters, see
+     * {@link ShelterEntry}, are neither taken nor restored, and keep their pets across a restore.
+     */
+    public static final class Snapshot {
+
+        /**
+         * Name of the method that takes a snapshot, replacing any snapshot with the same name. Pass
+         * it to {@link ContentResolver#call}, with {@link PetEntry#CONTENT_URI} as the URI.
+         */
+        public static final String METHOD_TAKE = "take_snapshot";
+
+        /**
+         * Name of the method that replaces the database with a snapshot.
+         */
+        public static final String METHOD_RESTORE = "restore_snapshot";
+
+        /**
+         * Result (String): the path of the snapshot file.
+         */
+        public static final String EXTRA_PATH = "path";
+
+        /**
+         * Result (long): the size of the snapshot file in bytes.
+         */
+        public static final String EXTRA_SIZE = "size";
+
+        // To prevent someone from accidentally instantiating this class, give it an empty
+        // constructor.
+        private Snapshot() {
+        }
+    }
+
+    /**
+     * Inner class that defines the {@link android.content.ContentProvider#call} methods the sync
+     * uses to read the local changes to upload. Every insert, update and delete of a pet is
+     * logged, except the ones made through a URI from {@link #asSyncAdapter}. A pet that changes
+     * several times is logged once, with its latest data.
+     *
+     * Changes are read oldest first, a page at a time, into packed arrays like those of
+     * {@link BulkRead}. Once a page is uploaded, acknowledge it with its last sequence number, and
+     * read the next page, until {@link #EXTRA_HAS_MORE} is false. A pet that changes again while
+     * its change is being uploaded gets a new sequence number, so it isn't lost.
+     */
+    public static final class SyncChanges {
+
+        /**
+         * Name of the method that reads the oldest changes. Pass it to
+         * {@link ContentResolver#call}, with {@link PetEntry#CONTENT_URI} as the URI.
+         */
+        public static final String METHOD_READ = "read_sync_changes";
+
+        /**
+         * Name of the method that removes the changes up to {@link #EXTRA_SEQUENCE} from the log.
+         */
+        public static final String METHOD_ACKNOWLEDGE = "acknowledge_sync_changes";
+
+        /**
+         * Argument of {@link #METHOD_READ} (int): maximum number of changes to return. Defaults to
+         * {@link #DEFAULT_LIMIT} and can't be more than {@link #MAX_LIMIT}.
+         */
+        public static final String EXTRA_LIMIT = "limit";
+
+        public static final int DEFAULT_LIMIT = 1000;
+        public static final int MAX_LIMIT = 5000;
+
+        /**
+         * Argument of {@link #METHOD_ACKNOWLEDGE} (long): the last sequence number to remove.
+         */
+        public static final String EXTRA_SEQUENCE = "sequence";
+
+        /**
+         * Result (long[]): the sequence number of each change, in increasing order.
+         */
+        public static final String EXTRA_SEQUENCES = "sequences";
+
+        /**
+         * Result (long[]): the {@link PetEntry#_ID} of the pet of each change.
+         */
+        public static final String EXTRA_IDS = "ids";
+
+        /**
+         * Result (boolean[]): whether each pet was deleted. Only the ID and external ID of a
+         * deleted pet are set.
+         */
+        public static final String EXTRA_DELETED = "deleted";
+
+        /**
+         * Result (String[]): the {@link PetEntry#COLUMN_PET_EXTERNAL_ID} of each pet, or null.
+         */
+        public static final String EXTRA_EXTERNAL_IDS = "external_ids";
+
+        /**
+         * Result (String[]): the name and breed of each pet.
+         */
+        public static final String EXTRA_NAMES = "names";
+        public static final String EXTRA_BREEDS = "breeds";
+
+        /**
+         * Result (int[]): the gender and weight of each pet.
+         */
+        public static final String EXTRA_GENDERS = "genders";
+        public static final String EXTRA_WEIGHTS = "weights";
+
+        /**
+         * Result (long[]): the {@link PetEntry#COLUMN_PET_VERSION} of each pet.
+         */
+        public static final String EXTRA_VERSIONS = "versions";
+
+        /**
+         * Result (boolean): whether there may be more changes after this page.
+         */
+        public static final String EXTRA_HAS_MORE = "has_more";
+
+        // To prevent someone from accidentally instantiating this class, give it an empty
+        // constructor.
+        private SyncChanges() {
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the autocomplete suggestions. Suggestions are
+     * not stored in a table, the provider answers them from an in-memory index of the names and
+     * breeds in the pets table.
+     */
+    public static final class SuggestionEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the suggestions in the provider.
+         */
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUGGESTIONS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of suggestions.
+         */
+        static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_SUGGESTIONS;
+
+        /**
+         * Possible kinds of suggestions, appended to {@link #CONTENT_URI}.
+         */
+        static final String KIND_NAME = "name";
+        static final String KIND_BREED = "breed";
+
+        /**
+         * Unique ID number for the suggestion within one result.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Text of the suggestion.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_SUGGESTION = "suggestion";
+
+        /**
+         * Returns the content URI for pet names that start with the given prefix.
+         */
+        public static Uri buildNameUri(String prefix) {
+            return CONTENT_URI.buildUpon().appendPath(KIND_NAME).appendPath(prefix).build();
+        }
+
+        /**
+         * Returns the content URI for breeds that start with the given prefix.
+         */
+        public static Uri buildBreedUri(String prefix) {
+            return CONTENT_URI.buildUpon().appendPath(KIND_BREED).appendPath(prefix).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the breeds database table. Each breed name is
+     * stored once in this table, and the pets table refers to it by ID.
+     */
+    static final class BreedEntry implements BaseColumns {
+
+        /**
+         * Name of database table for breeds
+         */
+        final static String TABLE_NAME = "breeds";
+
+        /**
+         * Unique ID number for the breed.
+         *
+         * Type: INTEGER
+         */
+        final static String _ID = BaseColumns._ID;
+
+        /**
+         * Name of the breed. The names are unique.
+         *
+         * Type: TEXT
+         */
+        final static String COLUMN_BREED_NAME = "name";
+
+        /**
+         * ID of the row that stands for "no breed". Its name is null, so pets without a breed still
+         * have a breed ID and the breeds table can be joined without a LEFT JOIN.
+         */
+        final static long NO_BREED_ID = 0;
+    }
+
+    /**
+     * Inner class that defines constant values for the jobs database table. Each entry is an
+     * operation on many pets, such as deleting every pet, that runs in the background a chunk at a
+     * time. Insert a row with a {@link #COLUMN_JOB_TYPE} to start one, and query its URI to follow
+     * its progress. Each chunk is one transaction that also saves the progress, so a job that is
+     * cut short, even by the process being killed, carries on where it stopped the next time jobs
+     * run. Jobs run one at a time, oldest first.
+     */
+    public static final class JobEntry implements BaseColumns {
+
+        /**
+         * The content URI to access the jobs in the provider.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_JOBS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a list of jobs.
+         */
+        static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_JOBS;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for a single job.
+         */
+        static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_JOBS;
+
+        /**
+         * Name of database table for jobs
+         */
+        final static String TABLE_NAME = "jobs";
+
+        /**
+         * Unique ID number for the job.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * What the job does, one of the TYPE values. The only column of an insert.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_JOB_TYPE = "type";
+
+        /**
+         * Whether the job is waiting, running, done or has failed, one of the STATE values.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_JOB_STATE = "state";
+
+        /**
+         * Number of pets the job has dealt with so far.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_JOB_PROGRESS = "progress";
+
+        /**
+         * Number of pets the job expects to deal with, counted when it first runs, or null if it
+         * hasn't run yet or can't tell in advance.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_JOB_TOTAL = "total";
+
+        /**
+         * Message of the error that made the job fail, or null.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_JOB_ERROR = "error";
+
+        /**
+         * Time the job was started, and time it last saved its progress, in milliseconds since
+         * the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_JOB_CREATED_AT = "created_at";
+        public final static String COLUMN_JOB_UPDATED_AT = "updated_at";
+
+        /**
+         * Possible values for the type of the job: delete every pet, move the inactive pets to the
+         * archive, give the pets without a fingerprint theirs and flag their duplicates, and
+         * rewrite the database once so it can give free pages back a few at a time. The last one
+         * is added by the provider itself when the database needs it.
+         */
+        public static final String TYPE_DELETE_ALL_PETS = "delete_all_pets";
+        public static final String TYPE_ARCHIVE_PETS = "archive_pets";
+        public static final String TYPE_DEDUPLICATE_PETS = "deduplicate_pets";
+        public static final String TYPE_ENABLE_INCREMENTAL_VACUUM = "enable_incremental_vacuum";
+
+        /**
+         * Possible values for the state of the job.
+         */
+        public static final int STATE_PENDING = 0;
+        public static final int STATE_RUNNING = 1;
+        public static final int STATE_DONE = 2;
+        public static final int STATE_FAILED = 3;
+
+        /**
+         * Returns whether or not the given type is one of the TYPE values.
+         */
+        static boolean isValidType(String type) {
+            return TYPE_DELETE_ALL_PETS.equals(type) || TYPE_ARCHIVE_PETS.equals(type)
+                    || TYPE_DEDUPLICATE_PETS.equals(type)
+                    || TYPE_ENABLE_INCREMENTAL_VACUUM.equals(type);
+        }
+
+        /**
+         * Name of the {@link android.content.ContentProvider#call} method that runs the jobs that
+         * aren't finished, until there are none left or {@link #METHOD_STOP} is called. Pass it to
+         * {@link ContentResolver#call}, with {@link #CONTENT_URI} as the URI. The app's job
+         * service calls it, so there is no need to call it after an insert.
+         */
+        static final String METHOD_RUN = "run_jobs";
+
+        /**
+         * Name of the method that asks the jobs that are running to stop after their current
+         * chunk. They carry on the next time jobs run.
+         */
+        static final String METHOD_STOP = "stop_jobs";
+
+        /**
+         * Result of {@link #METHOD_RUN} (boolean): whether every job is finished, rather than
+         * stopped.
+         */
+        static final String EXTRA_FINISHED = "finished";
+
+        // To prevent someone from accidentally instantiating this class, give it an empty
+        // constructor.
+        private JobEntry() {
+        }
+    }
+}
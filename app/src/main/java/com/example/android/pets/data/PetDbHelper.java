@@ -19,7 +19,11 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.example.android.pets.data.PetContract.AdoptionEntry;
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.OwnerEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetWithOwnerEntry;
 
 /**
  * Database helper for Pets app. Manages database creation and version management.
@@ -34,7 +38,17 @@ class PetDbHelper extends SQLiteOpenHelper {
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 13;
+
+    /**
+     * Columns of the pets table whose updates move a pet on to a new version, and are logged as
+     * changes to upload. Add new columns that users can change here.
+     */
+    private static final String VERSIONED_COLUMNS = PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED_ID + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ", "
+            + PetEntry.COLUMN_PET_EXTERNAL_ID;
 
     /**
      * Constructs a new instance of {@link PetDbHelper}.
@@ -42,7 +56,18 @@ class PetDbHelper extends SQLiteOpenHelper {
      * @param context of the app
      */
     PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * Constructs a new instance of {@link PetDbHelper} for a database with the same tables under
+     * another name, such as the database of a shelter, see {@link ShelterShards}.
+     *
+     * @param context      of the app
+     * @param databaseName name of the database file
+     */
+    PetDbHelper(Context context, String databaseName) {
+        super(context, databaseName, null, DATABASE_VERSION);
     }
 
     /**
@@ -60,13 +85,302 @@ class PetDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_PETS_TABLE);
+
+        // Bring the version 1 schema created above up to date with the same steps as an upgrade.
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Each step upgrades the schema by one
+     * version, so a database at any older version runs every step it is missing, in order.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        if (oldVersion < 2) {
+            // Version 2 adds the indexes behind the sort orders and filters of the catalog.
+            db.execSQL("CREATE INDEX pets_name_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_NAME + ");");
+            db.execSQL("CREATE INDEX pets_breed_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_BREED + ");");
+            db.execSQL("CREATE INDEX pets_weight_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_WEIGHT + ");");
+            db.execSQL("CREATE INDEX pets_gender_weight_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");");
+        }
+
+        if (oldVersion < 3) {
+            // Version 3 moves the breed names into their own table.
+            upgradeToBreedsTable(db);
+        }
+
+        if (oldVersion < 4) {
+            // Version 4 adds the external ID that pets are upserted by.
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_EXTERNAL_ID + " TEXT;");
+            db.execSQL("CREATE UNIQUE INDEX pets_external_id_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_EXTERNAL_ID + ");");
+            createPetsView(db);
+        }
+
+        if (oldVersion < 5) {
+            /*
+             * Version 5 adds the weight history, starting with the weight every pet has now. The
+             * history of a pet is deleted together with the pet.
+             */
+            WeightHistory.createTables(db);
+            WeightHistory.createDeleteTrigger(db, false);
+            WeightHistory.recordCurrentWeights(db, System.currentTimeMillis());
+        }
+
+        if (oldVersion < 6) {
+            // Version 6 adds the owners of the pets.
+            createOwnerTables(db);
+        }
+
+        if (oldVersion < 7) {
+            // Version 7 adds the version of each pet, for compare-and-set updates.
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+            createVersionTrigger(db);
+            createPetsView(db);
+        }
+
+        if (oldVersion < 8) {
+            /*
+             * Version 8 adds the archive of pets that were adopted long ago. Archiving deletes a
+             * pet from the pets table, so the weight history trigger now leaves the history of
+             * archived pets.
+             */
+            PetArchiver.createTables(db);
+            WeightHistory.createDeleteTrigger(db, true);
+        }
+
+        if (oldVersion < 9) {
+            /*
+             * Version 9 adds the collation keys of the names, in both tiers. The keys are made in
+             * the background the first time the provider starts, see {@link NameKeys}. Making
+             * them only writes the key column, so the version trigger now only fires for the
+             * columns a user can change.
+             */
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_NAME_KEY + " BLOB;");
+            db.execSQL("ALTER TABLE " + PetEntry.ARCHIVE_TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_NAME_KEY + " BLOB;");
+            db.execSQL("CREATE INDEX pets_name_key_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_NAME_KEY + ");");
+            NameKeys.createTables(db);
+
+            db.execSQL("DROP TRIGGER pets_version_trigger;");
+            createVersionTrigger(db);
+            createPetsView(db);
+            PetArchiver.createAllPetsView(db);
+        }
+
+        if (oldVersion < 10) {
+            /*
+             * Version 10 adds the indexes for fuzzy name matching, see {@link FuzzyNames}. Only
+             * the pets table gets them, since the fuzzy URI only reads pets that aren't archived.
+             */
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_NAME_FOLD + " TEXT;");
+            db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                    + PetEntry.COLUMN_PET_NAME_SOUNDEX + " TEXT;");
+            db.execSQL("CREATE INDEX pets_name_fold_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_NAME_FOLD + ");");
+            db.execSQL("CREATE INDEX pets_name_soundex_index ON " + PetEntry.TABLE_NAME
+                    + " (" + PetEntry.COLUMN_PET_NAME_SOUNDEX + ");");
+            FuzzyNames.createTables(db);
+            FuzzyNames.indexExistingNames(db);
+            createPetsView(db);
+        }
+
+        if (oldVersion < 11) {
+            // Version 11 adds the log of the changes to upload, see {@link PetChangeLog}.
+            PetChangeLog.createTables(db, VERSIONED_COLUMNS);
+        }
+
+        if (oldVersion < 12) {
+            /*
+             * Version 12 adds the fingerprints that find duplicate pets, see
+             * {@link PetFingerprints}. The pets that are already there get theirs in the
+             * background the first time the provider starts. The duplicates of a deleted or
+             * archived pet are handed to the oldest of them, see
+             * {@link PetFingerprints#createDeleteTrigger}.
+             */
+            PetFingerprints.createColumns(db);
+            PetFingerprints.createDeleteTrigger(db);
+            createPetsView(db);
+        }
+
+        if (oldVersion < 13) {
+            // Version 13 adds the table of the background jobs, see {@link PetJobs}.
+            PetJobs.createTable(db);
+        }
+    }
+
+    /**
+     * This is called when the database is opened, before it is created or upgraded. A new
+     * database is switched to incremental vacuum here, see {@link DatabaseMaintenance}. SQLite
+     * only applies that setting with a VACUUM once any table exists, and Android has already
+     * created its android_metadata table by now, but the VACUUM of a database that holds nothing
+     * else is instant. Older databases are switched by a job instead, and so are the ones created
+     * on Android 4.0.3, which doesn't call this.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (!db.isReadOnly() && db.getVersion() == 0) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+            db.execSQL("VACUUM;");
+        }
+    }
+
+    /**
+     * This is called every time the database is opened, after any upgrade. SQLite only enforces
+     * foreign keys (and so only cascades deletes) when asked to, once per connection.
+     *
+     * The database uses a write-ahead log, so readers don't wait for writers and the other way
+     * round, which also lets {@link PetSnapshots} copy the database while it is in use.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            db.execSQL("PRAGMA foreign_keys = ON;");
+            db.enableWriteAheadLogging();
+        }
+    }
+
+    /**
+     * Create the owners and adoptions tables, and the view that joins the pets with their owners.
+     *
+     * The ID of an adoption is the ID of the pet, so joining a pet to its adoption, and an adoption
+     * to its owner, are both lookups of a primary key. The owner index covers the reverse lookup of
+     * the pets of an owner, which SQLite also needs to cascade the delete of an owner without
+     * scanning every adoption.
+     */
+    private void createOwnerTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + OwnerEntry.TABLE_NAME + " ("
+                + OwnerEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + OwnerEntry.COLUMN_OWNER_NAME + " TEXT NOT NULL, "
+                + OwnerEntry.COLUMN_OWNER_PHONE + " TEXT);");
+        db.execSQL("CREATE INDEX owners_name_index ON " + OwnerEntry.TABLE_NAME
+                + " (" + OwnerEntry.COLUMN_OWNER_NAME + ");");
+
+        db.execSQL("CREATE TABLE " + AdoptionEntry.TABLE_NAME + " ("
+                + AdoptionEntry._ID + " INTEGER PRIMARY KEY REFERENCES " + PetEntry.TABLE_NAME
+                + " ON DELETE CASCADE, "
+                + AdoptionEntry.COLUMN_OWNER_ID + " INTEGER NOT NULL REFERENCES "
+                + OwnerEntry.TABLE_NAME + " ON DELETE CASCADE, "
+                + AdoptionEntry.COLUMN_ADOPTED_AT + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX adoptions_owner_index ON " + AdoptionEntry.TABLE_NAME
+                + " (" + AdoptionEntry.COLUMN_OWNER_ID + ", " + AdoptionEntry._ID + ");");
+
+        createPetsWithOwnerView(db);
+    }
+
+    /**
+     * Create the trigger that moves every updated pet on to the next version. Doing this in the
+     * database means every kind of update (including upserts) counts, and the version can't be
+     * set by the values of an update. The trigger's own update doesn't fire it again, since SQLite
+     * triggers aren't recursive by default.
+     *
+     * Only updates of the columns in {@link #VERSIONED_COLUMNS} fire the trigger, so columns that
+     * the database maintains itself can be rewritten without a new version.
+     */
+    private void createVersionTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER pets_version_trigger AFTER UPDATE OF " + VERSIONED_COLUMNS
+                + " ON " + PetEntry.TABLE_NAME + " WHEN NEW." + PetEntry.COLUMN_PET_VERSION
+                + " = OLD." + PetEntry.COLUMN_PET_VERSION
+                + " BEGIN UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_VERSION
+                + " = OLD." + PetEntry.COLUMN_PET_VERSION + " + 1 WHERE " + PetEntry._ID
+                + " = NEW." + PetEntry._ID + "; END;");
+    }
+
+    /**
+     * Store each breed name once in the breeds table, and replace the breed column of the pets
+     * table with the ID of the breed. SQLite can't drop a column, so the pets table is copied into
+     * a new table with the new layout, keeping the IDs of the pets.
+     */
+    private void upgradeToBreedsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BreedEntry.TABLE_NAME + " ("
+                + BreedEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + BreedEntry.COLUMN_BREED_NAME + " TEXT UNIQUE);");
+
+        // The row for pets without a breed
+        db.execSQL("INSERT INTO " + BreedEntry.TABLE_NAME + " (" + BreedEntry._ID + ", "
+                + BreedEntry.COLUMN_BREED_NAME + ") VALUES (" + BreedEntry.NO_BREED_ID + ", NULL);");
+
+        db.execSQL("INSERT INTO " + BreedEntry.TABLE_NAME + " (" + BreedEntry.COLUMN_BREED_NAME + ")"
+                + " SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL;");
+
+        db.execSQL("CREATE TABLE pets_new ("
+                + PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PetEntry.COLUMN_PET_NAME + " TEXT NOT NULL, "
+                + PetEntry.COLUMN_PET_BREED_ID + " INTEGER NOT NULL DEFAULT "
+                + BreedEntry.NO_BREED_ID + " REFERENCES " + BreedEntry.TABLE_NAME + ", "
+                + PetEntry.COLUMN_PET_GENDER + " INTEGER NOT NULL, "
+                + PetEntry.COLUMN_PET_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+
+        db.execSQL("INSERT INTO pets_new (" + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                + PetEntry.COLUMN_PET_BREED_ID + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ")"
+                + " SELECT p." + PetEntry._ID + ", p." + PetEntry.COLUMN_PET_NAME + ", "
+                + "IFNULL(b." + BreedEntry._ID + ", " + BreedEntry.NO_BREED_ID + "), "
+                + "p." + PetEntry.COLUMN_PET_GENDER + ", p." + PetEntry.COLUMN_PET_WEIGHT
+                + " FROM " + PetEntry.TABLE_NAME + " p LEFT JOIN " + BreedEntry.TABLE_NAME + " b"
+                + " ON b." + BreedEntry.COLUMN_BREED_NAME + " = p." + PetEntry.COLUMN_PET_BREED + ";");
+
+        // Carry the AUTOINCREMENT counter over, so the IDs of deleted pets are never reused.
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'pets_new';");
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT 'pets_new', seq"
+                + " FROM sqlite_sequence WHERE name = '" + PetEntry.TABLE_NAME + "';");
+
+        db.execSQL("DROP TABLE " + PetEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE pets_new RENAME TO " + PetEntry.TABLE_NAME + ";");
+
+        // Dropping the old table dropped its indexes, so create them again.
+        db.execSQL("CREATE INDEX pets_name_index ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_NAME + ");");
+        db.execSQL("CREATE INDEX pets_breed_id_index ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_BREED_ID + ");");
+        db.execSQL("CREATE INDEX pets_weight_index ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_WEIGHT + ");");
+        db.execSQL("CREATE INDEX pets_gender_weight_index ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");");
+
+        createPetsView(db);
+    }
+
+    /**
+     * Create the view that all pet queries read from. It has every column of the pets table, plus
+     * the breed name in {@link PetEntry#COLUMN_PET_BREED}, so readers don't need to know about the
+     * breeds table. Call this again after changing the columns of the pets table.
+     */
+    private void createPetsView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + PetEntry.VIEW_NAME + ";");
+        db.execSQL("CREATE VIEW " + PetEntry.VIEW_NAME + " AS SELECT p.*, b."
+                + BreedEntry.COLUMN_BREED_NAME + " AS " + PetEntry.COLUMN_PET_BREED
+                + " FROM " + PetEntry.TABLE_NAME + " p JOIN " + BreedEntry.TABLE_NAME + " b"
+                + " ON p." + PetEntry.COLUMN_PET_BREED_ID + " = b." + BreedEntry._ID + ";");
+    }
+
+    /**
+     * Create the view of the pets with their owners. It has every column of the pets view, plus
+     * the owner columns of {@link PetWithOwnerEntry}, which are null for pets without an owner.
+     */
+    private void createPetsWithOwnerView(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + PetWithOwnerEntry.VIEW_NAME + ";");
+        db.execSQL("CREATE VIEW " + PetWithOwnerEntry.VIEW_NAME + " AS SELECT p.*, "
+                + "o." + OwnerEntry._ID + " AS " + PetWithOwnerEntry.COLUMN_OWNER_ID + ", "
+                + "o." + OwnerEntry.COLUMN_OWNER_NAME + " AS " + PetWithOwnerEntry.COLUMN_OWNER_NAME
+                + ", a." + AdoptionEntry.COLUMN_ADOPTED_AT
+                + " AS " + PetWithOwnerEntry.COLUMN_ADOPTED_AT
+                + " FROM " + PetEntry.VIEW_NAME + " p"
+                + " LEFT JOIN " + AdoptionEntry.TABLE_NAME + " a"
+                + " ON a." + AdoptionEntry._ID + " = p." + PetEntry._ID
+                + " LEFT JOIN " + OwnerEntry.TABLE_NAME + " o"
+                + " ON o." + OwnerEntry._ID + " = a." + AdoptionEntry.COLUMN_OWNER_ID + ";");
     }
 }
\ No newline at end of file
@@ -0,0 +1,245 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Finds pets that are already there when a pet comes in, see {@link PetEntry#buildOnDuplicateUri}.
+ *
+ * Every pet in the pets table has a fingerprint: a 64-bit FNV-1a hash of its folded name and
+ * breed (see {@link FuzzyNames#fold}), its gender and its weight in steps of
+ * {@link #WEIGHT_STEP_KG}. Two pets that only differ in case, accents, punctuation or a few
+ * kilograms get the same fingerprint, so looking for a duplicate is one lookup in the index of the
+ * fingerprints instead of comparing the names of every pet.
+ *
+ * New pets get their fingerprint when they are written. The pets that were there before the
+ * fingerprints were added get theirs in the background with {@link #deduplicateBatch}, which also
+ * flags the ones that duplicate an older pet. Archived pets have no fingerprint, since only the
+ * pets at the shelter can be duplicated by a pet coming in.
+ *
+ * A pet that changes gets its fingerprint and its duplicate flag again with {@link #refresh}. When
+ * an original pet is deleted, archived or changes, the oldest of its duplicates takes its place and
+ * the other duplicates point to that one instead, so a duplicate always points to a pet that is
+ * still there with the same fingerprint.
+ */
+final class PetFingerprints {
+
+    /** Number of kilograms in one step of the weight that goes into the fingerprint */
+    static final int WEIGHT_STEP_KG = 5;
+
+    /** Maximum number of pets that get a fingerprint in one batch */
+    static final int BATCH_SIZE = 200;
+
+    /** Offset basis and prime of the 64-bit FNV-1a hash */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetFingerprints() {
+    }
+
+    /**
+     * Add the fingerprint and duplicate columns and the index of the fingerprints to the pets
+     * table. The existing pets are left without a fingerprint, for {@link #deduplicateBatch}.
+     */
+    static void createColumns(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                + PetEntry.COLUMN_PET_FINGERPRINT + " INTEGER;");
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN "
+                + PetEntry.COLUMN_PET_DUPLICATE_OF + " INTEGER;");
+        db.execSQL("CREATE INDEX pets_fingerprint_index ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_FINGERPRINT + ");");
+    }
+
+    /**
+     * Create the index of the duplicates and the trigger that hands the duplicates of a deleted
+     * original to the oldest of them. Archiving a pet deletes it from the pets table, so this
+     * covers it too.
+     */
+    static void createDeleteTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX pets_duplicate_of_index ON " + PetEntry.TABLE_NAME
+                + " (" + PetEntry.COLUMN_PET_DUPLICATE_OF + ");");
+
+        StringBuilder statements = new StringBuilder();
+        for (String statement : releaseDuplicatesOf("OLD." + PetEntry._ID))
+            statements.append(statement);
+        db.execSQL("CREATE TRIGGER pets_duplicate_delete_trigger AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + " WHEN OLD." + PetEntry.COLUMN_PET_DUPLICATE_OF
+                + " IS NULL BEGIN " + statements + " END;");
+    }
+
+    /**
+     * Returns the statements that make the oldest duplicate of the given pet an original, and the
+     * other duplicates duplicates of that one. They have to run in this order.
+     */
+    private static String[] releaseDuplicatesOf(String petId) {
+        String oldestDuplicate = "(SELECT MIN(" + PetEntry._ID + ") FROM " + PetEntry.TABLE_NAME
+                + " WHERE " + PetEntry.COLUMN_PET_DUPLICATE_OF + " = " + petId + ")";
+        return new String[]{
+                "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DUPLICATE_OF
+                        + " = " + oldestDuplicate + " WHERE " + PetEntry.COLUMN_PET_DUPLICATE_OF
+                        + " = " + petId + " AND " + PetEntry._ID + " > " + oldestDuplicate + ";",
+                "UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_PET_DUPLICATE_OF
+                        + " = NULL WHERE " + PetEntry.COLUMN_PET_DUPLICATE_OF + " = " + petId
+                        + ";"
+        };
+    }
+
+    /**
+     * Returns the fingerprint of a pet with the given name, breed, gender and weight.
+     */
+    static long of(String name, String breed, int gender, int weight) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, FuzzyNames.fold(name));
+        hash = hash(hash, FuzzyNames.fold(breed));
+        hash = hash(hash, String.valueOf(gender));
+        return hash(hash, String.valueOf(weight / WEIGHT_STEP_KG));
+    }
+
+    /**
+     * Returns the given hash with the characters of the given value mixed in, followed by a 0
+     * that separates it from the next value. Folded values never have a 0 in them.
+     */
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++)
+                hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash * FNV_PRIME;
+    }
+
+    /**
+     * Returns the fingerprint of a new pet with the given (already checked) values. Pets without
+     * a weight get the default weight of 0kg.
+     */
+    static long of(ContentValues values) {
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        return of(values.getAsString(PetEntry.COLUMN_PET_NAME),
+                values.getAsString(PetEntry.COLUMN_PET_BREED),
+                values.getAsInteger(PetEntry.COLUMN_PET_GENDER),
+                weight == null ? 0 : weight);
+    }
+
+    /**
+     * Returns whether writing the given values can change the fingerprint of a pet.
+     */
+    static boolean dependsOn(ContentValues values) {
+        return values.containsKey(PetEntry.COLUMN_PET_NAME)
+                || values.containsKey(PetEntry.COLUMN_PET_BREED)
+                || values.containsKey(PetEntry.COLUMN_PET_GENDER)
+                || values.containsKey(PetEntry.COLUMN_PET_WEIGHT);
+    }
+
+    /**
+     * Returns the ID of the pet with the given fingerprint that isn't itself a duplicate, the
+     * oldest one if there are several, or -1 if there is none.
+     */
+    static long findOriginal(SQLiteDatabase db, long fingerprint) {
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[]{PetEntry._ID},
+                PetEntry.COLUMN_PET_FINGERPRINT + "=? AND "
+                        + PetEntry.COLUMN_PET_DUPLICATE_OF + " IS NULL",
+                new String[]{String.valueOf(fingerprint)}, null, null, PetEntry._ID, "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Make the fingerprints of the given pets again from the values they have now, after an update
+     * that can have changed them, together with their duplicate flags. A pet whose fingerprint
+     * changed hands its duplicates to the oldest of them, and becomes a duplicate of the oldest
+     * older original with its new fingerprint, if there is one. Call this inside the transaction
+     * of the update.
+     */
+    static void refresh(SQLiteDatabase db, long[] ids) {
+        SQLiteStatement update = db.compileStatement("UPDATE " + PetEntry.TABLE_NAME + " SET "
+                + PetEntry.COLUMN_PET_FINGERPRINT + " = ?, " + PetEntry.COLUMN_PET_DUPLICATE_OF
+                + " = ? WHERE " + PetEntry._ID + " = ?");
+        try {
+            for (long id : ids) {
+                long fingerprint;
+                Cursor cursor = db.query(PetEntry.VIEW_NAME, new String[]{PetEntry.COLUMN_PET_NAME,
+                                PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER,
+                                PetEntry.COLUMN_PET_WEIGHT, PetEntry.COLUMN_PET_FINGERPRINT},
+                        PetEntry._ID + "=?", new String[]{String.valueOf(id)}, null, null, null);
+                try {
+                    if (!cursor.moveToFirst())
+                        continue;
+                    fingerprint = of(cursor.getString(0), cursor.getString(1), cursor.getInt(2),
+                            cursor.getInt(3));
+                    if (!cursor.isNull(4) && cursor.getLong(4) == fingerprint)
+                        continue;
+                } finally {
+                    cursor.close();
+                }
+
+                // The ID is a number, so it is safe to put in the SQL.
+                for (String statement : releaseDuplicatesOf(String.valueOf(id)))
+                    db.execSQL(statement);
+
+                long originalId = findOriginal(db, fingerprint);
+                update.bindLong(1, fingerprint);
+                if (originalId != -1 && originalId < id)
+                    update.bindLong(2, originalId);
+                else
+                    update.bindNull(2);
+                update.bindLong(3, id);
+                update.executeUpdateDelete();
+            }
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Give the oldest pets without a fingerprint theirs, at most {@link #BATCH_SIZE} of them in
+     * one transaction, and flag each one that has the fingerprint of an older pet as a duplicate
+     * of that pet. Going from the oldest pet up means the older pets always have their
+     * fingerprint by the time a newer pet looks for them.
+     *
+     * @return the number of pets that got a fingerprint, less than {@link #BATCH_SIZE} once every
+     * pet has one
+     */
+    static int deduplicateBatch(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.query(PetEntry.VIEW_NAME, new String[]{PetEntry._ID,
+                            PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                            PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT},
+                    PetEntry.COLUMN_PET_FINGERPRINT + " IS NULL", null, null, null, PetEntry._ID,
+                    String.valueOf(BATCH_SIZE));
+            int count;
+            try {
+                count = cursor.getCount();
+                ContentValues values = new ContentValues(2);
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    long fingerprint = of(cursor.getString(1), cursor.getString(2),
+                            cursor.getInt(3), cursor.getInt(4));
+                    long originalId = findOriginal(db, fingerprint);
+
+                    values.put(PetEntry.COLUMN_PET_FINGERPRINT, fingerprint);
+                    if (originalId != -1 && originalId < id)
+                        values.put(PetEntry.COLUMN_PET_DUPLICATE_OF, originalId);
+                    else
+                        values.putNull(PetEntry.COLUMN_PET_DUPLICATE_OF);
+                    db.update(PetEntry.TABLE_NAME, values, PetEntry._ID + "=?",
+                            new String[]{String.valueOf(id)});
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
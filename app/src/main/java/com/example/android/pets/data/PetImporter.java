@@ -0,0 +1,304 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports pets from text with one pet per line, in the columns name, breed, gender, weight and
+ * external ID, separated by tabs. The gender is one of the {@link PetEntry} gender constants, and
+ * the breed, weight and external ID may be left empty. Pets with an external ID are upserted, see
+ * {@link PetEntry#UPSERT_URI}, and the others are inserted.
+ *
+ * Parsing and checking the lines costs more than writing them, so the lines are cut into chunks
+ * of {@link #CHUNK_SIZE} that are parsed and checked in parallel, with the same checks the
+ * provider makes for single pets. The chunks are then written one at a time, in the order of the
+ * input, by the thread that called {@link #importPets}. Each chunk is one bulk insert, and so one
+ * transaction, unless it mixes inserted and upserted pets. At most
+ * {@link #MAX_PENDING_CHUNKS_PER_THREAD} chunks per parser thread are read ahead of the writer.
+ * Once that many are waiting, reading stops until the writer has caught up, so a slow database
+ * holds back the parsers instead of filling up the memory.
+ *
+ * Lines that can't be parsed or don't pass the checks are skipped, and reported in the
+ * {@link Result} by their line number.
+ */
+public final class PetImporter {
+
+    private static final String LOG_TAG = PetImporter.class.getSimpleName();
+
+    /** Number of lines parsed by one task and written in one transaction */
+    static final int CHUNK_SIZE = 500;
+
+    /** Maximum number of chunks per parser thread that are read but not written yet */
+    static final int MAX_PENDING_CHUNKS_PER_THREAD = 2;
+
+    /** Separator of the columns in a line */
+    private static final String SEPARATOR = "\t";
+
+    private final ContentResolver contentResolver;
+    private final int parserThreads;
+
+    /**
+     * Constructs a new {@link PetImporter} with one parser thread per processor.
+     */
+    public PetImporter(ContentResolver contentResolver) {
+        this(contentResolver, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new {@link PetImporter}.
+     *
+     * @param contentResolver to write the pets with
+     * @param parserThreads   number of threads that parse lines at the same time, at least 1
+     */
+    public PetImporter(ContentResolver contentResolver, int parserThreads) {
+        if (parserThreads < 1)
+            throw new IllegalArgumentException("Importer requires at least one parser thread");
+
+        this.contentResolver = contentResolver;
+        this.parserThreads = parserThreads;
+    }
+
+    /**
+     * Imports the pets from the given input. This reads and writes, so it should be called from a
+     * background thread. The input isn't closed.
+     *
+     * @return the number of pets written, and the lines that were skipped
+     * @throws IOException if the input can't be read. The chunks before the one that couldn't be
+     *                     read have been written by then.
+     */
+    public Result importPets(Reader input) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        BufferedReader reader = new BufferedReader(input);
+        ExecutorService parsers = Executors.newFixedThreadPool(parserThreads);
+        Queue<Future<Chunk>> pending = new ArrayDeque<>();
+        int maxPending = parserThreads * MAX_PENDING_CHUNKS_PER_THREAD;
+        Result result = new Result();
+
+        try {
+            int lineNumber = 0;
+            List<String> lines = new ArrayList<>(CHUNK_SIZE);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                lines.add(line);
+                if (lines.size() < CHUNK_SIZE)
+                    continue;
+
+                // Wait for the oldest chunk to be written before reading any further ahead.
+                if (pending.size() == maxPending)
+                    write(pending.remove(), result);
+                pending.add(parsers.submit(new ParseTask(lineNumber - lines.size() + 1, lines)));
+                lines = new ArrayList<>(CHUNK_SIZE);
+            }
+            if (!lines.isEmpty())
+                pending.add(parsers.submit(new ParseTask(lineNumber - lines.size() + 1, lines)));
+
+            while (!pending.isEmpty())
+                write(pending.remove(), result);
+        } finally {
+            // Only left over if the import failed, so the remaining chunks aren't needed.
+            for (Future<Chunk> chunk : pending)
+                chunk.cancel(true);
+            parsers.shutdownNow();
+        }
+
+        Log.i(LOG_TAG, "Imported " + result.getRowsWritten() + " pets with " + parserThreads
+                + " parser threads in " + (SystemClock.elapsedRealtime() - start) + " ms, skipped "
+                + result.getSkippedLines().size() + " lines");
+        return result;
+    }
+
+    /**
+     * Write the given chunk once it has been parsed, in runs of pets that are either all
+     * inserted or all upserted, so the pets keep the order of the input.
+     */
+    private void write(Future<Chunk> future, Result result) {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Import was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to parse pets", e.getCause());
+        }
+
+        List<ContentValues> run = new ArrayList<>();
+        boolean runUpserts = false;
+        for (ContentValues values : chunk.values) {
+            boolean upsert = values.containsKey(PetEntry.COLUMN_PET_EXTERNAL_ID);
+            if (upsert != runUpserts && !run.isEmpty()) {
+                result.rowsWritten += writeRun(run, runUpserts);
+                run.clear();
+            }
+            runUpserts = upsert;
+            run.add(values);
+        }
+        if (!run.isEmpty())
+            result.rowsWritten += writeRun(run, runUpserts);
+
+        result.skippedLines.addAll(chunk.skippedLines);
+    }
+
+    private int writeRun(List<ContentValues> run, boolean upserts) {
+        return contentResolver.bulkInsert(upserts ? PetEntry.UPSERT_URI : PetEntry.CONTENT_URI,
+                run.toArray(new ContentValues[run.size()]));
+    }
+
+    /**
+     * Returns the values of the pet in the given line.
+     *
+     * @throws IllegalArgumentException if the line can't be parsed, or the values don't pass the
+     *                                  checks for a new pet
+     */
+    static ContentValues parseLine(String line) {
+        String[] columns = line.split(SEPARATOR, -1);
+        if (columns.length < 3 || columns.length > 5)
+            throw new IllegalArgumentException("Expected 3 to 5 columns, found " + columns.length);
+
+        ContentValues values = new ContentValues(5);
+        values.put(PetEntry.COLUMN_PET_NAME, columns[0]);
+        if (!columns[1].isEmpty())
+            values.put(PetEntry.COLUMN_PET_BREED, columns[1]);
+        values.put(PetEntry.COLUMN_PET_GENDER, parseInt(columns[2], "gender"));
+        if (columns.length > 3 && !columns[3].isEmpty())
+            values.put(PetEntry.COLUMN_PET_WEIGHT, parseInt(columns[3], "weight"));
+        if (columns.length > 4 && !columns[4].isEmpty())
+            values.put(PetEntry.COLUMN_PET_EXTERNAL_ID, columns[4]);
+
+        // Check the pet the same way the provider does, so a whole chunk never fails to write
+        // because of one bad pet.
+        if (values.containsKey(PetEntry.COLUMN_PET_EXTERNAL_ID))
+            PetValidator.validateUpsert(values);
+        else
+            PetValidator.validateInsert(values);
+        return values;
+    }
+
+    private static int parseInt(String value, String column) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Pet requires a number for the " + column);
+        }
+    }
+
+    /**
+     * Parses the lines of one chunk.
+     */
+    private static final class ParseTask implements Callable<Chunk> {
+
+        private final int firstLineNumber;
+        private final List<String> lines;
+
+        ParseTask(int firstLineNumber, List<String> lines) {
+            this.firstLineNumber = firstLineNumber;
+            this.lines = lines;
+        }
+
+        @Override
+        public Chunk call() {
+            Chunk chunk = new Chunk(lines.size());
+            for (int i = 0; i < lines.size(); i++) {
+                String line = lines.get(i);
+                if (TextUtils.isEmpty(line))
+                    continue;
+
+                try {
+                    chunk.values.add(parseLine(line));
+                } catch (IllegalArgumentException e) {
+                    chunk.skippedLines.add(new SkippedLine(firstLineNumber + i, e.getMessage()));
+                }
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * The parsed pets of one chunk, and the lines of the chunk that were skipped.
+     */
+    private static final class Chunk {
+
+        final List<ContentValues> values;
+        final List<SkippedLine> skippedLines = new ArrayList<>();
+
+        Chunk(int size) {
+            values = new ArrayList<>(size);
+        }
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+
+        private int rowsWritten;
+        private final List<SkippedLine> skippedLines = new ArrayList<>();
+
+        private Result() {
+        }
+
+        /**
+         * Returns the number of pets that were inserted or updated.
+         */
+        public int getRowsWritten() {
+            return rowsWritten;
+        }
+
+        /**
+         * Returns the lines that were skipped, in the order of the input.
+         */
+        public List<SkippedLine> getSkippedLines() {
+            return Collections.unmodifiableList(skippedLines);
+        }
+    }
+
+    /**
+     * A line that was skipped, and why.
+     */
+    public static final class SkippedLine {
+
+        private final int lineNumber;
+        private final String message;
+
+        private SkippedLine(int lineNumber, String message) {
+            this.lineNumber = lineNumber;
+            this.message = message;
+        }
+
+        /**
+         * Returns the number of the line, where the first line is 1.
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + lineNumber + ": " + message;
+        }
+    }
+}
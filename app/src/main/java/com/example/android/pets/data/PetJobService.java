@@ -0,0 +1,84 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.JobEntry;
+
+/**
+ * Runs the jobs of the provider, see {@link JobEntry}, when the system lets it. The system keeps
+ * the scheduled run across the process dying and the device restarting, and if it stops a run
+ * halfway, it schedules it again, and the jobs go on from their last chunk.
+ *
+ * The jobs run in the provider, through {@link JobEntry#METHOD_RUN}, on a background thread. A
+ * run that fails, because the provider couldn't be reached for example, is never reported as
+ * finished, and the system schedules it again with its back-off.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PetJobService extends JobService {
+
+    private static final String LOG_TAG = PetJobService.class.getSimpleName();
+
+    /** ID of the one scheduled run, for the whole app */
+    private static final int JOB_ID = 1;
+
+    /**
+     * Schedule a run of the jobs as soon as possible, unless one is already scheduled or running.
+     */
+    static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+
+        // Scheduling the run again would stop it if it is running.
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID)
+                return;
+        }
+
+        scheduler.schedule(new JobInfo.Builder(JOB_ID, new ComponentName(context,
+                PetJobService.class))
+                .setOverrideDeadline(0)
+                .setPersisted(true)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean finished = false;
+                try {
+                    Bundle result = getContentResolver().call(JobEntry.CONTENT_URI,
+                            JobEntry.METHOD_RUN, null, null);
+                    finished = result != null && result.getBoolean(JobEntry.EXTRA_FINISHED);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Running the jobs failed, will try again", e);
+                }
+                jobFinished(params, !finished);
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // This runs on the main thread, so a provider that can't be reached mustn't crash the app.
+        // The run is scheduled again all the same.
+        try {
+            getContentResolver().call(JobEntry.CONTENT_URI, JobEntry.METHOD_STOP, null, null);
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Stopping the jobs failed", e);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,265 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.JobEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * The jobs table, as the {@link JobRunner.Queue} of the jobs that aren't finished, see
+ * {@link JobEntry}.
+ *
+ * A chunk of a job is a few batches in one transaction, each batch being the same step the
+ * provider takes for that kind of work elsewhere, such as {@link PetArchiver#archiveBatch}. The
+ * progress is written in the same transaction, so what a job has done and what its row says it
+ * has done can't drift apart. Every job type works off what is still left in the database, such
+ * as the pets that haven't been deleted yet, so the progress is all a job needs to carry on.
+ *
+ * {@link JobEntry#TYPE_ENABLE_INCREMENTAL_VACUUM} is the one job that can't be cut into chunks or
+ * run in a transaction: its one chunk is a full VACUUM, however long that takes, see
+ * {@link DatabaseMaintenance}.
+ */
+final class PetJobs implements JobRunner.Queue {
+
+    private static final String LOG_TAG = PetJobs.class.getSimpleName();
+
+    /** Number of pets deleted in one batch of {@link JobEntry#TYPE_DELETE_ALL_PETS} */
+    static final int DELETE_BATCH_SIZE = 100;
+
+    /** Selection of the jobs that are waiting or running */
+    private static final String UNFINISHED_SELECTION = JobEntry.COLUMN_JOB_STATE + " IN ("
+            + JobEntry.STATE_PENDING + ", " + JobEntry.STATE_RUNNING + ")";
+
+    private final Context context;
+    private final SQLiteOpenHelper dbHelper;
+
+    /** Run after each chunk that has changed any pets */
+    private final Runnable onPetsChanged;
+
+    /**
+     * Constructs a new {@link PetJobs} for the jobs table of the database of the given helper.
+     *
+     * @param onPetsChanged run after each chunk that has changed any pets
+     */
+    PetJobs(Context context, SQLiteOpenHelper dbHelper, Runnable onPetsChanged) {
+        this.context = context.getApplicationContext();
+        this.dbHelper = dbHelper;
+        this.onPetsChanged = onPetsChanged;
+    }
+
+    /**
+     * Create the jobs table.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + JobEntry.TABLE_NAME + " ("
+                + JobEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + JobEntry.COLUMN_JOB_TYPE + " TEXT NOT NULL, "
+                + JobEntry.COLUMN_JOB_STATE + " INTEGER NOT NULL, "
+                + JobEntry.COLUMN_JOB_PROGRESS + " INTEGER NOT NULL DEFAULT 0, "
+                + JobEntry.COLUMN_JOB_TOTAL + " INTEGER, "
+                + JobEntry.COLUMN_JOB_ERROR + " TEXT, "
+                + JobEntry.COLUMN_JOB_CREATED_AT + " INTEGER NOT NULL, "
+                + JobEntry.COLUMN_JOB_UPDATED_AT + " INTEGER NOT NULL);");
+    }
+
+    /**
+     * Add a job of the given type to the table, waiting to run.
+     *
+     * @return the ID of the new job, or -1 if the insertion failed
+     * @throws IllegalArgumentException if the type isn't one of the TYPE values
+     */
+    static long enqueue(SQLiteDatabase db, String type) {
+        if (!JobEntry.isValidType(type))
+            throw new IllegalArgumentException("Job requires valid type");
+
+        long now = System.currentTimeMillis();
+        ContentValues values = new ContentValues(4);
+        values.put(JobEntry.COLUMN_JOB_TYPE, type);
+        values.put(JobEntry.COLUMN_JOB_STATE, JobEntry.STATE_PENDING);
+        values.put(JobEntry.COLUMN_JOB_CREATED_AT, now);
+        values.put(JobEntry.COLUMN_JOB_UPDATED_AT, now);
+        return db.insert(JobEntry.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Returns whether any job is waiting to run, or was running when the process last stopped.
+     */
+    static boolean hasUnfinished(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, JobEntry.TABLE_NAME, UNFINISHED_SELECTION) != 0;
+    }
+
+    /**
+     * Returns whether a job of the given type is waiting to run, or was running when the process
+     * last stopped.
+     */
+    static boolean hasUnfinished(SQLiteDatabase db, String type) {
+        return DatabaseUtils.queryNumEntries(db, JobEntry.TABLE_NAME, UNFINISHED_SELECTION
+                + " AND " + JobEntry.COLUMN_JOB_TYPE + "=?", new String[]{type}) != 0;
+    }
+
+    @Override
+    public JobRunner.Job next() {
+        Cursor cursor = dbHelper.getReadableDatabase().query(JobEntry.TABLE_NAME,
+                new String[]{JobEntry._ID, JobEntry.COLUMN_JOB_TYPE, JobEntry.COLUMN_JOB_PROGRESS,
+                        JobEntry.COLUMN_JOB_TOTAL, JobEntry.COLUMN_JOB_CREATED_AT},
+                UNFINISHED_SELECTION, null, null, null, JobEntry._ID, "1");
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            return new PetJob(cursor.getLong(0), cursor.getString(1), cursor.getLong(2),
+                    cursor.isNull(3) ? null : cursor.getLong(3), cursor.getLong(4));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void fail(JobRunner.Job job, RuntimeException e) {
+        PetJob petJob = (PetJob) job;
+        Log.e(LOG_TAG, "Job " + petJob.id + " (" + petJob.type + ") failed", e);
+
+        ContentValues values = new ContentValues(3);
+        values.put(JobEntry.COLUMN_JOB_STATE, JobEntry.STATE_FAILED);
+        values.put(JobEntry.COLUMN_JOB_ERROR, e.toString());
+        values.put(JobEntry.COLUMN_JOB_UPDATED_AT, System.currentTimeMillis());
+        dbHelper.getWritableDatabase().update(JobEntry.TABLE_NAME, values,
+                JobEntry._ID + "=?", new String[]{String.valueOf(petJob.id)});
+        notifyJobChanged(petJob.id);
+    }
+
+    private void notifyJobChanged(long id) {
+        context.getContentResolver().notifyChange(
+                ContentUris.withAppendedId(JobEntry.CONTENT_URI, id), null);
+    }
+
+    /**
+     * One job read from the table, with the progress it had saved.
+     */
+    private final class PetJob implements JobRunner.Job {
+
+        final long id;
+        final String type;
+        private long progress;
+        private Long total;
+        private final long createdAt;
+
+        PetJob(long id, String type, long progress, Long total, long createdAt) {
+            this.id = id;
+            this.type = type;
+            this.progress = progress;
+            this.total = total;
+            this.createdAt = createdAt;
+        }
+
+        @Override
+        public boolean runChunk(long deadlineNanos) {
+            SQLiteDatabase db = dbHelper.getWritableDatabase();
+            if (JobEntry.TYPE_ENABLE_INCREMENTAL_VACUUM.equals(type))
+                return runVacuum(db);
+
+            int chunkCount = 0;
+            boolean finished;
+
+            db.beginTransaction();
+            try {
+                if (total == null)
+                    total = countTotal(db);
+
+                // Stop at the first batch after the deadline, or once a batch comes up short.
+                do {
+                    int count = runBatch(db);
+                    chunkCount += count;
+                    finished = count < getBatchSize();
+                } while (!finished && System.nanoTime() < deadlineNanos);
+
+                ContentValues values = new ContentValues(4);
+                values.put(JobEntry.COLUMN_JOB_STATE,
+                        finished ? JobEntry.STATE_DONE : JobEntry.STATE_RUNNING);
+                values.put(JobEntry.COLUMN_JOB_PROGRESS, progress + chunkCount);
+                if (total != null)
+                    values.put(JobEntry.COLUMN_JOB_TOTAL, total);
+                values.put(JobEntry.COLUMN_JOB_UPDATED_AT, System.currentTimeMillis());
+                db.update(JobEntry.TABLE_NAME, values, JobEntry._ID + "=?",
+                        new String[]{String.valueOf(id)});
+
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            progress += chunkCount;
+            notifyJobChanged(id);
+            if (chunkCount != 0)
+                onPetsChanged.run();
+            return finished;
+        }
+
+        /**
+         * Switch the database to incremental vacuum, unless a restored snapshot or an earlier run
+         * already has, and record the job as done.
+         */
+        private boolean runVacuum(SQLiteDatabase db) {
+            if (!DatabaseMaintenance.isIncrementalVacuum(db))
+                DatabaseMaintenance.enableIncrementalVacuum(db);
+
+            ContentValues values = new ContentValues(2);
+            values.put(JobEntry.COLUMN_JOB_STATE, JobEntry.STATE_DONE);
+            values.put(JobEntry.COLUMN_JOB_UPDATED_AT, System.currentTimeMillis());
+            db.update(JobEntry.TABLE_NAME, values, JobEntry._ID + "=?",
+                    new String[]{String.valueOf(id)});
+            notifyJobChanged(id);
+            return true;
+        }
+
+        /**
+         * Returns the number of pets the job is going to deal with, or null if it can't tell.
+         */
+        private Long countTotal(SQLiteDatabase db) {
+            switch (type) {
+                case JobEntry.TYPE_DELETE_ALL_PETS:
+                    return DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME);
+                case JobEntry.TYPE_DEDUPLICATE_PETS:
+                    return DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME,
+                            PetEntry.COLUMN_PET_FINGERPRINT + " IS NULL");
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Run one batch of the job, and return the number of pets it dealt with.
+         */
+        private int runBatch(SQLiteDatabase db) {
+            switch (type) {
+                case JobEntry.TYPE_DELETE_ALL_PETS:
+                    return db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " IN (SELECT "
+                            + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + " ORDER BY "
+                            + PetEntry._ID + " LIMIT " + DELETE_BATCH_SIZE + ")", null);
+                case JobEntry.TYPE_ARCHIVE_PETS:
+                    return PetArchiver.archiveBatch(db, createdAt);
+                case JobEntry.TYPE_DEDUPLICATE_PETS:
+                    return PetFingerprints.deduplicateBatch(db);
+                default:
+                    throw new IllegalStateException("Unknown job type " + type);
+            }
+        }
+
+        private int getBatchSize() {
+            switch (type) {
+                case JobEntry.TYPE_DELETE_ALL_PETS:
+                    return DELETE_BATCH_SIZE;
+                case JobEntry.TYPE_ARCHIVE_PETS:
+                    return PetArchiver.BATCH_SIZE;
+                default:
+                    return PetFingerprints.BATCH_SIZE;
+            }
+        }
+    }
+}
@@ -1,18 +1,66 @@
 package com.example.android.pets.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.Configuration;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.example.android.pets.data.PetContract.AdoptionEntry;
+import static com.example.android.pets.data.PetContract.BASE_CONTENT_URI;
+import static com.example.android.pets.data.PetContract.BreedEntry;
+import static com.example.android.pets.data.PetContract.BulkRead;
+import static com.example.android.pets.data.PetContract.CALLER_IS_SYNC_ADAPTER;
 import static com.example.android.pets.data.PetContract.CONTENT_AUTHORITY;
+import static com.example.android.pets.data.PetContract.HistoryEntry;
+import static com.example.android.pets.data.PetContract.JobEntry;
+import static com.example.android.pets.data.PetContract.OwnerEntry;
+import static com.example.android.pets.data.PetContract.PATH_ADOPTIONS;
+import static com.example.android.pets.data.PetContract.PATH_ALL;
+import static com.example.android.pets.data.PetContract.PATH_FUZZY;
+import static com.example.android.pets.data.PetContract.PATH_HISTORY;
+import static com.example.android.pets.data.PetContract.PATH_JOBS;
+import static com.example.android.pets.data.PetContract.PATH_OWNERS;
 import static com.example.android.pets.data.PetContract.PATH_PETS;
+import static com.example.android.pets.data.PetContract.PATH_PETS_WITH_OWNER;
+import static com.example.android.pets.data.PetContract.PATH_SHELTERS;
+import static com.example.android.pets.data.PetContract.PATH_UPSERT;
+import static com.example.android.pets.data.PetContract.PATH_SUGGESTIONS;
 import static com.example.android.pets.data.PetContract.PetEntry;
+import static com.example.android.pets.data.PetContract.PetWithOwnerEntry;
+import static com.example.android.pets.data.PetContract.ShelterEntry;
+import static com.example.android.pets.data.PetContract.Snapshot;
+import static com.example.android.pets.data.PetContract.SuggestionEntry;
+import static com.example.android.pets.data.PetContract.SyncChanges;
 
 /**
  * Pets Created by Muir on 27/06/2017.
@@ -26,6 +74,12 @@ public class PetProvider extends ContentProvider {
      */
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
 
+    /**
+     * Permission that other apps need to use this provider
+     */
+    private static final String PERMISSION_ACCESS_PETS =
+            "com.example.android.pets.permission.ACCESS_PETS";
+
     /**
      * URI matcher code for the content URI for the pets table.
      */
@@ -36,6 +90,79 @@ public class PetProvider extends ContentProvider {
      */
     private static final int PET_ID = 101;
 
+    /**
+     * URI matcher code for the content URI that inserts or updates pets by their external ID.
+     */
+    private static final int PET_UPSERT = 102;
+
+    /**
+     * URI matcher code for the content URI for the weight history of a single pet.
+     */
+    private static final int PET_HISTORY = 103;
+
+    /**
+     * URI matcher code for the content URI for the pets joined with their owners.
+     */
+    private static final int PETS_WITH_OWNER = 104;
+
+    /**
+     * URI matcher code for the content URI for the pets together with the archived pets.
+     */
+    private static final int PETS_ALL = 105;
+
+    /**
+     * URI matcher code for the content URI for the pets with a name close to a given name.
+     */
+    private static final int PETS_FUZZY = 106;
+
+    /**
+     * URI matcher code for the content URI for pet name suggestions.
+     */
+    private static final int SUGGESTIONS_NAME = 200;
+
+    /**
+     * URI matcher code for the content URI for breed suggestions.
+     */
+    private static final int SUGGESTIONS_BREED = 201;
+
+    /**
+     * URI matcher codes for the content URIs for the owners table and a single owner.
+     */
+    private static final int OWNERS = 300;
+    private static final int OWNER_ID = 301;
+
+    /**
+     * URI matcher codes for the content URIs for the adoptions table and the adoption of a single
+     * pet.
+     */
+    private static final int ADOPTIONS = 400;
+    private static final int ADOPTION_ID = 401;
+
+    /**
+     * URI matcher codes for the content URIs for the pets of one shelter, a single pet of one
+     * shelter, and the pets of all shelters.
+     */
+    private static final int SHELTER_PETS = 500;
+    private static final int SHELTER_PET_ID = 501;
+    private static final int ALL_SHELTER_PETS = 502;
+
+    /**
+     * URI matcher codes for the jobs and a single job
+     */
+    private static final int JOBS = 600;
+    private static final int JOB_ID = 601;
+
+    /**
+     * Maximum number of suggestions returned for one prefix.
+     */
+    private static final int MAX_SUGGESTIONS = 10;
+
+    /**
+     * Returned instead of an ID when an insert finds the pet already there and rejects it, see
+     * {@link PetEntry#ON_DUPLICATE_REJECT}.
+     */
+    private static final long DUPLICATE_REJECTED = -2;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code. The input passed into the
      * constructor represents the code to return for the root URI. It's common to use NO_MATCH as
@@ -71,6 +198,85 @@ public class PetProvider extends ContentProvider {
          * "content://com.example.android.pets/pets" (without a number at the end) doesn't match.
          */
         uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/#", PET_ID);
+
+        /*
+         * The content URI of the form "content://com.example.android.pets/pets/upsert" will map to
+         * the integer code {@link #PET_UPSERT}. Inserting into this URI updates the pet with the
+         * same external ID if there is one, and inserts a new pet otherwise.
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/" + PATH_UPSERT, PET_UPSERT);
+
+        /*
+         * The content URI of the form "content://com.example.android.pets/pets/#/history" will map
+         * to the integer code {@link #PET_HISTORY}. This URI is used to read the weight history of
+         * ONE single pet.
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/#/" + PATH_HISTORY, PET_HISTORY);
+
+        /*
+         * The content URI of the form "content://com.example.android.pets/pets_with_owner" will
+         * map to the integer code {@link #PETS_WITH_OWNER}. This URI is used to read MULTIPLE pets
+         * together with their owners.
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS_WITH_OWNER, PETS_WITH_OWNER);
+
+        /*
+         * The content URI of the form "content://com.example.android.pets/pets/all" will map to
+         * the integer code {@link #PETS_ALL}. This URI is used to read MULTIPLE pets from both the
+         * pets table and the archive. It doesn't clash with {@link #PET_ID}, since "#" only
+         * matches numbers.
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/" + PATH_ALL, PETS_ALL);
+
+        /*
+         * The content URI of the form "content://com.example.android.pets/pets/fuzzy/*" will map
+         * to the integer code {@link #PETS_FUZZY}. The "*" wildcard is the name to look for, for
+         * example "content://com.example.android.pets/pets/fuzzy/Totto".
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_PETS + "/" + PATH_FUZZY + "/*", PETS_FUZZY);
+
+        /*
+         * The content URIs of the form "content://com.example.android.pets/owners" and
+         * "content://com.example.android.pets/owners/#" will map to the integer codes
+         * {@link #OWNERS} and {@link #OWNER_ID}, in the same way as for pets. The adoptions follow
+         * the same pattern, where the "#" is the ID of the adopted pet.
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_OWNERS, OWNERS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_OWNERS + "/#", OWNER_ID);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_ADOPTIONS, ADOPTIONS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_ADOPTIONS + "/#", ADOPTION_ID);
+
+        /*
+         * The content URIs of the form "content://com.example.android.pets/suggestions/name/*" and
+         * "content://com.example.android.pets/suggestions/breed/*" will map to the integer codes
+         * {@link #SUGGESTIONS_NAME} and {@link #SUGGESTIONS_BREED}. The "*" wildcard is the prefix
+         * typed so far, for example "content://com.example.android.pets/suggestions/breed/ter".
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY,
+                PATH_SUGGESTIONS + "/" + SuggestionEntry.KIND_NAME + "/*", SUGGESTIONS_NAME);
+        uriMatcher.addURI(CONTENT_AUTHORITY,
+                PATH_SUGGESTIONS + "/" + SuggestionEntry.KIND_BREED + "/*", SUGGESTIONS_BREED);
+
+        /*
+         * The content URIs of the form "content://com.example.android.pets/shelters/<name>/pets"
+         * and "content://com.example.android.pets/shelters/<name>/pets/#" will map to the integer
+         * codes {@link #SHELTER_PETS} and {@link #SHELTER_PET_ID}, where a "*" wildcard stands for
+         * the name of the shelter. The URI "content://com.example.android.pets/shelters/pets" maps
+         * to {@link #ALL_SHELTER_PETS}. It has one segment less, so it can't be mistaken for the
+         * pets of a shelter called "pets".
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/*/" + PATH_PETS, SHELTER_PETS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/*/" + PATH_PETS + "/#",
+                SHELTER_PET_ID);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_SHELTERS + "/" + PATH_PETS, ALL_SHELTER_PETS);
+
+        /*
+         * The content URIs of the form "content://com.example.android.pets/jobs" and
+         * "content://com.example.android.pets/jobs/#" will map to the integer codes {@link #JOBS}
+         * and {@link #JOB_ID}, in the same way as for pets.
+         */
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_JOBS, JOBS);
+        uriMatcher.addURI(CONTENT_AUTHORITY, PATH_JOBS + "/#", JOB_ID);
     }
 
     /**
@@ -78,15 +284,325 @@ public class PetProvider extends ContentProvider {
      */
     private PetDbHelper dbHelper;
 
+    /**
+     * Held for reading by everything that uses the database, and for writing while a snapshot is
+     * restored, so the database file is never swapped out from under a query or a write.
+     */
+    private final ReentrantReadWriteLock databaseLock = new ReentrantReadWriteLock();
+
+    /**
+     * Change notifications held back on the current thread while it writes inside the transaction
+     * of a batch or of the sync, or null if they aren't held back. See
+     * {@link #beginDeferredNotifications}.
+     */
+    private final ThreadLocal<DeferredNotifications> deferredNotifications = new ThreadLocal<>();
+
+    /**
+     * Lookup from breed names to breed IDs, used when writing pets
+     */
+    private final BreedCache breedCache = new BreedCache();
+
+    /**
+     * Autocomplete indexes of the pet names and breeds
+     */
+    private final PrefixIndex nameIndex = new PrefixIndex();
+    private final PrefixIndex breedIndex = new PrefixIndex();
+
+    /**
+     * Both autocomplete indexes as one cache for {@link CacheBudgets}. Once a trim has dropped
+     * them, the next suggestion query fills them again.
+     */
+    private final CacheBudgets.Cache suggestionCache = new CacheBudgets.Cache() {
+        @Override
+        public long getSizeBytes() {
+            return nameIndex.getSizeBytes() + breedIndex.getSizeBytes();
+        }
+
+        @Override
+        public void trimToSize(long maxBytes) {
+            if (getSizeBytes() <= maxBytes)
+                return;
+            nameIndex.clear();
+            breedIndex.clear();
+            suggestionIndexesDropped = true;
+        }
+    };
+    private volatile boolean suggestionIndexesDropped;
+
+    /**
+     * Runs ANALYZE, incremental vacuum and checkpoints when the database is idle
+     */
+    private DatabaseMaintenance maintenance;
+
+    /**
+     * Databases of the shelters, opened as they are used
+     */
+    private ShelterShards shelterShards;
+
+    /**
+     * The jobs that aren't finished, and the runner that is running them, or null if none is.
+     * Only one runner runs at a time, while it holds {@link #jobRunLock}.
+     */
+    private PetJobs jobs;
+    private final Object jobRunLock = new Object();
+    private volatile JobRunner jobRunner;
+
     @Override
     public boolean onCreate() {
         dbHelper = new PetDbHelper(getContext());
+        maintenance = new DatabaseMaintenance(getContext(), dbHelper, databaseLock.readLock(),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleJobs();
+                    }
+                });
+        maintenance.start();
+        shelterShards = new ShelterShards(getContext());
+        CacheBudgets cacheBudgets = CacheBudgets.getInstance(getContext());
+        cacheBudgets.register("breeds", CacheBudgets.PRIORITY_NORMAL, breedCache);
+        cacheBudgets.register("suggestions", CacheBudgets.PRIORITY_HIGH, suggestionCache);
+        cacheBudgets.register("shelters", CacheBudgets.PRIORITY_NORMAL, shelterShards);
+        jobs = new PetJobs(getContext(), dbHelper, new Runnable() {
+            @Override
+            public void run() {
+                notifyPetsChanged(PetEntry.CONTENT_URI);
+            }
+        });
+
+        /*
+         * Fill the autocomplete indexes, move inactive pets to the archive, look for duplicates
+         * among the pets that have no fingerprint yet and carry on with the jobs that were cut
+         * short in the background, so startup isn't slowed down. Each step takes the database
+         * lock for one batch at a time, like the jobs do, so a restore that is waiting for the
+         * lock, and the queries queued behind it, wait for one batch at most.
+         */
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean hasUnfinishedJobs;
+                databaseLock.readLock().lock();
+                try {
+                    buildSuggestionIndexes();
+                    hasUnfinishedJobs = PetJobs.hasUnfinished(dbHelper.getReadableDatabase());
+                } finally {
+                    databaseLock.readLock().unlock();
+                }
+                CacheBudgets.getInstance(getContext()).trimToBudget();
+                archiveInactivePets();
+                deduplicatePets();
+                updateNameKeys();
+                if (hasUnfinishedJobs)
+                    scheduleJobs();
+            }
+        });
         return true;
     }
 
+    /**
+     * When the device language changes, the collation keys of the names have to be made again in
+     * the new language, which is done in the background.
+     */
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                updateNameKeys();
+            }
+        });
+    }
+
+    /**
+     * Make the collation keys of the names again if they were made for a different language than
+     * the device language, see {@link NameKeys}. Synchronized so that two language changes in a
+     * row don't make the keys twice at the same time. Takes the database lock for one batch at a
+     * time.
+     */
+    private synchronized void updateNameKeys() {
+        databaseLock.readLock().lock();
+        try {
+            if (NameKeys.isCurrent(dbHelper.getReadableDatabase()))
+                return;
+        } finally {
+            databaseLock.readLock().unlock();
+        }
+
+        int count = NameKeys.rekey(dbHelper, databaseLock.readLock());
+        Log.i(LOG_TAG, "Made " + count + " name keys for " + Locale.getDefault());
+        notifyPetsChanged(PetEntry.CONTENT_URI);
+    }
+
+    /**
+     * Returns the values to write to the pets table for the given values: the breed name swapped
+     * for its ID, and the collation key and fuzzy matching columns of the name added if there is
+     * a name. The trigrams of a new name are added to the trigram table straight away, in the
+     * same transaction as the write.
+     */
+    private ContentValues toTableValues(SQLiteDatabase database, ContentValues values) {
+        return toTableValues(database, breedCache, values);
+    }
+
+    /**
+     * Returns the values to write to the pets table of the given database, with the breeds looked
+     * up in the given cache, see {@link #toTableValues(SQLiteDatabase, ContentValues)}.
+     */
+    static ContentValues toTableValues(SQLiteDatabase database, BreedCache breedCache,
+                                       ContentValues values) {
+        ContentValues tableValues = breedCache.toTableValues(database, values);
+        if (!values.containsKey(PetEntry.COLUMN_PET_NAME))
+            return tableValues;
+
+        if (tableValues == values)
+            tableValues = new ContentValues(values);
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        String fold = FuzzyNames.fold(name);
+        tableValues.put(PetEntry.COLUMN_PET_NAME_KEY, NameKeys.of(name));
+        tableValues.put(PetEntry.COLUMN_PET_NAME_FOLD, fold);
+        tableValues.put(PetEntry.COLUMN_PET_NAME_SOUNDEX, FuzzyNames.soundex(fold));
+        FuzzyNames.addTrigrams(database, fold);
+        return tableValues;
+    }
+
+    /**
+     * Fill the autocomplete indexes from the database. If there are more names than the index can
+     * hold, the most common names are kept. Every breed is added, since the breeds table only holds
+     * each breed once.
+     */
+    private void buildSuggestionIndexes() {
+        SQLiteDatabase database = dbHelper.getReadableDatabase();
+
+        Cursor names = database.query(PetEntry.TABLE_NAME, new String[]{PetEntry.COLUMN_PET_NAME},
+                null, null, PetEntry.COLUMN_PET_NAME, null, "COUNT(*) DESC",
+                String.valueOf(PrefixIndex.MAX_WORDS));
+        try {
+            while (names.moveToNext())
+                nameIndex.add(names.getString(0));
+        } finally {
+            names.close();
+        }
+
+        Cursor breeds = database.query(BreedEntry.TABLE_NAME,
+                new String[]{BreedEntry.COLUMN_BREED_NAME}, null, null, null, null, null);
+        try {
+            while (breeds.moveToNext())
+                breedIndex.add(breeds.getString(0));
+        } finally {
+            breeds.close();
+        }
+    }
+
+    /**
+     * Fill the autocomplete indexes again if a memory trim has dropped them. Only one query does
+     * this, the others wait for it.
+     */
+    private void rebuildDroppedSuggestionIndexes() {
+        synchronized (suggestionCache) {
+            if (!suggestionIndexesDropped)
+                return;
+            suggestionIndexesDropped = false;
+            buildSuggestionIndexes();
+        }
+    }
+
+    /**
+     * Move every inactive pet to the archive, a batch at a time, see {@link PetArchiver}. Other
+     * writes can run between the batches, and the database lock is only held for one batch.
+     * Listeners are notified once at the end, if any pets were moved.
+     */
+    private void archiveInactivePets() {
+        long now = System.currentTimeMillis();
+
+        int totalArchived = 0;
+        int archived;
+        do {
+            // Get the database again for each batch, since a restore may have reopened it.
+            databaseLock.readLock().lock();
+            try {
+                archived = PetArchiver.archiveBatch(dbHelper.getWritableDatabase(), now);
+            } finally {
+                databaseLock.readLock().unlock();
+            }
+            totalArchived += archived;
+        } while (archived == PetArchiver.BATCH_SIZE);
+
+        if (totalArchived != 0) {
+            Log.i(LOG_TAG, "Archived " + totalArchived + " pets");
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+        }
+    }
+
+    /**
+     * Give every pet without a fingerprint its fingerprint and flag the duplicates among them, a
+     * batch at a time, see {@link PetFingerprints#deduplicateBatch}. Other writes can run between
+     * the batches, and the database lock is only held for one batch. Listeners are notified once
+     * at the end, if any pets were looked at.
+     */
+    private void deduplicatePets() {
+        int totalChecked = 0;
+        int checked;
+        do {
+            databaseLock.readLock().lock();
+            try {
+                checked = PetFingerprints.deduplicateBatch(dbHelper.getWritableDatabase());
+            } finally {
+                databaseLock.readLock().unlock();
+            }
+            totalChecked += checked;
+        } while (checked == PetFingerprints.BATCH_SIZE);
+
+        if (totalChecked != 0) {
+            Log.i(LOG_TAG, "Checked " + totalChecked + " pets for duplicates");
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+        }
+    }
+
     @Override
     public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Query with a {@link CancellationSignal}, which loaders use from Android 4.1 onwards. When the
+     * signal is cancelled, for example because the loader was restarted, SQLite stops the scan
+     * where it is, even while the cursor window is being filled. A query that was cancelled while
+     * it waited for the database lock gives up before it starts.
+     */
+    @Override
+    public Cursor query(@NonNull Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        PetTrace.beginSection("PetProvider.query");
+        databaseLock.readLock().lock();
+        try {
+            if (cancellationSignal != null)
+                cancellationSignal.throwIfCanceled();
+
+            Cursor cursor = queryLocked(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+
+            /*
+             * SQLite only runs the query when the cursor window is first filled, which counting
+             * the rows does. The loaders count them straight away anyway, so do it here, where the
+             * time shows up in its own section of the trace.
+             */
+            PetTrace.beginSection("PetProvider.fillWindow");
+            try {
+                cursor.getCount();
+            } finally {
+                PetTrace.endSection();
+            }
+            return cursor;
+        } finally {
+            databaseLock.readLock().unlock();
+            PetTrace.endSection();
+        }
+    }
+
+    private Cursor queryLocked(Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder,
+                               CancellationSignal cancellationSignal) {
 
         /*
          * Get readable database
@@ -98,22 +614,98 @@ public class PetProvider extends ContentProvider {
          */
         Cursor cursor;
 
+        /*
+         * The URI whose changes the cursor is notified of. Usually the URI that was queried.
+         */
+        Uri notificationUri = uri;
+
         /*
          * Figure out if the URI matcher can match the URI to a specific code.
          */
         int match = uriMatcher.match(uri);
 
+        // Large reads in the app's own process can ask for all the rows in columnar arrays.
+        boolean columnar = (match == PETS || match == PETS_ALL) && Boolean.parseBoolean(
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_COLUMNAR));
+        if (columnar)
+            projection = ColumnarCursor.checkProjection(projection);
+
         switch (match) {
+            case SUGGESTIONS_NAME:
+                // Suggestions come from memory, so there's no need to touch the database, unless
+                // the indexes were dropped to free memory.
+                rebuildDroppedSuggestionIndexes();
+                return querySuggestions(nameIndex, uri.getLastPathSegment());
+            case SUGGESTIONS_BREED:
+                rebuildDroppedSuggestionIndexes();
+                return querySuggestions(breedIndex, uri.getLastPathSegment());
             case PETS:
                 /*
-                 * for the PETS code, query the pets table directly with the given projection,
-                 * selection, selection arguments, and sort order. The cursor could contain multiple
-                 * rows of the pets table.
+                 * for the PETS code, query the pets view (the pets table joined with the breed
+                 * names) with the given projection, selection, selection arguments, and sort
+                 * order. The cursor could contain multiple rows of the pets table. The sort order
+                 * is checked by the {@link PetQueryPlanner} first, so that it can be answered with
+                 * an index.
                  */
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                sortOrder = PetQueryPlanner.planSortOrder(sortOrder);
+                cursor = queryPets(database, PetEntry.VIEW_NAME, projection, selection,
+                        selectionArgs, sortOrder, cancellationSignal);
 
                 break;
+            case PETS_WITH_OWNER:
+                /*
+                 * For the PETS_WITH_OWNER code, query the view that joins the pets with their
+                 * owners in the same way as the pets. The rows change whenever a pet, an owner or
+                 * an adoption changes, so the cursor is notified of changes to any URI of this
+                 * provider.
+                 */
+                sortOrder = PetQueryPlanner.planSortOrder(sortOrder);
+                cursor = queryPets(database, PetWithOwnerEntry.VIEW_NAME, projection, selection,
+                        selectionArgs, sortOrder, cancellationSignal);
+                notificationUri = BASE_CONTENT_URI;
+                break;
+            case PETS_ALL:
+                /*
+                 * For the PETS_ALL code, query the view with the pets of both the pets table and
+                 * the archive. Only this URI reads the archive, so the other pet URIs never pay
+                 * for its size.
+                 */
+                sortOrder = PetQueryPlanner.planSortOrder(sortOrder);
+                cursor = queryPets(database, PetEntry.ALL_VIEW_NAME, projection, selection,
+                        selectionArgs, sortOrder, cancellationSignal);
+                break;
+            case SHELTER_PETS:
+                /*
+                 * For the SHELTER_PETS code, query the pets view of the shelter's own database,
+                 * in the same way as for the PETS code.
+                 */
+                cursor = shelterShards.query(getShelter(uri), projection, selection,
+                        selectionArgs, PetQueryPlanner.planSortOrder(sortOrder),
+                        cancellationSignal);
+                break;
+            case SHELTER_PET_ID:
+                selection = PetEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = shelterShards.query(getShelter(uri), projection, selection,
+                        selectionArgs, null, cancellationSignal);
+                break;
+            case ALL_SHELTER_PETS:
+                /*
+                 * For the ALL_SHELTER_PETS code, query every shelter's database in parallel and
+                 * merge the results. The rows change whenever the pets of any shelter change.
+                 */
+                cursor = shelterShards.queryAll(projection, selection, selectionArgs,
+                        PetQueryPlanner.planSortOrder(sortOrder), cancellationSignal);
+                notificationUri = ShelterEntry.CONTENT_URI;
+                break;
+            case PETS_FUZZY:
+                /*
+                 * For the PETS_FUZZY code, look up the names close to the given name in the fuzzy
+                 * matching indexes, and query the pets with those names, closest first.
+                 */
+                cursor = queryFuzzyPets(database, uri.getLastPathSegment(), projection,
+                        selection, selectionArgs, cancellationSignal);
+                break;
             case PET_ID:
                 /*
                  * For the PET_ID code, extract out the ID from the URI. For an example URI such as
@@ -135,87 +727,720 @@ public class PetProvider extends ContentProvider {
                  * This will perform a query on the pets table where the _id equals 3 to return a
                  * Cursor containing that row of the table.
                  */
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = queryPets(database, PetEntry.VIEW_NAME, projection, selection,
+                        selectionArgs, sortOrder, cancellationSignal);
+
+                break;
+            case PET_HISTORY:
+                /*
+                 * For the PET_HISTORY code, extract out the pet ID from the URI and the range from
+                 * its query parameters. The history picks raw points or daily or weekly summaries
+                 * depending on how long the range is.
+                 */
+                long petId = Long.parseLong(uri.getPathSegments().get(1));
+                long from = parseTimeParameter(uri, HistoryEntry.QUERY_PARAMETER_FROM, 0);
+                long to = parseTimeParameter(uri, HistoryEntry.QUERY_PARAMETER_TO,
+                        System.currentTimeMillis());
 
+                cursor = WeightHistory.query(database, petId, from, to);
+                break;
+            case OWNERS:
+                cursor = database.query(OwnerEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case OWNER_ID:
+                selection = OwnerEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(OwnerEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case ADOPTIONS:
+                cursor = database.query(AdoptionEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case ADOPTION_ID:
+                selection = AdoptionEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(AdoptionEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case JOBS:
+                cursor = database.query(JobEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case JOB_ID:
+                selection = JobEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                cursor = database.query(JobEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        if (columnar) {
+            Cursor rows = cursor;
+            try {
+                cursor = ColumnarCursor.copyOf(rows);
+            } finally {
+                rows.close();
+            }
+        }
+
         /*
          * Set notification URI on the Cursor, so we know what content URI the Cursor was created
          * for. If the data at this URI changes, then we know we need to update the Cursor.
          */
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        return cursor;
+    }
+
+    /**
+     * Query the pets whose folded name is one of the matches {@link FuzzyNames} finds for the
+     * given name, ordered by how close the name is, and then by ID. The given selection further
+     * narrows the pets down. Without matches, the query still runs with a selection that is
+     * never true, so the cursor has the usual columns.
+     */
+    private static Cursor queryFuzzyPets(SQLiteDatabase database, String name,
+                                         String[] projection, String selection,
+                                         String[] selectionArgs,
+                                         CancellationSignal cancellationSignal) {
+        List<String> matches = FuzzyNames.findMatches(database, name);
+        if (matches.isEmpty())
+            return queryPets(database, PetEntry.VIEW_NAME, projection, "0", null, null,
+                    cancellationSignal);
+
+        StringBuilder matchSelection = new StringBuilder(PetEntry.COLUMN_PET_NAME_FOLD + " IN (");
+        StringBuilder sortOrder = new StringBuilder("CASE " + PetEntry.COLUMN_PET_NAME_FOLD);
+        for (int i = 0; i < matches.size(); i++) {
+            matchSelection.append(i == 0 ? "?" : ", ?");
+            sortOrder.append(" WHEN ? THEN ").append(i);
+        }
+        matchSelection.append(')');
+        sortOrder.append(" END, ").append(PetEntry._ID);
+
+        // The arguments go in the order of their "?": the matches, the caller's selection, and
+        // the matches again for the sort order.
+        List<String> args = new ArrayList<>(matches);
+        if (!TextUtils.isEmpty(selection)) {
+            matchSelection.append(" AND (").append(selection).append(')');
+            if (selectionArgs != null)
+                args.addAll(Arrays.asList(selectionArgs));
+        }
+        args.addAll(matches);
+
+        return queryPets(database, PetEntry.VIEW_NAME, projection, matchSelection.toString(),
+                args.toArray(new String[args.size()]), sortOrder.toString(), cancellationSignal);
+    }
+
+    /**
+     * Query the given view of pets, passing the cancellation signal on to SQLite if there is one.
+     * The framework only passes a signal from Android 4.1 onwards, which is also when SQLite
+     * queries started to accept one.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor queryPets(SQLiteDatabase database, String view, String[] projection,
+                                    String selection, String[] selectionArgs, String sortOrder,
+                                    CancellationSignal cancellationSignal) {
+        if (cancellationSignal == null)
+            return database.query(view, projection, selection, selectionArgs,
+                    null, null, sortOrder);
+
+        return database.query(false, view, projection, selection, selectionArgs,
+                null, null, sortOrder, null, cancellationSignal);
+    }
+
+    /**
+     * Returns the time in the given query parameter of the URI, or the default time if the
+     * parameter isn't there.
+     */
+    private static long parseTimeParameter(Uri uri, String parameter, long defaultTime) {
+        String value = uri.getQueryParameter(parameter);
+        if (value == null)
+            return defaultTime;
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + parameter + " time in " + uri);
+        }
+    }
+
+    /**
+     * Returns a cursor with the words in the given index that start with the given prefix.
+     */
+    private static Cursor querySuggestions(PrefixIndex index, String prefix) {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                SuggestionEntry._ID, SuggestionEntry.COLUMN_SUGGESTION});
+
+        List<String> suggestions = index.find(prefix, MAX_SUGGESTIONS);
+        for (int i = 0; i < suggestions.size(); i++)
+            cursor.addRow(new Object[]{i, suggestions.get(i)});
 
         return cursor;
     }
 
+    /**
+     * Add the name and breed in the given values to the autocomplete indexes, after they have been
+     * written to the database.
+     */
+    private void addSuggestions(ContentValues values) {
+        if (values.containsKey(PetEntry.COLUMN_PET_NAME))
+            nameIndex.add(values.getAsString(PetEntry.COLUMN_PET_NAME));
+        if (values.containsKey(PetEntry.COLUMN_PET_BREED))
+            breedIndex.add(values.getAsString(PetEntry.COLUMN_PET_BREED));
+    }
+
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues contentValues) {
+        PetTrace.beginSection("PetProvider.insert");
+        databaseLock.readLock().lock();
+        beginDeferredNotifications();
+        boolean committed = false;
+        try {
+            PetTrace.beginSection("PetProvider.insert.sql");
+            try {
+                Uri result;
+                if (!isCallerSyncAdapter(uri)) {
+                    result = insertLocked(uri, contentValues);
+                } else {
+                    SQLiteDatabase database = beginSyncAdapterWrite();
+                    try {
+                        result = insertLocked(uri, contentValues);
+                        endSyncAdapterWrite(database);
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+                committed = true;
+                return result;
+            } finally {
+                PetTrace.endSection();
+            }
+        } finally {
+            // Notify the listeners after the database work, in a section of its own.
+            endDeferredNotifications(committed);
+            databaseLock.readLock().unlock();
+            PetTrace.endSection();
+        }
+    }
+
+    private Uri insertLocked(Uri uri, ContentValues contentValues) {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
                 return insertPet(uri, contentValues);
+            case PET_UPSERT:
+                return upsertPet(contentValues);
+            case SHELTER_PETS:
+                return insertShelterPet(uri, contentValues);
+            case OWNERS:
+                return insertOwner(uri, contentValues);
+            case ADOPTIONS:
+                return insertAdoption(uri, contentValues);
+            case JOBS:
+                return insertJob(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
     }
 
-    /*
-     * Insert a pet into the database with the given content values. Return the new content URI for
-     * that specific row in the database.
+    /**
+     * Insert or update many pets in one transaction, so the whole batch costs one commit and one
+     * change notification. Inserting into {@link PetEntry#CONTENT_URI} inserts new pets, and
+     * inserting into {@link PetEntry#UPSERT_URI} inserts or updates pets by their external ID.
+     * The values are checked exactly as for single rows.
+     *
+     * @return the number of pets that were written
      */
-    private Uri insertPet(Uri uri, ContentValues values) {
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = uriMatcher.match(uri);
+        if (match != PETS && match != PET_UPSERT)
+            return super.bulkInsert(uri, values);
 
-        // check that the name is not null
-        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Pet requires a name");
+        PetTrace.beginSection("PetProvider.bulkInsert");
+        databaseLock.readLock().lock();
+        beginDeferredNotifications();
+        boolean committed = false;
+        try {
+            PetTrace.beginSection("PetProvider.bulkInsert.sql");
+            try {
+                int rowsInserted;
+                if (!isCallerSyncAdapter(uri)) {
+                    rowsInserted = bulkInsertPets(uri, match, values);
+                } else {
+                    SQLiteDatabase database = beginSyncAdapterWrite();
+                    try {
+                        rowsInserted = bulkInsertPets(uri, match, values);
+                        endSyncAdapterWrite(database);
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+                committed = true;
+                return rowsInserted;
+            } finally {
+                PetTrace.endSection();
+            }
+        } finally {
+            // Notify the listeners after the database work, in a section of its own.
+            endDeferredNotifications(committed);
+            databaseLock.readLock().unlock();
+            PetTrace.endSection();
         }
+    }
+
+    private int bulkInsertPets(Uri uri, int match, ContentValues[] values) {
 
-        // check that the gender is valid
-        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-        if (gender == null || !PetEntry.isValidGender(gender)) {
-            throw new IllegalArgumentException("Pet requires valid gender");
+        String onDuplicate = getOnDuplicate(uri);
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+        boolean successful = false;
+
+        database.beginTransaction();
+        try {
+            for (ContentValues petValues : values) {
+                long id;
+                if (match == PETS) {
+                    PetValidator.validateInsert(petValues);
+                    id = intakePetRow(database, petValues, onDuplicate);
+                    if (id == DUPLICATE_REJECTED)
+                        continue;
+                } else {
+                    PetValidator.validateUpsert(petValues);
+                    id = upsertPetRow(database, petValues);
+                }
+
+                if (id == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                    continue;
+                }
+                rowsInserted++;
+            }
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+
+            // Breeds added by a rolled back transaction are gone again, so forget them.
+            if (!successful)
+                breedCache.clear();
         }
 
-        // If the weight is provided, check that it's greater than or equal to 0kg.
-        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-        if (weight != null && weight < 0) {
-            throw new IllegalArgumentException("Pet requires valid weight");
+        if (rowsInserted != 0) {
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+            for (ContentValues petValues : values)
+                addSuggestions(petValues);
         }
 
-        // No need to check the breed, any value is valid (including null).
+        return rowsInserted;
+    }
+
+    /**
+     * Insert a pet, or update the pet with the same external ID if there already is one. Return
+     * the content URI of the pet.
+     */
+    private Uri upsertPet(ContentValues values) {
+
+        // An upsert may create the pet, so check the values as for a new pet.
+        PetValidator.validateUpsert(values);
 
-        // Get writable database.
         SQLiteDatabase database = dbHelper.getWritableDatabase();
+        long id;
+        boolean successful = false;
 
-        // Insert the new pet with the given values
-        long id = database.insert(PetEntry.TABLE_NAME, null, values);
+        database.beginTransaction();
+        try {
+            id = upsertPetRow(database, values);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+            if (!successful)
+                breedCache.clear();
+        }
 
-        // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            Log.e(LOG_TAG, "Failed to upsert row for " + PetEntry.UPSERT_URI);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyPetsChanged(PetEntry.CONTENT_URI);
+        addSuggestions(values);
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Write one upsert to the database, which must be inside a transaction, and add the weight to
+     * the history of the pet if it changed. Return the ID of the pet, or -1 if the write failed.
+     */
+    private long upsertPetRow(SQLiteDatabase database, ContentValues values) {
+        ContentValues tableValues = toTableValues(database, values);
+        String externalId = tableValues.getAsString(PetEntry.COLUMN_PET_EXTERNAL_ID);
+
+        // Remember the current weight of the pet, so a change can be added to its history.
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        Long oldWeight = null;
+        if (weight != null) {
+            Cursor cursor = database.query(PetEntry.TABLE_NAME,
+                    new String[]{PetEntry.COLUMN_PET_WEIGHT},
+                    PetEntry.COLUMN_PET_EXTERNAL_ID + "=?", new String[]{externalId},
+                    null, null, null);
+            try {
+                if (cursor.moveToFirst())
+                    oldWeight = cursor.getLong(0);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        long id = writeUpsert(database, tableValues, externalId);
+        if (id != -1)
+            PetFingerprints.refresh(database, new long[]{id});
+
+        if (id != -1 && weight != null && (oldWeight == null || oldWeight != weight.longValue()))
+            WeightHistory.record(database, id, weight, System.currentTimeMillis());
+
+        return id;
+    }
+
+    /**
+     * Write the table values of an upsert, and return the ID of the pet or -1 if the write failed.
+     *
+     * SQLite 3.24 and later do this in one statement with INSERT ... ON CONFLICT DO UPDATE. Older
+     * versions try an UPDATE of the pet with the external ID first, and INSERT if nothing was
+     * updated. Either way the ID is then read from the unique index on the external ID.
+     */
+    private static long writeUpsert(SQLiteDatabase database, ContentValues tableValues,
+                                    String externalId) {
+        if (SqliteVersion.supportsUpsert(database)) {
+            StringBuilder columns = new StringBuilder();
+            StringBuilder placeholders = new StringBuilder();
+            StringBuilder updates = new StringBuilder();
+            Object[] bindArgs = new Object[tableValues.size()];
+            int i = 0;
+
+            for (String column : tableValues.keySet()) {
+                if (i > 0) {
+                    columns.append(", ");
+                    placeholders.append(", ");
+                }
+                columns.append(column);
+                placeholders.append('?');
+                bindArgs[i++] = tableValues.get(column);
+
+                if (!column.equals(PetEntry.COLUMN_PET_EXTERNAL_ID)) {
+                    if (updates.length() > 0)
+                        updates.append(", ");
+                    updates.append(column).append(" = excluded.").append(column);
+                }
+            }
+
+            database.execSQL("INSERT INTO " + PetEntry.TABLE_NAME + " (" + columns + ")"
+                    + " VALUES (" + placeholders + ")"
+                    + " ON CONFLICT (" + PetEntry.COLUMN_PET_EXTERNAL_ID + ") DO UPDATE SET "
+                    + updates, bindArgs);
+        } else {
+            int rowsUpdated = database.update(PetEntry.TABLE_NAME, tableValues,
+                    PetEntry.COLUMN_PET_EXTERNAL_ID + "=?", new String[]{externalId});
+
+            // No pet with this external ID yet, so insert it. The insert returns the new ID.
+            if (rowsUpdated == 0)
+                return database.insert(PetEntry.TABLE_NAME, null, tableValues);
+        }
+
+        return DatabaseUtils.longForQuery(database, "SELECT " + PetEntry._ID + " FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_EXTERNAL_ID + "=?",
+                new String[]{externalId});
+    }
+
+    /*
+     * Insert a pet into the database with the given content values. Return the new content URI for
+     * that specific row in the database.
+     */
+    private Uri insertPet(Uri uri, ContentValues values) {
+
+        // Check that the values are valid for a new pet.
+        PetValidator.validateInsert(values);
+        String onDuplicate = getOnDuplicate(uri);
+
+        // Get writable database.
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+
+        // Insert the new pet and start its weight history in one transaction.
+        long id;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            id = intakePetRow(database, values, onDuplicate);
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+
+            // Breeds added by a rolled back transaction are gone again, so forget them.
+            if (!successful)
+                breedCache.clear();
+        }
+
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+        if (id == DUPLICATE_REJECTED)
+            return null;
+
+        // Notify all listeners that the data has changed for the pet content URI
+        notifyPetsChanged(uri);
+        addSuggestions(values);
 
         // Return the new URI with the ID (of the newly inserted row) appended at the end.
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+
+    }
+
+    /**
+     * Returns the on-duplicate mode of the given insert URI, or null if the URI has none, see
+     * {@link PetEntry#buildOnDuplicateUri}.
+     *
+     * @throws IllegalArgumentException if the mode isn't one of the ON_DUPLICATE values
+     */
+    private static String getOnDuplicate(Uri uri) {
+        String onDuplicate = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_ON_DUPLICATE);
+        if (onDuplicate != null && !onDuplicate.equals(PetEntry.ON_DUPLICATE_REJECT)
+                && !onDuplicate.equals(PetEntry.ON_DUPLICATE_MERGE)
+                && !onDuplicate.equals(PetEntry.ON_DUPLICATE_FLAG))
+            throw new IllegalArgumentException("Invalid on-duplicate mode in " + uri);
+        return onDuplicate;
+    }
+
+    /**
+     * Insert a pet with the given (already checked) values, after looking for a pet that is
+     * already there if there is an on-duplicate mode. Call this inside a transaction. Return the
+     * ID of the new pet or of the pet the values were merged into, {@link #DUPLICATE_REJECTED} if
+     * the pet was already there and the mode rejects it, or -1 if the insertion failed.
+     */
+    private long intakePetRow(SQLiteDatabase database, ContentValues values, String onDuplicate) {
+        if (onDuplicate == null)
+            return insertPetRow(database, values, -1);
+
+        long originalId = PetFingerprints.findOriginal(database, PetFingerprints.of(values));
+        if (originalId == -1 || onDuplicate.equals(PetEntry.ON_DUPLICATE_FLAG))
+            return insertPetRow(database, values, originalId);
+        if (onDuplicate.equals(PetEntry.ON_DUPLICATE_REJECT))
+            return DUPLICATE_REJECTED;
+
+        updatePetRows(database, values, PetEntry._ID + "=?",
+                new String[]{String.valueOf(originalId)});
+        return originalId;
+    }
+
+    /**
+     * Insert a pet with the given (already checked) values, with the breed name swapped for its
+     * ID and its fingerprint added, and record its first weight in the weight history. Call this
+     * inside a transaction. Return the ID of the new pet, or -1 if the insertion failed.
+     *
+     * @param duplicateOf ID of the pet that the new pet duplicates, or -1 if none
+     */
+    private long insertPetRow(SQLiteDatabase database, ContentValues values, long duplicateOf) {
+        ContentValues tableValues = toTableValues(database, values);
+        tableValues.put(PetEntry.COLUMN_PET_FINGERPRINT, PetFingerprints.of(values));
+        if (duplicateOf != -1)
+            tableValues.put(PetEntry.COLUMN_PET_DUPLICATE_OF, duplicateOf);
+
+        long id = database.insert(PetEntry.TABLE_NAME, null, tableValues);
+
+        if (id != -1) {
+            // Pets without a weight get the default weight of 0kg.
+            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            WeightHistory.record(database, id, weight == null ? 0 : weight,
+                    System.currentTimeMillis());
+        }
+        return id;
+    }
+
+    /**
+     * Insert a pet into the database of the shelter in the given URI. Return the new content URI
+     * for that pet.
+     */
+    private Uri insertShelterPet(Uri uri, ContentValues values) {
+        long id = shelterShards.insert(getShelter(uri), values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // The shelter databases aren't part of the table generation of the main database.
+        getContext().getContentResolver().notifyChange(uri, null);
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Returns the name of the shelter in the given shelter URI.
+     */
+    private static String getShelter(Uri uri) {
+        return uri.getPathSegments().get(1);
+    }
+
+    /**
+     * Add a job of the type in the given values, and schedule the jobs to run. Return the content
+     * URI of the job, to follow its progress.
+     */
+    private Uri insertJob(Uri uri, ContentValues values) {
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        long id = PetJobs.enqueue(database, values.getAsString(JobEntry.COLUMN_JOB_TYPE));
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        getContext().getContentResolver().notifyChange(uri, null);
+        scheduleJobs();
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Have the jobs run in the background: by the {@link PetJobService} where there is a job
+     * scheduler, and straight away on a background thread otherwise. Without the scheduler, jobs
+     * that are cut short carry on the next time the provider starts.
+     */
+    private void scheduleJobs() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            PetJobService.schedule(getContext());
+            return;
+        }
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                runJobs();
+            }
+        });
+    }
+
+    /**
+     * Run the jobs until there are none left, or {@link #stopJobs} is called. A second run waits
+     * for the first one to end. Each chunk of a job holds the database lock, which is let go in
+     * between, so a restore waits for one chunk at most.
+     */
+    private Bundle runJobs() {
+        boolean finished;
+        synchronized (jobRunLock) {
+            jobRunner = new JobRunner(jobs, databaseLock.readLock());
+            try {
+                finished = jobRunner.run();
+            } finally {
+                jobRunner = null;
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(JobEntry.EXTRA_FINISHED, finished);
+        return result;
+    }
+
+    /**
+     * Ask the jobs that are running to stop after their current chunk.
+     */
+    private Bundle stopJobs() {
+        JobRunner runner = jobRunner;
+        if (runner != null)
+            runner.stop();
+        return null;
+    }
+
+    /**
+     * Insert an owner into the database with the given content values. Return the new content URI
+     * for that owner.
+     */
+    private Uri insertOwner(Uri uri, ContentValues values) {
+        PetValidator.validateOwner(values, true);
+
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        long id = database.insert(OwnerEntry.TABLE_NAME, null, values);
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyPetsChanged(uri);
         return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Insert the adoption of a pet into the database with the given content values, replacing the
+     * adoption the pet already has, if any. Return the new content URI for that adoption.
+     */
+    private Uri insertAdoption(Uri uri, ContentValues values) {
+        PetValidator.validateAdoption(values, true);
+
+        if (!values.containsKey(AdoptionEntry.COLUMN_ADOPTED_AT)) {
+            values = new ContentValues(values);
+            values.put(AdoptionEntry.COLUMN_ADOPTED_AT, System.currentTimeMillis());
+        }
 
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        long id;
+        try {
+            id = database.insertWithOnConflict(AdoptionEntry.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteConstraintException e) {
+            // The foreign keys don't allow adoptions of pets or by owners that don't exist.
+            throw new IllegalArgumentException("Adoption requires an existing pet and owner", e);
+        }
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyPetsChanged(uri);
+        return ContentUris.withAppendedId(uri, id);
     }
 
     @Override
     public int update(@NonNull Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        PetTrace.beginSection("PetProvider.update");
+        databaseLock.readLock().lock();
+        beginDeferredNotifications();
+        boolean committed = false;
+        try {
+            PetTrace.beginSection("PetProvider.update.sql");
+            try {
+                int rowsUpdated;
+                if (!isCallerSyncAdapter(uri)) {
+                    rowsUpdated = updateLocked(uri, contentValues, selection, selectionArgs);
+                } else {
+                    SQLiteDatabase database = beginSyncAdapterWrite();
+                    try {
+                        rowsUpdated = updateLocked(uri, contentValues, selection, selectionArgs);
+                        endSyncAdapterWrite(database);
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+                committed = true;
+                return rowsUpdated;
+            } finally {
+                PetTrace.endSection();
+            }
+        } finally {
+            // Notify the listeners after the database work, in a section of its own.
+            endDeferredNotifications(committed);
+            databaseLock.readLock().unlock();
+            PetTrace.endSection();
+        }
+    }
+
+    private int updateLocked(Uri uri, ContentValues contentValues, String selection,
+                             String[] selectionArgs) {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
-                return updatePet(uri, contentValues, selection, selectionArgs);
+                return updatePet(uri, contentValues, toTableSelection(selection), selectionArgs);
             case PET_ID:
                 /*
                  * for the PET_ID code, extract out the ID from the URI, so we know which row to
@@ -224,52 +1449,108 @@ public class PetProvider extends ContentProvider {
                  */
                 selection = PetEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri))};
-                return updatePet(uri, contentValues, selection, selectionArgs);
+
+                // A compare-and-set update only changes the pet if it still has the version the
+                // caller read, see {@link PetEntry#buildVersionedUri}.
+                String expectedVersion =
+                        uri.getQueryParameter(PetEntry.QUERY_PARAMETER_EXPECTED_VERSION);
+                if (expectedVersion == null)
+                    return updatePet(uri, contentValues, selection, selectionArgs);
+                return updatePetIfVersion(uri, contentValues, expectedVersion);
+            case SHELTER_PET_ID:
+                int rowsUpdated = shelterShards.update(getShelter(uri), ContentUris.parseId(uri),
+                        contentValues);
+                if (rowsUpdated != 0)
+                    getContext().getContentResolver().notifyChange(uri, null);
+                return rowsUpdated;
+            case OWNERS:
+                PetValidator.validateOwner(contentValues, false);
+                return updateRows(uri, OwnerEntry.TABLE_NAME, contentValues, selection,
+                        selectionArgs);
+            case OWNER_ID:
+                PetValidator.validateOwner(contentValues, false);
+                selection = OwnerEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateRows(uri, OwnerEntry.TABLE_NAME, contentValues, selection,
+                        selectionArgs);
+            case ADOPTIONS:
+                PetValidator.validateAdoption(contentValues, false);
+                return updateRows(uri, AdoptionEntry.TABLE_NAME, contentValues, selection,
+                        selectionArgs);
+            case ADOPTION_ID:
+                PetValidator.validateAdoption(contentValues, false);
+                selection = AdoptionEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                return updateRows(uri, AdoptionEntry.TABLE_NAME, contentValues, selection,
+                        selectionArgs);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
     /**
-     * Update pets in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which cold be 0 or 1 or more pets).
-     * Return the number of rows that were successfully updated.
+     * Update a single pet only if it still has the expected version. The version check is part of
+     * the WHERE clause of the update itself, so no lock is needed between the caller reading the
+     * pet and this update.
+     *
+     * @throws PetVersionConflictException if the pet exists but has a different version
      */
-    private int updatePet(Uri uri, ContentValues values, String selection,
-                          String[] selectionArgs) {
-
-        /*
-         * If the {@link PetEntry#COLUMN_PET_NAME} key is present, check that the name value is
-         * not null.
-         */
-        if (values.containsKey(PetEntry.COLUMN_PET_NAME)){
-            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
-            if (name == null)
-                throw new IllegalArgumentException("Pet requires a name");
+    private int updatePetIfVersion(Uri uri, ContentValues values, String expectedVersion) {
+        long id = ContentUris.parseId(uri);
+        long version;
+        try {
+            version = Long.parseLong(expectedVersion);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid expected version in " + uri);
         }
 
-        /*
-         * If the {@link PetEntry#COLUMN_PET_GENDER} key is present, check that the gender value is
-         * valid.
-         */
-        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)){
-            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
-            if (gender == null || !PetEntry.isValidGender(gender))
-                throw new IllegalArgumentException("Pet requires valid gender");
+        String selection = PetEntry._ID + "=? AND " + PetEntry.COLUMN_PET_VERSION + "=?";
+        String[] selectionArgs = {String.valueOf(id), String.valueOf(version)};
+        int rowsUpdated = updatePet(uri, values, selection, selectionArgs);
+
+        // Nothing was updated, either because the pet is gone or because it has moved on.
+        if (rowsUpdated == 0 && values.size() != 0) {
+            long petCount = DatabaseUtils.queryNumEntries(dbHelper.getReadableDatabase(),
+                    PetEntry.TABLE_NAME, PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+            if (petCount != 0)
+                throw new PetVersionConflictException(id, version);
         }
+        return rowsUpdated;
+    }
 
-        /*
-         * If the {@link PetEntry#COLUMN_PET_WEIGHT} key is present, check that the weight value is
-         * valid.
-         */
-        if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
-            // check that the weight is greater than or equal to 0kg
-            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
-            if (weight != null && weight < 0)
-                throw new IllegalArgumentException("Pet requires valid weight");
+    /**
+     * Update owners or adoptions with the given (already checked) content values, and return the
+     * number of rows that were updated.
+     */
+    private int updateRows(Uri uri, String table, ContentValues values, String selection,
+                           String[] selectionArgs) {
+        if (values.size() == 0)
+            return 0;
+
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        int rowsUpdated;
+        try {
+            rowsUpdated = database.update(table, values, selection, selectionArgs);
+        } catch (SQLiteConstraintException e) {
+            // The foreign keys don't allow adoptions by owners that don't exist.
+            throw new IllegalArgumentException("Adoption requires an existing owner", e);
         }
 
-        // No need to check the breed, any value is valid (including null).
+        if (rowsUpdated != 0)
+            notifyPetsChanged(uri);
+        return rowsUpdated;
+    }
+
+    /**
+     * Update pets in the database with the given content values. Apply the changes to the rows
+     * specified in the selection and selection arguments (which cold be 0 or 1 or more pets).
+     * Return the number of rows that were successfully updated.
+     */
+    private int updatePet(Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
+
+        // Check that the values that are present are valid.
+        PetValidator.validateUpdate(values);
 
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0)
@@ -278,23 +1559,223 @@ public class PetProvider extends ContentProvider {
         // Otherwise, get writable database to update the data.
         SQLiteDatabase database = dbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        /*
+         * Perform the update on the database and get the number of rows affected. If the weight
+         * changes, the new weight is also added to the weight history of every pet it changes,
+         * and if the fingerprint can change, it is made again for every pet that is updated.
+         */
+        int rowsUpdated;
+        if (!PetFingerprints.dependsOn(values)) {
+            rowsUpdated = database.update(PetEntry.TABLE_NAME,
+                    toTableValues(database, values), selection, selectionArgs);
+        } else {
+            rowsUpdated = updatePetRows(database, values, selection, selectionArgs);
+        }
 
         /*
          * If 1 or more rows were updated, then notify all listeners that the data at the given URI
          * has changed
          */
-        if (rowsUpdated != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
+        if (rowsUpdated != 0) {
+            notifyPetsChanged(uri);
+            addSuggestions(values);
+        }
 
         // Return the number of rows updated
         return rowsUpdated;
 
     }
 
+    /**
+     * Update pets with values that can change their fingerprint, all in one transaction: make
+     * the fingerprint of every updated pet again, and if the values include a weight, record it
+     * in the history of each pet whose weight it changes. Pets that already have this weight are
+     * still updated, but get no new history point. Nests inside the transaction of the caller, if
+     * there is one.
+     */
+    private int updatePetRows(SQLiteDatabase database, ContentValues values, String selection,
+                              String[] selectionArgs) {
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+
+        int rowsUpdated;
+        boolean successful = false;
+        database.beginTransaction();
+        try {
+            // Find the pets and the weights they have, before the update changes them.
+            Cursor pets = database.query(PetEntry.TABLE_NAME,
+                    new String[]{PetEntry._ID, PetEntry.COLUMN_PET_WEIGHT},
+                    selection, selectionArgs, null, null, null);
+            long[] ids;
+            long[] changedIds;
+            int changedCount = 0;
+            try {
+                ids = new long[pets.getCount()];
+                changedIds = new long[pets.getCount()];
+                for (int i = 0; pets.moveToNext(); i++) {
+                    ids[i] = pets.getLong(0);
+                    if (weight != null && pets.getInt(1) != weight)
+                        changedIds[changedCount++] = ids[i];
+                }
+            } finally {
+                pets.close();
+            }
+
+            rowsUpdated = database.update(PetEntry.TABLE_NAME,
+                    toTableValues(database, values), selection, selectionArgs);
+
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < changedCount; i++)
+                WeightHistory.record(database, changedIds[i], weight, now);
+            PetFingerprints.refresh(database, ids);
+
+            database.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            database.endTransaction();
+            if (!successful)
+                breedCache.clear();
+        }
+        return rowsUpdated;
+    }
+
     @Override
     public int delete(@NonNull Uri uri, String selection, String[] selectionArgs) {
+        PetTrace.beginSection("PetProvider.delete");
+        databaseLock.readLock().lock();
+        beginDeferredNotifications();
+        boolean committed = false;
+        try {
+            PetTrace.beginSection("PetProvider.delete.sql");
+            try {
+                int rowsDeleted;
+                if (!isCallerSyncAdapter(uri)) {
+                    rowsDeleted = deleteLocked(uri, selection, selectionArgs);
+                } else {
+                    SQLiteDatabase database = beginSyncAdapterWrite();
+                    try {
+                        rowsDeleted = deleteLocked(uri, selection, selectionArgs);
+                        endSyncAdapterWrite(database);
+                    } finally {
+                        database.endTransaction();
+                    }
+                }
+                committed = true;
+                return rowsDeleted;
+            } finally {
+                PetTrace.endSection();
+            }
+        } finally {
+            // Notify the listeners after the database work, in a section of its own.
+            endDeferredNotifications(committed);
+            databaseLock.readLock().unlock();
+            PetTrace.endSection();
+        }
+    }
+
+    /**
+     * Apply the operations in one transaction, so that either all of them are applied or none
+     * are, and listeners are notified once, after the commit, if any operation changed anything.
+     * The sync applies the changes from the server this way.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        databaseLock.readLock().lock();
+        try {
+            SQLiteDatabase database = dbHelper.getWritableDatabase();
+            boolean successful = false;
+
+            beginDeferredNotifications();
+            database.beginTransaction();
+            try {
+                ContentProviderResult[] results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+                successful = true;
+                return results;
+            } finally {
+                try {
+                    database.endTransaction();
+
+                    // Breeds added by a rolled back transaction are gone again, so forget them.
+                    if (!successful)
+                        breedCache.clear();
+                } finally {
+                    endDeferredNotifications(successful);
+                }
+            }
+        } finally {
+            databaseLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether the given URI marks its write as made by the sync, see
+     * {@link PetContract#asSyncAdapter}.
+     */
+    private static boolean isCallerSyncAdapter(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(CALLER_IS_SYNC_ADAPTER));
+    }
+
+    /**
+     * Start the transaction of a write made by the sync, with the change log turned off, since
+     * the changes come from the server. Call this with the notifications held back, see
+     * {@link #beginDeferredNotifications}, so listeners aren't notified before the commit.
+     *
+     * @return the database the transaction was started on
+     */
+    private SQLiteDatabase beginSyncAdapterWrite() {
+        SQLiteDatabase database = dbHelper.getWritableDatabase();
+        database.beginTransaction();
+        PetChangeLog.setSuppressed(database, true);
+        return database;
+    }
+
+    /**
+     * Turn the change log on again, and mark the transaction of a write made by the sync as
+     * successful. The caller still has to end the transaction.
+     */
+    private static void endSyncAdapterWrite(SQLiteDatabase database) {
+        PetChangeLog.setSuppressed(database, false);
+        database.setTransactionSuccessful();
+    }
+
+    /**
+     * Hold back the change notifications of the current thread until the matching call to
+     * {@link #endDeferredNotifications}. A write inside a transaction would otherwise notify
+     * before the commit, so listeners would reload data that doesn't show the change yet, and a
+     * batch would notify once per operation. Every write holds them back, so the trace shows the
+     * notification apart from the database work. Calls can be nested, as when the operations of a
+     * batch are writes of their own.
+     */
+    private void beginDeferredNotifications() {
+        DeferredNotifications deferred = deferredNotifications.get();
+        if (deferred == null) {
+            deferred = new DeferredNotifications();
+            deferredNotifications.set(deferred);
+        }
+        deferred.depth++;
+    }
+
+    /**
+     * Stop holding back the change notifications of the current thread, see
+     * {@link #beginDeferredNotifications}. The outermost call notifies the listeners once, if
+     * anything changed in the meantime and the write was committed: of the URI that was changed,
+     * or of every URI of the provider if several were.
+     *
+     * @param committed whether the write that the notifications were held back for was committed
+     */
+    private void endDeferredNotifications(boolean committed) {
+        DeferredNotifications deferred = deferredNotifications.get();
+        if (--deferred.depth > 0)
+            return;
+
+        deferredNotifications.remove();
+        if (committed && deferred.uri != null)
+            notifyPetsChanged(deferred.uri);
+    }
+
+    private int deleteLocked(Uri uri, String selection, String[] selectionArgs) {
 
         // Get writable database
         SQLiteDatabase database = dbHelper.getWritableDatabase();
@@ -306,7 +1787,8 @@ public class PetProvider extends ContentProvider {
         switch (match) {
             case PETS:
                 // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                rowsDeleted = database.delete(PetEntry.TABLE_NAME, toTableSelection(selection),
+                        selectionArgs);
                 break;
             case PET_ID:
                 // Delete a single row given by the ID in the URI
@@ -314,6 +1796,34 @@ public class PetProvider extends ContentProvider {
                 selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
                 rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case SHELTER_PETS:
+            case SHELTER_PET_ID:
+                // Delete from the shelter's database, which isn't part of the table generation.
+                if (match == SHELTER_PET_ID) {
+                    selection = PetEntry._ID + "=?";
+                    selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                }
+                rowsDeleted = shelterShards.delete(getShelter(uri), selection, selectionArgs);
+                if (rowsDeleted != 0)
+                    getContext().getContentResolver().notifyChange(uri, null);
+                return rowsDeleted;
+            case OWNERS:
+                // Deleting owners also deletes their adoptions, through the foreign key.
+                rowsDeleted = database.delete(OwnerEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case OWNER_ID:
+                selection = OwnerEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                rowsDeleted = database.delete(OwnerEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case ADOPTIONS:
+                rowsDeleted = database.delete(AdoptionEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case ADOPTION_ID:
+                selection = AdoptionEntry._ID + "=?";
+                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                rowsDeleted = database.delete(AdoptionEntry.TABLE_NAME, selection, selectionArgs);
+                break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
@@ -323,23 +1833,324 @@ public class PetProvider extends ContentProvider {
          * was changed
          */
         if (rowsDeleted != 0)
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyPetsChanged(uri);
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    /**
+     * Callers write their selections against the columns they can query, which includes the breed
+     * name. The pets table only has the breed ID, so turn the selection into a lookup of the
+     * matching IDs in the pets view. A null selection still matches every row.
+     */
+    static String toTableSelection(String selection) {
+        if (selection == null)
+            return null;
+
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetEntry.VIEW_NAME
+                + " WHERE " + selection + ")";
+    }
+
+    /**
+     * Notify all listeners that the data at the given URI has changed, and move the pets table on
+     * to a new {@link TableGeneration} so that anything built from the old data knows it is stale.
+     * Changes to owners and adoptions count as changes to the pets too, since the catalog shows the
+     * owner of each pet. Every write also pushes database maintenance back to the next idle window.
+     * While the notifications of the current thread are held back, this only records that there
+     * was a change, see {@link #beginDeferredNotifications}.
+     */
+    private void notifyPetsChanged(Uri uri) {
+        DeferredNotifications deferred = deferredNotifications.get();
+        if (deferred != null) {
+            if (deferred.uri == null)
+                deferred.uri = uri;
+            else if (!deferred.uri.equals(uri))
+                deferred.uri = BASE_CONTENT_URI;
+            return;
+        }
+
+        PetTrace.beginSection("PetProvider.notify");
+        try {
+            TableGeneration.bump(getContext());
+            maintenance.onWrite();
+            getContext().getContentResolver().notifyChange(uri, null);
+        } finally {
+            PetTrace.endSection();
+        }
+    }
+
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+
+        /*
+         * Unlike query(), insert(), update() and delete(), call() isn't protected by the provider's
+         * permission in the manifest, so check it here. Calls from the app itself, such as those
+         * of PetJobService and PetSyncEngine, are always let through, as they are for the other
+         * methods.
+         */
+        if (Binder.getCallingUid() != Process.myUid())
+            getContext().enforceCallingOrSelfPermission(PERMISSION_ACCESS_PETS,
+                    "Calling " + method + " requires " + PERMISSION_ACCESS_PETS);
+
+        switch (method) {
+            case BulkRead.METHOD:
+                databaseLock.readLock().lock();
+                try {
+                    return bulkRead(extras);
+                } finally {
+                    databaseLock.readLock().unlock();
+                }
+            case SyncChanges.METHOD_READ:
+                databaseLock.readLock().lock();
+                try {
+                    return readSyncChanges(extras);
+                } finally {
+                    databaseLock.readLock().unlock();
+                }
+            case SyncChanges.METHOD_ACKNOWLEDGE:
+                databaseLock.readLock().lock();
+                try {
+                    return acknowledgeSyncChanges(extras);
+                } finally {
+                    databaseLock.readLock().unlock();
+                }
+            case Snapshot.METHOD_TAKE:
+                return takeSnapshot(arg);
+            case Snapshot.METHOD_RESTORE:
+                return restoreSnapshot(arg);
+            case JobEntry.METHOD_RUN:
+                return runJobs();
+            case JobEntry.METHOD_STOP:
+                return stopJobs();
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Read the oldest local changes for the sync, see {@link SyncChanges}.
+     */
+    private Bundle readSyncChanges(Bundle extras) {
+        int limit = SyncChanges.DEFAULT_LIMIT;
+        if (extras != null)
+            limit = extras.getInt(SyncChanges.EXTRA_LIMIT, SyncChanges.DEFAULT_LIMIT);
+        if (limit <= 0 || limit > SyncChanges.MAX_LIMIT)
+            throw new IllegalArgumentException("Sync changes limit must be between 1 and "
+                    + SyncChanges.MAX_LIMIT);
+
+        return PetChangeLog.read(dbHelper.getReadableDatabase(), limit);
+    }
+
+    /**
+     * Remove the local changes the sync has uploaded from the log, see {@link SyncChanges}.
+     */
+    private Bundle acknowledgeSyncChanges(Bundle extras) {
+        if (extras == null || !extras.containsKey(SyncChanges.EXTRA_SEQUENCE))
+            throw new IllegalArgumentException("Acknowledging sync changes requires a sequence");
+
+        PetChangeLog.acknowledge(dbHelper.getWritableDatabase(),
+                extras.getLong(SyncChanges.EXTRA_SEQUENCE));
+        return Bundle.EMPTY;
+    }
+
+    /**
+     * Take a snapshot of the database, see {@link Snapshot}.
+     */
+    private Bundle takeSnapshot(String name) {
+        File file;
+        databaseLock.readLock().lock();
+        try {
+            file = PetSnapshots.take(getContext(), dbHelper, name);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to take snapshot " + name, e);
+        } finally {
+            databaseLock.readLock().unlock();
+        }
+
+        Bundle result = new Bundle();
+        result.putString(Snapshot.EXTRA_PATH, file.getPath());
+        result.putLong(Snapshot.EXTRA_SIZE, file.length());
+        return result;
+    }
+
+    /**
+     * Replace the database with a snapshot, see {@link Snapshot}. The snapshot is copied and
+     * checked first, while the database is still in use. Only the swap itself waits for the calls
+     * that are running and holds back new ones.
+     */
+    private Bundle restoreSnapshot(String name) {
+        File file;
+        try {
+            databaseLock.readLock().lock();
+            try {
+                file = PetSnapshots.prepareRestore(getContext(), dbHelper, name);
+            } finally {
+                databaseLock.readLock().unlock();
+            }
+
+            databaseLock.writeLock().lock();
+            try {
+                PetSnapshots.swapIn(getContext(), dbHelper, file);
+
+                // The breed cache holds the breed IDs of the old database.
+                breedCache.clear();
+            } finally {
+                databaseLock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to restore snapshot " + name, e);
+        }
+
+        // Every URI of this provider has changed, so let all listeners know.
+        notifyPetsChanged(BASE_CONTENT_URI);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                databaseLock.readLock().lock();
+                try {
+                    buildSuggestionIndexes();
+                } finally {
+                    databaseLock.readLock().unlock();
+                }
+                updateNameKeys();
+            }
+        });
+
+        File snapshotFile = PetSnapshots.getFile(getContext(), name);
+        Bundle result = new Bundle();
+        result.putString(Snapshot.EXTRA_PATH, snapshotFile.getPath());
+        result.putLong(Snapshot.EXTRA_SIZE, snapshotFile.length());
+        return result;
+    }
+
+    /**
+     * Read a page of pets into packed arrays, as described in {@link BulkRead}.
+     */
+    private Bundle bulkRead(Bundle extras) {
+        long afterId = 0;
+        int limit = BulkRead.DEFAULT_LIMIT;
+        if (extras != null) {
+            afterId = extras.getLong(BulkRead.EXTRA_AFTER_ID, 0);
+            limit = extras.getInt(BulkRead.EXTRA_LIMIT, BulkRead.DEFAULT_LIMIT);
+        }
+        if (limit <= 0 || limit > BulkRead.MAX_LIMIT)
+            throw new IllegalArgumentException("Bulk read limit must be between 1 and "
+                    + BulkRead.MAX_LIMIT);
+
+        SQLiteDatabase database = dbHelper.getReadableDatabase();
+
+        // Walk the primary key from the last ID the caller has seen, so every page is a range scan.
+        Cursor cursor = database.query(PetEntry.VIEW_NAME, new String[]{
+                        PetEntry._ID,
+                        PetEntry.COLUMN_PET_NAME,
+                        PetEntry.COLUMN_PET_BREED,
+                        PetEntry.COLUMN_PET_GENDER,
+                        PetEntry.COLUMN_PET_WEIGHT},
+                PetEntry._ID + ">?", new String[]{String.valueOf(afterId)},
+                null, null, PetEntry._ID + " ASC", String.valueOf(limit));
+
+        try {
+            int count = cursor.getCount();
+            long[] ids = new long[count];
+            int[] genders = new int[count];
+            int[] weights = new int[count];
+            int[] nameIndexes = new int[count];
+            int[] breedIndexes = new int[count];
+
+            // Names and breeds repeat a lot, so each distinct string is only sent once.
+            List<String> strings = new ArrayList<>();
+            Map<String, Integer> stringIndexes = new HashMap<>();
+
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                nameIndexes[i] = indexOfString(cursor.getString(1), strings, stringIndexes);
+                breedIndexes[i] = indexOfString(cursor.getString(2), strings, stringIndexes);
+                genders[i] = cursor.getInt(3);
+                weights[i] = cursor.getInt(4);
+            }
+
+            Bundle result = new Bundle();
+            result.putLongArray(BulkRead.EXTRA_IDS, ids);
+            result.putIntArray(BulkRead.EXTRA_GENDERS, genders);
+            result.putIntArray(BulkRead.EXTRA_WEIGHTS, weights);
+            result.putStringArray(BulkRead.EXTRA_STRINGS, strings.toArray(new String[strings.size()]));
+            result.putIntArray(BulkRead.EXTRA_NAME_INDEXES, nameIndexes);
+            result.putIntArray(BulkRead.EXTRA_BREED_INDEXES, breedIndexes);
+            result.putBoolean(BulkRead.EXTRA_HAS_MORE, count == limit);
+            return result;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the index of the given string in the string table of a bulk read, adding it to the
+     * table if it isn't there yet. Returns -1 for null.
+     */
+    private static int indexOfString(String value, List<String> strings,
+                                     Map<String, Integer> stringIndexes) {
+        if (value == null)
+            return -1;
+
+        Integer index = stringIndexes.get(value);
+        if (index == null) {
+            index = strings.size();
+            strings.add(value);
+            stringIndexes.put(value, index);
+        }
+        return index;
+    }
+
     @Override
     public String getType(@NonNull Uri uri) {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case PETS:
+            case PETS_ALL:
+            case PETS_FUZZY:
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
+            case PET_UPSERT:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_HISTORY:
+                return HistoryEntry.CONTENT_LIST_TYPE;
+            case PETS_WITH_OWNER:
+                return PetWithOwnerEntry.CONTENT_LIST_TYPE;
+            case SHELTER_PETS:
+            case ALL_SHELTER_PETS:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case SHELTER_PET_ID:
+                return PetEntry.CONTENT_ITEM_TYPE;
+            case OWNERS:
+                return OwnerEntry.CONTENT_LIST_TYPE;
+            case OWNER_ID:
+                return OwnerEntry.CONTENT_ITEM_TYPE;
+            case ADOPTIONS:
+                return AdoptionEntry.CONTENT_LIST_TYPE;
+            case ADOPTION_ID:
+                return AdoptionEntry.CONTENT_ITEM_TYPE;
+            case SUGGESTIONS_NAME:
+            case SUGGESTIONS_BREED:
+                return SuggestionEntry.CONTENT_LIST_TYPE;
+            case JOBS:
+                return JobEntry.CONTENT_LIST_TYPE;
+            case JOB_ID:
+                return JobEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * The change notifications held back on one thread, see {@link #beginDeferredNotifications}.
+     */
+    private static final class DeferredNotifications {
+
+        /** Number of calls to {@link #beginDeferredNotifications} that haven't ended yet */
+        int depth;
+
+        /** URI to notify, or null if nothing changed while the notifications were held back */
+        Uri uri;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.pets.data;
+
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Checks the sort orders passed to {@link PetProvider#query} before they reach SQLite, so a query
+ * on a large pets table can always be answered by walking an index instead of sorting every row.
+ *
+ * A sort order is a comma separated list of terms of the form "column [ASC|DESC]". The first term
+ * must be a column with an index of its own, later terms may be any column of the pets table.
+ * Sort orders with an unknown column, an expression or a collation are rejected.
+ *
+ * Names are sorted by their collation keys (see {@link NameKeys}), so they come out in the order
+ * of the device language without a COLLATE clause, which SQLite couldn't answer with an index.
+ */
+final class PetQueryPlanner {
+
+    /**
+     * Columns that have an index of their own, so ordering by them is an index walk. The
+     * {@link PetEntry#_ID} column is the rowid of the table and doesn't need an index. Ordering by
+     * {@link PetEntry#COLUMN_PET_NAME} walks the index on the collation keys. Ordering by
+     * {@link PetEntry#COLUMN_PET_BREED} walks the unique index on the breed names, and then the
+     * index on the breed IDs of the pets table.
+     */
+    private static final Set<String> INDEXED_COLUMNS = new HashSet<>(Arrays.asList(
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_WEIGHT));
+
+    /**
+     * Columns that may be used as tie breakers after the first term of a sort order.
+     */
+    private static final Set<String> SORTABLE_COLUMNS = new HashSet<>(Arrays.asList(
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT));
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetQueryPlanner() {
+    }
+
+    /**
+     * Returns the sort order to send to SQLite for the given sort order.
+     *
+     * If the sort order doesn't already end with the {@link PetEntry#_ID} column, it is added as a
+     * final term in the same direction as the first term. Every index includes the rowid after its
+     * own columns, so this doesn't cost anything, and it makes the order of rows with equal values
+     * stable between queries.
+     *
+     * @param sortOrder as passed to {@link PetProvider#query}, may be null
+     * @return the sort order to use, or null for the default order
+     * @throws IllegalArgumentException if the sort order can't be served by an index
+     */
+    static String planSortOrder(String sortOrder) {
+        if (TextUtils.isEmpty(sortOrder))
+            return null;
+
+        String[] terms = sortOrder.trim().split("\\s*,\\s*");
+        StringBuilder plan = new StringBuilder();
+        String firstDirection = null;
+        boolean sortsById = false;
+
+        for (int i = 0; i < terms.length; i++) {
+            String[] parts = terms[i].trim().split("\\s+");
+            if (parts.length == 0 || parts.length > 2)
+                throw new IllegalArgumentException("Cannot sort by " + terms[i]);
+
+            String column = parts[0];
+            String direction = parts.length == 2 ? parts[1].toUpperCase(Locale.US) : "ASC";
+
+            if (!direction.equals("ASC") && !direction.equals("DESC"))
+                throw new IllegalArgumentException("Cannot sort by " + terms[i]);
+
+            if (i == 0 && !INDEXED_COLUMNS.contains(column))
+                throw new IllegalArgumentException("Sorting by " + column + " needs an index");
+
+            if (!SORTABLE_COLUMNS.contains(column))
+                throw new IllegalArgumentException("Cannot sort by " + column);
+
+            if (i == 0)
+                firstDirection = direction;
+            else
+                plan.append(", ");
+
+            if (column.equals(PetEntry.COLUMN_PET_NAME))
+                plan.append(PetEntry.COLUMN_PET_NAME_KEY);
+            else
+                plan.append(column);
+            plan.append(' ').append(direction);
+            sortsById = column.equals(PetEntry._ID);
+        }
+
+        if (!sortsById)
+            plan.append(", ").append(PetEntry._ID).append(' ').append(firstDirection);
+
+        return plan.toString();
+    }
+}
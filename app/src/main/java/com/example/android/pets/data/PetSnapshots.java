@@ -0,0 +1,227 @@
+package com.example.android.pets.data;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.Snapshot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Takes consistent copies of the database while it is in use, and swaps them back in, see
+ * {@link Snapshot}.
+ *
+ * Where SQLite has VACUUM INTO, a snapshot is written by a separate connection inside one read
+ * transaction. Thanks to the write-ahead log, writers carry on while it runs, and the copy comes
+ * out compact. On older SQLite, the database file and its write-ahead log are copied while a
+ * write transaction is held, which keeps readers going but holds writers back for as long as the
+ * copy takes. The copied log is then folded into the copy, so a snapshot is always one file.
+ *
+ * Only the main database is copied. The shelter databases of {@link ShelterShards} are left out.
+ */
+final class PetSnapshots {
+
+    private static final String LOG_TAG = PetSnapshots.class.getSimpleName();
+
+    /** Name of the directory inside the app's files directory that holds the snapshots */
+    private static final String DIRECTORY_NAME = "snapshots";
+
+    /** Size of the buffer for copying files */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetSnapshots() {
+    }
+
+    /**
+     * Returns the file of the snapshot with the given name.
+     *
+     * @throws IllegalArgumentException if the name isn't a valid snapshot name
+     */
+    static File getFile(Context context, String name) {
+        if (name == null || !name.matches("[A-Za-z0-9_.-]+") || name.startsWith("."))
+            throw new IllegalArgumentException("Invalid snapshot name " + name);
+
+        return new File(new File(context.getFilesDir(), DIRECTORY_NAME), name);
+    }
+
+    /**
+     * Take a snapshot of the database with the given name, replacing any older snapshot with that
+     * name. The snapshot is written to a temporary file that is then renamed, so a snapshot is
+     * never seen half written.
+     *
+     * @return the snapshot file
+     */
+    static File take(Context context, SQLiteOpenHelper dbHelper, String name) throws IOException {
+        File file = getFile(context, name);
+        File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        deleteFiles(tempFile, "", "-wal", "-shm", "-journal");
+
+        long start = SystemClock.elapsedRealtime();
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        File databaseFile = context.getDatabasePath(dbHelper.getDatabaseName());
+        if (SqliteVersion.supportsVacuumInto(db))
+            vacuumInto(databaseFile, tempFile);
+        else
+            copyInTransaction(db, databaseFile, tempFile);
+
+        if (!tempFile.renameTo(file))
+            throw new IOException("Unable to replace " + file);
+
+        long millis = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, "Took snapshot " + name + " of " + file.length() + " bytes in " + millis
+                + " ms (" + file.length() / 1024 * 1000 / millis + " KiB/s)");
+        return file;
+    }
+
+    /**
+     * Write a copy of the database with VACUUM INTO, on its own connection. The copy is one read
+     * transaction, which doesn't hold up the writers on the connections of the provider.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void vacuumInto(File databaseFile, File tempFile) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(databaseFile.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING
+                        | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            db.execSQL("VACUUM INTO ?", new Object[]{tempFile.getPath()});
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Copy the database file and its write-ahead log while holding a write transaction, so no
+     * write can change either of them halfway through, and then fold the copied log into the
+     * copied database.
+     */
+    private static void copyInTransaction(SQLiteDatabase db, File databaseFile, File tempFile)
+            throws IOException {
+        File walFile = getWalFile(databaseFile);
+
+        db.beginTransaction();
+        try {
+            copy(databaseFile, tempFile);
+            if (walFile.exists())
+                copy(walFile, getWalFile(tempFile));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Leaving write-ahead logging copies the log into the database file and deletes it.
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(tempFile.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            DatabaseUtils.stringForQuery(copy, "PRAGMA journal_mode = DELETE", null);
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * Copy the snapshot with the given name next to the database and check it, ready to be
+     * swapped in with {@link #swapIn}. This is the slow part of a restore, and the database can
+     * still be used in the meantime.
+     *
+     * @return the copy of the snapshot
+     * @throws FileNotFoundException    if there is no snapshot with that name
+     * @throws IllegalArgumentException if the snapshot isn't a pets database, or it is from a
+     *                                  newer version of the app
+     */
+    static File prepareRestore(Context context, SQLiteOpenHelper dbHelper, String name)
+            throws IOException {
+        File file = getFile(context, name);
+        if (!file.isFile())
+            throw new FileNotFoundException("No snapshot named " + name);
+
+        File databaseFile = context.getDatabasePath(dbHelper.getDatabaseName());
+        File restoreFile = new File(databaseFile.getPath() + ".restore");
+        deleteFiles(restoreFile, "", "-wal", "-shm", "-journal");
+        copy(file, restoreFile);
+
+        int currentVersion = dbHelper.getWritableDatabase().getVersion();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(restoreFile.getPath(), null,
+                SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+        try {
+            String check = DatabaseUtils.stringForQuery(db, "PRAGMA quick_check", null);
+            if (!"ok".equals(check))
+                throw new IllegalArgumentException("Snapshot " + name + " is damaged: " + check);
+            if (db.getVersion() < 1 || db.getVersion() > currentVersion)
+                throw new IllegalArgumentException("Snapshot " + name + " has version "
+                        + db.getVersion() + ", expected at most " + currentVersion);
+        } finally {
+            db.close();
+        }
+        return restoreFile;
+    }
+
+    /**
+     * Replace the database with the given copy from {@link #prepareRestore}, and open it again,
+     * which upgrades it if the snapshot was taken by an older version of the app. The caller must
+     * make sure nothing else uses the database while this runs.
+     */
+    static void swapIn(Context context, SQLiteOpenHelper dbHelper, File restoreFile)
+            throws IOException {
+        File databaseFile = context.getDatabasePath(dbHelper.getDatabaseName());
+
+        // Closing the last connection copies the write-ahead log into the old database, so its
+        // log and the shared memory file can go before the new database takes its place.
+        dbHelper.close();
+        deleteFiles(databaseFile, "-wal", "-shm", "-journal");
+        if (!restoreFile.renameTo(databaseFile))
+            throw new IOException("Unable to move " + restoreFile + " to " + databaseFile);
+
+        dbHelper.getWritableDatabase();
+    }
+
+    private static File getWalFile(File databaseFile) {
+        return new File(databaseFile.getPath() + "-wal");
+    }
+
+    /**
+     * Delete the files with the given suffixes after the path of the given database file, the
+     * empty suffix being the database file itself, if they exist.
+     */
+    private static void deleteFiles(File databaseFile, String... suffixes) throws IOException {
+        for (String suffix : suffixes) {
+            File file = new File(databaseFile.getPath() + suffix);
+            if (file.exists() && !file.delete())
+                throw new IOException("Unable to delete " + file);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1)
+                    out.write(buffer, 0, count);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.SyncChanges;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs the pets with a server, through a {@link SyncTransport}, while the app works offline in
+ * between. A sync first uploads the local changes, and then applies the changes on the server.
+ *
+ * The local changes are read from the change log of the provider, see {@link SyncChanges}. They
+ * are uploaded in batches of at most {@link #MAX_BATCH_BYTES} of JSON, compressed with gzip, and
+ * every batch is acknowledged once the server has taken it. The idempotency key of a batch is
+ * made of the installation and the sequence numbers of its first and last change, so a batch that
+ * is uploaded again after a failure has the same key, and the server applies it once. A change is
+ * a JSON object with the keys {@link #KEY_ID}, {@link #KEY_EXTERNAL_ID} and {@link #KEY_DELETED},
+ * and unless the pet was deleted, {@link #KEY_NAME}, {@link #KEY_BREED}, {@link #KEY_GENDER},
+ * {@link #KEY_WEIGHT} and {@link #KEY_VERSION}.
+ *
+ * The server answers with pages of changes, JSON objects with the keys {@link #KEY_CURSOR},
+ * {@link #KEY_CHANGES} and {@link #KEY_HAS_MORE}. The server knows pets by their external ID, so
+ * each change has the same keys as an uploaded change, except for the local ID. Each page is
+ * applied in one provider batch, and so in one transaction, as the sync adapter, so the changes
+ * aren't logged to be uploaded again. The cursor is only stored once the page is applied, so a
+ * sync that fails halfway picks up at the page it failed on.
+ */
+public final class PetSyncEngine {
+
+    private static final String LOG_TAG = PetSyncEngine.class.getSimpleName();
+
+    /** Maximum number of characters of the JSON of one uploaded batch, before it is compressed */
+    static final int MAX_BATCH_BYTES = 256 * 1024;
+
+    /** Keys of a change */
+    public static final String KEY_ID = "id";
+    public static final String KEY_EXTERNAL_ID = "external_id";
+    public static final String KEY_DELETED = "deleted";
+    public static final String KEY_NAME = "name";
+    public static final String KEY_BREED = "breed";
+    public static final String KEY_GENDER = "gender";
+    public static final String KEY_WEIGHT = "weight";
+    public static final String KEY_VERSION = "version";
+
+    /** Keys of a page of changes from the server */
+    public static final String KEY_CURSOR = "cursor";
+    public static final String KEY_CHANGES = "changes";
+    public static final String KEY_HAS_MORE = "has_more";
+
+    /** Name of the shared preferences file that holds the state of the sync */
+    private static final String PREFS_NAME = "pet_sync";
+
+    /** Key of the ID of this installation, part of every idempotency key */
+    private static final String KEY_INSTALLATION_ID = "installation_id";
+
+    /** Key of the cursor of the last page of changes applied from the server */
+    private static final String KEY_SERVER_CURSOR = "server_cursor";
+
+    private final Context context;
+    private final ContentResolver contentResolver;
+    private final SyncTransport transport;
+
+    /**
+     * Constructs a new {@link PetSyncEngine}.
+     */
+    public PetSyncEngine(Context context, SyncTransport transport) {
+        this.context = context.getApplicationContext();
+        this.contentResolver = context.getContentResolver();
+        this.transport = transport;
+    }
+
+    /**
+     * Upload the local changes, and then apply the changes on the server. This uses the network
+     * and the database, so it should be called from a background thread.
+     *
+     * @return the number of changes uploaded and applied
+     * @throws IOException if the server couldn't be reached, or sent something that isn't valid.
+     *                     The batches and pages before the failure stay synced.
+     */
+    public Result sync() throws IOException {
+        Result result = new Result();
+        upload(result);
+        download(result);
+        return result;
+    }
+
+    private void upload(Result result) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        Bundle extras = new Bundle();
+        extras.putInt(SyncChanges.EXTRA_LIMIT, SyncChanges.MAX_LIMIT);
+
+        boolean hasMore = true;
+        while (hasMore) {
+            Bundle page = contentResolver.call(PetEntry.CONTENT_URI, SyncChanges.METHOD_READ,
+                    null, extras);
+            long[] sequences = page.getLongArray(SyncChanges.EXTRA_SEQUENCES);
+            hasMore = page.getBoolean(SyncChanges.EXTRA_HAS_MORE);
+
+            // Cut the page into batches, sending each one once the next change wouldn't fit.
+            StringBuilder batch = new StringBuilder();
+            int first = 0;
+            for (int i = 0; i < sequences.length; i++) {
+                String change = toJson(page, i).toString();
+                if (i > first && batch.length() + change.length() + 2 > MAX_BATCH_BYTES) {
+                    uploadBatch(batch, sequences[first], sequences[i - 1]);
+                    result.uploaded += i - first;
+                    batch.setLength(0);
+                    first = i;
+                }
+                batch.append(batch.length() == 0 ? '[' : ',').append(change);
+            }
+            if (batch.length() > 0) {
+                uploadBatch(batch, sequences[first], sequences[sequences.length - 1]);
+                result.uploaded += sequences.length - first;
+            }
+        }
+
+        logRate("Uploaded", result.uploaded, start);
+    }
+
+    /**
+     * Upload the given changes, and acknowledge them once the server has them.
+     */
+    private void uploadBatch(StringBuilder batch, long firstSequence, long lastSequence)
+            throws IOException {
+        batch.append(']');
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream(batch.length() / 4);
+        GZIPOutputStream out = new GZIPOutputStream(gzipped);
+        try {
+            out.write(batch.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        transport.upload(gzipped.toByteArray(),
+                getInstallationId() + "-" + firstSequence + "-" + lastSequence);
+
+        Bundle extras = new Bundle();
+        extras.putLong(SyncChanges.EXTRA_SEQUENCE, lastSequence);
+        contentResolver.call(PetEntry.CONTENT_URI, SyncChanges.METHOD_ACKNOWLEDGE, null, extras);
+    }
+
+    /**
+     * Returns the change at the given position of a page from {@link SyncChanges#METHOD_READ}.
+     */
+    private static JSONObject toJson(Bundle page, int i) {
+        try {
+            JSONObject change = new JSONObject();
+            change.put(KEY_ID, page.getLongArray(SyncChanges.EXTRA_IDS)[i]);
+            change.put(KEY_EXTERNAL_ID, page.getStringArray(SyncChanges.EXTRA_EXTERNAL_IDS)[i]);
+            boolean deleted = page.getBooleanArray(SyncChanges.EXTRA_DELETED)[i];
+            change.put(KEY_DELETED, deleted);
+            if (!deleted) {
+                change.put(KEY_NAME, page.getStringArray(SyncChanges.EXTRA_NAMES)[i]);
+                change.put(KEY_BREED, page.getStringArray(SyncChanges.EXTRA_BREEDS)[i]);
+                change.put(KEY_GENDER, page.getIntArray(SyncChanges.EXTRA_GENDERS)[i]);
+                change.put(KEY_WEIGHT, page.getIntArray(SyncChanges.EXTRA_WEIGHTS)[i]);
+                change.put(KEY_VERSION, page.getLongArray(SyncChanges.EXTRA_VERSIONS)[i]);
+            }
+            return change;
+        } catch (JSONException e) {
+            // Only thrown for numbers that aren't finite, which a change never has.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void download(Result result) throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        SharedPreferences preferences = getPreferences();
+        String cursor = preferences.getString(KEY_SERVER_CURSOR, null);
+
+        boolean hasMore = true;
+        while (hasMore) {
+            ArrayList<ContentProviderOperation> operations;
+            try {
+                JSONObject page = new JSONObject(transport.fetchChanges(cursor));
+                JSONArray changes = page.getJSONArray(KEY_CHANGES);
+                operations = new ArrayList<>(changes.length());
+                for (int i = 0; i < changes.length(); i++) {
+                    ContentProviderOperation operation = toOperation(changes.getJSONObject(i));
+                    if (operation != null)
+                        operations.add(operation);
+                }
+                cursor = page.getString(KEY_CURSOR);
+                hasMore = page.optBoolean(KEY_HAS_MORE);
+            } catch (JSONException e) {
+                throw new IOException("Server sent invalid changes", e);
+            }
+
+            if (!operations.isEmpty()) {
+                try {
+                    contentResolver.applyBatch(PetContract.CONTENT_AUTHORITY, operations);
+                } catch (RemoteException | OperationApplicationException e) {
+                    throw new IllegalStateException("Unable to apply changes from server", e);
+                }
+            }
+            preferences.edit().putString(KEY_SERVER_CURSOR, cursor).apply();
+            result.downloaded += operations.size();
+        }
+
+        logRate("Applied", result.downloaded, start);
+    }
+
+    /**
+     * Returns the operation that applies the given change from the server, or null if the change
+     * can't be applied. A change that can't be applied is skipped rather than failing the page,
+     * which would fail the sync every time from then on.
+     */
+    private static ContentProviderOperation toOperation(JSONObject change) throws JSONException {
+        String externalId = change.optString(KEY_EXTERNAL_ID, null);
+        if (externalId == null || change.isNull(KEY_EXTERNAL_ID)) {
+            Log.w(LOG_TAG, "Skipped change from server without external ID: " + change);
+            return null;
+        }
+
+        if (change.optBoolean(KEY_DELETED))
+            return ContentProviderOperation
+                    .newDelete(PetContract.asSyncAdapter(PetEntry.CONTENT_URI))
+                    .withSelection(PetEntry.COLUMN_PET_EXTERNAL_ID + "=?",
+                            new String[]{externalId})
+                    .build();
+
+        ContentValues values = new ContentValues(5);
+        values.put(PetEntry.COLUMN_PET_EXTERNAL_ID, externalId);
+        values.put(PetEntry.COLUMN_PET_NAME, change.getString(KEY_NAME));
+        if (!change.isNull(KEY_BREED))
+            values.put(PetEntry.COLUMN_PET_BREED, change.getString(KEY_BREED));
+        values.put(PetEntry.COLUMN_PET_GENDER, change.getInt(KEY_GENDER));
+        if (!change.isNull(KEY_WEIGHT))
+            values.put(PetEntry.COLUMN_PET_WEIGHT, change.getInt(KEY_WEIGHT));
+
+        try {
+            PetValidator.validateUpsert(values);
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Skipped change from server: " + e.getMessage());
+            return null;
+        }
+        return ContentProviderOperation.newInsert(PetContract.asSyncAdapter(PetEntry.UPSERT_URI))
+                .withValues(values)
+                .build();
+    }
+
+    private static void logRate(String what, int changes, long start) {
+        long millis = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(LOG_TAG, what + " " + changes + " changes in " + millis + " ms ("
+                + changes * 1000L / millis + " changes/s)");
+    }
+
+    /**
+     * Returns the ID of this installation, made up the first time it is needed.
+     */
+    private synchronized String getInstallationId() {
+        SharedPreferences preferences = getPreferences();
+        String installationId = preferences.getString(KEY_INSTALLATION_ID, null);
+        if (installationId == null) {
+            installationId = UUID.randomUUID().toString();
+            preferences.edit().putString(KEY_INSTALLATION_ID, installationId).apply();
+        }
+        return installationId;
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Outcome of a sync.
+     */
+    public static final class Result {
+
+        private int uploaded;
+        private int downloaded;
+
+        private Result() {
+        }
+
+        /**
+         * Returns the number of local changes that were uploaded.
+         */
+        public int getUploaded() {
+            return uploaded;
+        }
+
+        /**
+         * Returns the number of changes from the server that were applied.
+         */
+        public int getDownloaded() {
+            return downloaded;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.android.pets.data;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Marks sections of the work behind the catalog and the editor, from the loaders through the
+ * provider to the list adapter, so a system trace shows where the time goes.
+ *
+ * On Android 4.3 and later the sections go to {@link Trace}, which does next to nothing while no
+ * trace is being recorded. On older versions they are dropped. Tests that run on the JVM can set a
+ * {@link Collector}, such as the ChromeTraceCollector of the unit tests, to record the sections
+ * without a device.
+ *
+ * Sections nest, and must be ended on the thread that began them, so always end a section in a
+ * finally block.
+ */
+public final class PetTrace {
+
+    /** Receives the sections besides the system trace, or null if nothing does */
+    private static volatile Collector collector;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetTrace() {
+    }
+
+    /**
+     * Begin a section on the current thread.
+     *
+     * @param name of the section, such as "PetProvider.query", at most 127 characters
+     */
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            Trace.beginSection(name);
+
+        Collector current = collector;
+        if (current != null)
+            current.beginSection(name);
+    }
+
+    /**
+     * End the section that was begun last on the current thread.
+     */
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            Trace.endSection();
+
+        Collector current = collector;
+        if (current != null)
+            current.endSection();
+    }
+
+    /**
+     * Set the collector that receives the sections from now on, or null to stop collecting.
+     */
+    public static void setCollector(Collector collector) {
+        PetTrace.collector = collector;
+    }
+
+    /**
+     * Receives the sections as they begin and end, on the thread they belong to.
+     */
+    public interface Collector {
+
+        void beginSection(String name);
+
+        void endSection();
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.AdoptionEntry;
+import com.example.android.pets.data.PetContract.OwnerEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Checks pet values before they are written to the database. Every path that writes pets (insert,
+ * update, upsert and bulk writes) goes through these checks, so they all accept the same data. The
+ * values of owners and adoptions are checked here as well.
+ */
+final class PetValidator {
+
+    /** Columns of the pets table that the provider makes from the other values of a pet */
+    private static final String[] DERIVED_COLUMNS = {
+            PetEntry.COLUMN_PET_BREED_ID,
+            PetEntry.COLUMN_PET_NAME_KEY,
+            PetEntry.COLUMN_PET_NAME_FOLD,
+            PetEntry.COLUMN_PET_NAME_SOUNDEX,
+            PetEntry.COLUMN_PET_FINGERPRINT,
+            PetEntry.COLUMN_PET_DUPLICATE_OF
+    };
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private PetValidator() {
+    }
+
+    /**
+     * Check the values for a new pet. The name and gender are required.
+     *
+     * @throws IllegalArgumentException if the values are not valid
+     */
+    static void validateInsert(ContentValues values) {
+
+        // check that the name is not null
+        String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+        if (name == null) {
+            throw new IllegalArgumentException("Pet requires a name");
+        }
+
+        // check that the gender is valid
+        Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        if (gender == null || !PetEntry.isValidGender(gender)) {
+            throw new IllegalArgumentException("Pet requires valid gender");
+        }
+
+        // If the weight is provided, check that it's greater than or equal to 0kg.
+        Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+        if (weight != null && weight < 0) {
+            throw new IllegalArgumentException("Pet requires valid weight");
+        }
+
+        checkNoVersion(values);
+        checkNoDerivedColumns(values);
+
+        // No need to check the breed, any value is valid (including null).
+    }
+
+    /**
+     * Check the values for an update of existing pets. Only the values that are present are
+     * checked.
+     *
+     * @throws IllegalArgumentException if the values are not valid
+     */
+    static void validateUpdate(ContentValues values) {
+
+        /*
+         * If the {@link PetEntry#COLUMN_PET_NAME} key is present, check that the name value is
+         * not null.
+         */
+        if (values.containsKey(PetEntry.COLUMN_PET_NAME)){
+            String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
+            if (name == null)
+                throw new IllegalArgumentException("Pet requires a name");
+        }
+
+        /*
+         * If the {@link PetEntry#COLUMN_PET_GENDER} key is present, check that the gender value is
+         * valid.
+         */
+        if (values.containsKey(PetEntry.COLUMN_PET_GENDER)){
+            Integer gender = values.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+            if (gender == null || !PetEntry.isValidGender(gender))
+                throw new IllegalArgumentException("Pet requires valid gender");
+        }
+
+        /*
+         * If the {@link PetEntry#COLUMN_PET_WEIGHT} key is present, check that the weight value is
+         * valid.
+         */
+        if (values.containsKey(PetEntry.COLUMN_PET_WEIGHT)) {
+            // check that the weight is greater than or equal to 0kg
+            Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+            if (weight != null && weight < 0)
+                throw new IllegalArgumentException("Pet requires valid weight");
+        }
+
+        checkNoVersion(values);
+        checkNoDerivedColumns(values);
+
+        // No need to check the breed, any value is valid (including null).
+    }
+
+    /**
+     * The version of a pet is only ever moved on by the database, see
+     * {@link PetEntry#COLUMN_PET_VERSION}.
+     */
+    private static void checkNoVersion(ContentValues values) {
+        if (values.containsKey(PetEntry.COLUMN_PET_VERSION))
+            throw new IllegalArgumentException("Pet version can't be written");
+    }
+
+    /**
+     * The columns that are made from the other values of a pet are only ever written by the
+     * provider, which keeps them in step with those values: the breed ID, the name key, the
+     * fuzzy matching columns and the fingerprint with its duplicate flag.
+     */
+    private static void checkNoDerivedColumns(ContentValues values) {
+        for (String column : DERIVED_COLUMNS) {
+            if (values.containsKey(column))
+                throw new IllegalArgumentException("Pet column " + column + " can't be written");
+        }
+    }
+
+    /**
+     * Check the values for an upsert. An upsert may create the pet, so the values must be valid for
+     * a new pet, and they must have an external ID to find an existing pet by.
+     *
+     * @throws IllegalArgumentException if the values are not valid
+     */
+    static void validateUpsert(ContentValues values) {
+        String externalId = values.getAsString(PetEntry.COLUMN_PET_EXTERNAL_ID);
+        if (externalId == null || externalId.isEmpty())
+            throw new IllegalArgumentException("Pet upsert requires an external ID");
+
+        validateInsert(values);
+    }
+
+    /**
+     * Check the values for an owner. The name is required for a new owner, and can't be removed
+     * by an update.
+     *
+     * @param insert whether the values are for a new owner, rather than an update
+     * @throws IllegalArgumentException if the values are not valid
+     */
+    static void validateOwner(ContentValues values, boolean insert) {
+        if (insert || values.containsKey(OwnerEntry.COLUMN_OWNER_NAME)) {
+            String name = values.getAsString(OwnerEntry.COLUMN_OWNER_NAME);
+            if (name == null || name.trim().isEmpty())
+                throw new IllegalArgumentException("Owner requires a name");
+        }
+
+        // No need to check the phone number, any value is valid (including null).
+    }
+
+    /**
+     * Check the values for an adoption. The pet and the owner are required for a new adoption.
+     * Whether they exist is checked by the foreign keys of the adoptions table.
+     *
+     * @param insert whether the values are for a new adoption, rather than an update
+     * @throws IllegalArgumentException if the values are not valid
+     */
+    static void validateAdoption(ContentValues values, boolean insert) {
+        if (insert && values.getAsLong(AdoptionEntry._ID) == null)
+            throw new IllegalArgumentException("Adoption requires a pet");
+        if (!insert && values.containsKey(AdoptionEntry._ID))
+            throw new IllegalArgumentException("Adoption can't be moved to another pet");
+
+        if (insert || values.containsKey(AdoptionEntry.COLUMN_OWNER_ID)) {
+            if (values.getAsLong(AdoptionEntry.COLUMN_OWNER_ID) == null)
+                throw new IllegalArgumentException("Adoption requires an owner");
+        }
+
+        // The time is optional, it defaults to the time of the insert.
+        if (values.containsKey(AdoptionEntry.COLUMN_ADOPTED_AT)
+                && values.getAsLong(AdoptionEntry.COLUMN_ADOPTED_AT) == null)
+            throw new IllegalArgumentException("Adoption requires a valid time");
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.android.pets.data;
+
+/**
+ * Thrown by an update of a single pet whose URI has an expected version (see
+ * {@link PetContract.PetEntry#buildVersionedUri}) when the pet has been changed by someone else
+ * since that version was read. Nothing is written in that case.
+ *
+ * Only the superclass is sent across processes, so callers in other apps see an
+ * {@link IllegalStateException} with the same message.
+ */
+public class PetVersionConflictException extends IllegalStateException {
+
+    /** ID of the pet that was changed by someone else */
+    private final long petId;
+
+    /** Version of the pet the update expected */
+    private final long expectedVersion;
+
+    PetVersionConflictException(long petId, long expectedVersion) {
+        super("Pet " + petId + " is no longer at version " + expectedVersion);
+        this.petId = petId;
+        this.expectedVersion = expectedVersion;
+    }
+
+    /**
+     * Returns the ID of the pet that was changed by someone else.
+     */
+    public long getPetId() {
+        return petId;
+    }
+
+    /**
+     * Returns the version of the pet the update expected.
+     */
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+}
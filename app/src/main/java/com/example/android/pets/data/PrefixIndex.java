@@ -0,0 +1,104 @@
+package com.example.android.pets.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Sorted in-memory index of words (pet names or breeds) that answers "which words start with this
+ * prefix" with one binary search, so autocomplete can run on every keystroke.
+ *
+ * Words are matched without regard to case. The index holds at most {@link #MAX_WORDS} words, and
+ * once it is full new words are ignored, so memory stays bounded however large the pets table
+ * grows. Words are added as pets are written, but not removed when a pet is renamed or deleted, so
+ * a stale suggestion can linger until the index is built again.
+ */
+class PrefixIndex {
+
+    /** Maximum number of words kept in the index */
+    static final int MAX_WORDS = 20000;
+
+    /** Longer words are not worth suggesting, and are left out to bound memory */
+    private static final int MAX_WORD_LENGTH = 64;
+
+    /** Estimate of the bytes one word takes, besides its characters and those of its key */
+    private static final long ENTRY_OVERHEAD_BYTES = 120;
+
+    /**
+     * Words keyed by their lower case form, so lookups ignore case while suggestions keep the
+     * spelling they were first written with.
+     */
+    private final TreeMap<String, String> words = new TreeMap<>();
+
+    /** Number of characters of the keys and words in {@link #words} */
+    private long chars;
+
+    /**
+     * Add a word to the index, if it isn't already there and the index isn't full.
+     *
+     * @param word to add, ignored if null or empty
+     */
+    synchronized void add(String word) {
+        if (word == null)
+            return;
+
+        word = word.trim();
+        if (word.isEmpty() || word.length() > MAX_WORD_LENGTH || words.size() >= MAX_WORDS)
+            return;
+
+        String key = word.toLowerCase(Locale.getDefault());
+        if (!words.containsKey(key)) {
+            words.put(key, word);
+            chars += key.length() + word.length();
+        }
+    }
+
+    /**
+     * Returns up to the given number of words that start with the given prefix, in alphabetical
+     * order.
+     */
+    synchronized List<String> find(String prefix, int limit) {
+        List<String> matches = new ArrayList<>(limit);
+        if (prefix == null)
+            return matches;
+
+        String key = prefix.trim().toLowerCase(Locale.getDefault());
+        if (key.isEmpty())
+            return matches;
+
+        // All keys starting with the prefix sort between the prefix and the prefix followed by the
+        // highest possible character.
+        SortedMap<String, String> range = words.subMap(key, key + Character.MAX_VALUE);
+        for (Map.Entry<String, String> entry : range.entrySet()) {
+            if (matches.size() == limit)
+                break;
+            matches.add(entry.getValue());
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the number of words in the index.
+     */
+    synchronized int size() {
+        return words.size();
+    }
+
+    /**
+     * Returns an estimate of the bytes the index holds.
+     */
+    synchronized long getSizeBytes() {
+        return words.size() * ENTRY_OVERHEAD_BYTES + chars * 2;
+    }
+
+    /**
+     * Remove every word from the index.
+     */
+    synchronized void clear() {
+        words.clear();
+        chars = 0;
+    }
+}
@@ -0,0 +1,535 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.ShelterEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The databases of the shelters, one file per shelter, see {@link ShelterEntry}. Each has the same
+ * tables as the main database, and is created and upgraded by its own {@link PetDbHelper}.
+ *
+ * A shelter's database is only opened once it is used, and at most {@link #MAX_OPEN_SHARDS} are
+ * kept open, the least recently used one being closed to make room for the next. A database that
+ * is still in use when it is pushed out, by a query whose cursor is still open for example, is
+ * closed once the last use ends. Using that shelter again before then takes the same database back
+ * into the open ones, so a file is never open in two helpers at once.
+ *
+ * Reading the pets of all shelters queries every database at the same time, on
+ * {@link #FAN_OUT_THREADS} threads, and merges the sorted results into one. Every shelter database
+ * answers its part of the sort order with an index, so the merge only has to compare the first row
+ * of each result.
+ *
+ * The open databases count as a cache for {@link CacheBudgets}. Each holds its breed cache and the
+ * page cache of its connection, which is estimated as the size of the database file up to
+ * {@link #PAGE_CACHE_LIMIT_BYTES}. Any trim closes every database that isn't in use, and they are
+ * opened again as they are used.
+ */
+final class ShelterShards implements CacheBudgets.Cache {
+
+    /** Maximum number of shelter databases that are kept open */
+    static final int MAX_OPEN_SHARDS = 4;
+
+    /** Number of threads that query the shelter databases for a read of all shelters */
+    static final int FAN_OUT_THREADS = 4;
+
+    /** The database file of a shelter is this prefix, the shelter name and this suffix */
+    private static final String FILE_PREFIX = "shelter_";
+    private static final String FILE_SUFFIX = ".db";
+
+    /** Most bytes of the database file the page cache of one connection is estimated to hold */
+    static final long PAGE_CACHE_LIMIT_BYTES = 2 * 1024 * 1024;
+
+    private final Context context;
+
+    /** Open shelter databases by shelter name, guarded by this object */
+    private final LruCache<String, Shard> openShards =
+            new LruCache<String, Shard>(MAX_OPEN_SHARDS) {
+                @Override
+                protected void entryRemoved(boolean evicted, String shelter, Shard oldShard,
+                                            Shard newShard) {
+                    oldShard.evicted = true;
+                    if (oldShard.users == 0)
+                        oldShard.dbHelper.close();
+                    else
+                        evictedShards.put(shelter, oldShard);
+                }
+            };
+
+    /** Shelter databases pushed out of the open ones but still in use, guarded by this object */
+    private final Map<String, Shard> evictedShards = new HashMap<>();
+
+    private final ExecutorService fanOutExecutor = Executors.newFixedThreadPool(FAN_OUT_THREADS);
+
+    ShelterShards(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Returns the names of the shelters that have a database, in alphabetical order.
+     */
+    List<String> getShelters() {
+        List<String> shelters = new ArrayList<>();
+        for (String name : context.databaseList()) {
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX))
+                shelters.add(name.substring(FILE_PREFIX.length(),
+                        name.length() - FILE_SUFFIX.length()));
+        }
+        Collections.sort(shelters);
+        return shelters;
+    }
+
+    /**
+     * Query the pets of one shelter. The shelter's database stays in use until the cursor is
+     * closed.
+     *
+     * @param sortOrder as returned by {@link PetQueryPlanner#planSortOrder}
+     */
+    Cursor query(String shelter, String[] projection, String selection, String[] selectionArgs,
+                 String sortOrder, CancellationSignal cancellationSignal) {
+        Shard shard = acquire(shelter);
+        try {
+            Cursor cursor = shard.dbHelper.getReadableDatabase().query(false, PetEntry.VIEW_NAME,
+                    projection, selection, selectionArgs, null, null, sortOrder, null,
+                    cancellationSignal);
+            return new ShardCursor(cursor, shard);
+        } catch (RuntimeException e) {
+            release(shard);
+            throw e;
+        }
+    }
+
+    /**
+     * Insert a pet into the database of a shelter with its fingerprint, and record its first
+     * weight.
+     *
+     * @return the ID of the new pet, or -1 if the insertion failed
+     */
+    long insert(String shelter, ContentValues values) {
+        PetValidator.validateInsert(values);
+
+        Shard shard = acquire(shelter);
+        try {
+            SQLiteDatabase database = shard.dbHelper.getWritableDatabase();
+            boolean successful = false;
+            database.beginTransaction();
+            try {
+                ContentValues tableValues =
+                        PetProvider.toTableValues(database, shard.breedCache, values);
+                tableValues.put(PetEntry.COLUMN_PET_FINGERPRINT, PetFingerprints.of(values));
+                long id = database.insert(PetEntry.TABLE_NAME, null, tableValues);
+                if (id != -1) {
+                    Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+                    WeightHistory.record(database, id, weight == null ? 0 : weight,
+                            System.currentTimeMillis());
+                    database.setTransactionSuccessful();
+                    successful = true;
+                }
+                return id;
+            } finally {
+                database.endTransaction();
+                if (!successful)
+                    shard.breedCache.clear();
+            }
+        } finally {
+            release(shard);
+        }
+    }
+
+    /**
+     * Update one pet in the database of a shelter, and record its new weight if it has one.
+     *
+     * @return the number of pets updated
+     */
+    int update(String shelter, long id, ContentValues values) {
+        PetValidator.validateUpdate(values);
+        if (values.size() == 0)
+            return 0;
+
+        Shard shard = acquire(shelter);
+        try {
+            SQLiteDatabase database = shard.dbHelper.getWritableDatabase();
+            boolean successful = false;
+            database.beginTransaction();
+            try {
+                int rowsUpdated = database.update(PetEntry.TABLE_NAME,
+                        PetProvider.toTableValues(database, shard.breedCache, values),
+                        PetEntry._ID + "=?", new String[]{String.valueOf(id)});
+
+                Integer weight = values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
+                if (rowsUpdated != 0 && weight != null)
+                    WeightHistory.record(database, id, weight, System.currentTimeMillis());
+                if (rowsUpdated != 0 && PetFingerprints.dependsOn(values))
+                    PetFingerprints.refresh(database, new long[]{id});
+
+                database.setTransactionSuccessful();
+                successful = true;
+                return rowsUpdated;
+            } finally {
+                database.endTransaction();
+                if (!successful)
+                    shard.breedCache.clear();
+            }
+        } finally {
+            release(shard);
+        }
+    }
+
+    /**
+     * Delete pets from the database of a shelter. The selection may use every column that can be
+     * queried, like for the pets of the main database.
+     *
+     * @return the number of pets deleted
+     */
+    int delete(String shelter, String selection, String[] selectionArgs) {
+        Shard shard = acquire(shelter);
+        try {
+            return shard.dbHelper.getWritableDatabase().delete(PetEntry.TABLE_NAME,
+                    PetProvider.toTableSelection(selection), selectionArgs);
+        } finally {
+            release(shard);
+        }
+    }
+
+    /**
+     * Query the pets of every shelter at once, and merge them into one cursor, with the shelter
+     * of each pet in {@link ShelterEntry#COLUMN_SHELTER}.
+     *
+     * @param sortOrder as returned by {@link PetQueryPlanner#planSortOrder}, or null to list the
+     *                  shelters one after the other
+     */
+    Cursor queryAll(String[] projection, final String selection, final String[] selectionArgs,
+                    final String sortOrder, final CancellationSignal cancellationSignal) {
+        // The columns of the sort order have to be in the results to merge them.
+        String[] sortColumns = new String[0];
+        boolean[] descending = new boolean[0];
+        if (sortOrder != null) {
+            String[] terms = sortOrder.split(",");
+            sortColumns = new String[terms.length];
+            descending = new boolean[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                String[] parts = terms[i].trim().split("\\s+");
+                sortColumns[i] = parts[0];
+                descending[i] = parts.length > 1
+                        && parts[1].toUpperCase(Locale.US).equals("DESC");
+            }
+        }
+
+        final String[] shardProjection;
+        if (projection == null) {
+            shardProjection = null;
+        } else {
+            List<String> columns = new ArrayList<>(Arrays.asList(projection));
+            for (String column : sortColumns) {
+                if (!columns.contains(column))
+                    columns.add(column);
+            }
+            shardProjection = columns.toArray(new String[columns.size()]);
+        }
+
+        // Start the query of every shelter, and count the rows on the same thread, which is when
+        // SQLite actually runs it.
+        List<String> shelters = getShelters();
+        List<Future<Cursor>> futures = new ArrayList<>(shelters.size());
+        for (final String shelter : shelters) {
+            futures.add(fanOutExecutor.submit(new Callable<Cursor>() {
+                @Override
+                public Cursor call() {
+                    Cursor cursor = query(shelter, shardProjection, selection, selectionArgs,
+                            sortOrder, cancellationSignal);
+                    cursor.getCount();
+                    return cursor;
+                }
+            }));
+        }
+
+        List<Cursor> cursors = new ArrayList<>(futures.size());
+        try {
+            for (Future<Cursor> future : futures)
+                cursors.add(getResult(future));
+            return merge(shelters, cursors, projection, sortColumns, descending);
+        } finally {
+            // Close the results that were read, and those that weren't collected after a failure.
+            for (Cursor cursor : cursors)
+                cursor.close();
+            for (int i = cursors.size(); i < futures.size(); i++)
+                closeWhenDone(futures.get(i));
+        }
+    }
+
+    private static Cursor getResult(Future<Cursor> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Query of all shelters was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Unable to query shelter", e.getCause());
+        }
+    }
+
+    private static void closeWhenDone(Future<Cursor> future) {
+        try {
+            future.get().close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // The query failed, so there's nothing to close.
+        }
+    }
+
+    /**
+     * Merge the sorted results of the shelters into one cursor, taking the first row of whichever
+     * result comes first in the sort order each time.
+     *
+     * @param projection the columns to return, or null for all the columns of the results
+     */
+    private static Cursor merge(final List<String> shelters, final List<Cursor> cursors,
+                                String[] projection, String[] sortColumns,
+                                final boolean[] descending) {
+        String[] columns = projection;
+        if (columns == null)
+            columns = cursors.isEmpty() ? new String[0] : cursors.get(0).getColumnNames();
+
+        String[] resultColumns = Arrays.copyOf(columns, columns.length + 1);
+        resultColumns[columns.length] = ShelterEntry.COLUMN_SHELTER;
+
+        int total = 0;
+        for (Cursor cursor : cursors)
+            total += cursor.getCount();
+        MatrixCursor result = new MatrixCursor(resultColumns, total);
+
+        // Indexes of the columns to copy and to sort by, in each result.
+        final int[][] columnIndexes = new int[cursors.size()][columns.length];
+        final int[][] sortIndexes = new int[cursors.size()][sortColumns.length];
+        for (int i = 0; i < cursors.size(); i++) {
+            Cursor cursor = cursors.get(i);
+            for (int j = 0; j < columns.length; j++)
+                columnIndexes[i][j] = cursor.getColumnIndexOrThrow(columns[j]);
+            for (int j = 0; j < sortColumns.length; j++)
+                sortIndexes[i][j] = cursor.getColumnIndexOrThrow(sortColumns[j]);
+        }
+
+        // Results that compare the same come in the order of the shelters.
+        PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, cursors.size()),
+                new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer a, Integer b) {
+                        for (int j = 0; j < descending.length; j++) {
+                            int order = compareValues(cursors.get(a), sortIndexes[a][j],
+                                    cursors.get(b), sortIndexes[b][j]);
+                            if (order != 0)
+                                return descending[j] ? -order : order;
+                        }
+                        return a.compareTo(b);
+                    }
+                });
+        for (int i = 0; i < cursors.size(); i++) {
+            if (cursors.get(i).moveToFirst())
+                queue.add(i);
+        }
+
+        while (!queue.isEmpty()) {
+            int i = queue.remove();
+            Cursor cursor = cursors.get(i);
+            Object[] row = new Object[resultColumns.length];
+            for (int j = 0; j < columns.length; j++)
+                row[j] = getValue(cursor, columnIndexes[i][j]);
+            row[columns.length] = shelters.get(i);
+            result.addRow(row);
+
+            if (cursor.moveToNext())
+                queue.add(i);
+        }
+
+        return result;
+    }
+
+    /**
+     * Compare two values the way SQLite sorts them without a collation: null first, then numbers,
+     * then text, then blobs byte by byte.
+     */
+    private static int compareValues(Cursor a, int aIndex, Cursor b, int bIndex) {
+        int aRank = typeRank(a.getType(aIndex));
+        int bRank = typeRank(b.getType(bIndex));
+        if (aRank != bRank)
+            return aRank < bRank ? -1 : 1;
+
+        switch (a.getType(aIndex)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return 0;
+            case Cursor.FIELD_TYPE_INTEGER:
+                if (b.getType(bIndex) == Cursor.FIELD_TYPE_INTEGER) {
+                    long aLong = a.getLong(aIndex);
+                    long bLong = b.getLong(bIndex);
+                    return aLong < bLong ? -1 : (aLong == bLong ? 0 : 1);
+                }
+                return Double.compare(a.getDouble(aIndex), b.getDouble(bIndex));
+            case Cursor.FIELD_TYPE_FLOAT:
+                return Double.compare(a.getDouble(aIndex), b.getDouble(bIndex));
+            case Cursor.FIELD_TYPE_STRING:
+                return a.getString(aIndex).compareTo(b.getString(bIndex));
+            default:
+                byte[] aBytes = a.getBlob(aIndex);
+                byte[] bBytes = b.getBlob(bIndex);
+                for (int i = 0; i < aBytes.length && i < bBytes.length; i++) {
+                    int order = (aBytes[i] & 0xff) - (bBytes[i] & 0xff);
+                    if (order != 0)
+                        return order;
+                }
+                return aBytes.length - bBytes.length;
+        }
+    }
+
+    private static int typeRank(int type) {
+        switch (type) {
+            case Cursor.FIELD_TYPE_NULL:
+                return 0;
+            case Cursor.FIELD_TYPE_INTEGER:
+            case Cursor.FIELD_TYPE_FLOAT:
+                return 1;
+            case Cursor.FIELD_TYPE_STRING:
+                return 2;
+            default:
+                return 3;
+        }
+    }
+
+    private static Object getValue(Cursor cursor, int index) {
+        switch (cursor.getType(index)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(index);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(index);
+            case Cursor.FIELD_TYPE_STRING:
+                return cursor.getString(index);
+            default:
+                return cursor.getBlob(index);
+        }
+    }
+
+    /**
+     * Returns the database of the given shelter, opening it if it isn't open, and marks it as in
+     * use until {@link #release} is called for it.
+     */
+    private synchronized Shard acquire(String shelter) {
+        if (!ShelterEntry.isValidShelter(shelter))
+            throw new IllegalArgumentException("Invalid shelter name " + shelter);
+
+        Shard shard = openShards.get(shelter);
+        if (shard == null) {
+            // A database that was pushed out but is still in use is taken back rather than opened
+            // a second time.
+            shard = evictedShards.remove(shelter);
+            if (shard != null)
+                shard.evicted = false;
+            else
+                shard = new Shard(shelter,
+                        new PetDbHelper(context, FILE_PREFIX + shelter + FILE_SUFFIX));
+            openShards.put(shelter, shard);
+        }
+        shard.users++;
+        return shard;
+    }
+
+    private synchronized void release(Shard shard) {
+        shard.users--;
+        if (shard.users == 0 && shard.evicted) {
+            evictedShards.remove(shard.shelter);
+            shard.dbHelper.close();
+        }
+    }
+
+    @Override
+    public synchronized long getSizeBytes() {
+        long size = 0;
+        List<Shard> shards = new ArrayList<>(openShards.snapshot().values());
+        shards.addAll(evictedShards.values());
+        for (Shard shard : shards) {
+            long fileSize = context.getDatabasePath(shard.dbHelper.getDatabaseName()).length();
+            size += Math.min(fileSize, PAGE_CACHE_LIMIT_BYTES) + shard.breedCache.getSizeBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Close the open databases, if they hold more than the given number of bytes. The ones that
+     * are in use are closed once their last use ends.
+     */
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        if (getSizeBytes() > maxBytes)
+            openShards.evictAll();
+    }
+
+    /**
+     * The open database of a shelter.
+     */
+    private static final class Shard {
+
+        final String shelter;
+        final PetDbHelper dbHelper;
+
+        /** Breed IDs of this shelter's database, which has breed IDs of its own */
+        final BreedCache breedCache = new BreedCache();
+
+        /** Number of uses that haven't ended yet */
+        int users;
+
+        /** Whether the shard was pushed out of the open shards, to be closed after its last use */
+        boolean evicted;
+
+        Shard(String shelter, PetDbHelper dbHelper) {
+            this.shelter = shelter;
+            this.dbHelper = dbHelper;
+        }
+    }
+
+    /**
+     * Cursor over the database of a shelter, which keeps the database in use until it is closed.
+     */
+    private final class ShardCursor extends CursorWrapper {
+
+        private Shard shard;
+
+        ShardCursor(Cursor cursor, Shard shard) {
+            super(cursor);
+            this.shard = shard;
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (shard != null) {
+                release(shard);
+                shard = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Version of the SQLite library that the database runs on. Android ships the SQLite of the
+ * device, so newer SQL features are only used after checking for them here.
+ */
+final class SqliteVersion {
+
+    /** Version number of the SQLite library, e.g. 3024000 for 3.24.0, or -1 if not read yet */
+    private static int versionNumber = -1;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private SqliteVersion() {
+    }
+
+    /**
+     * Returns whether the SQLite library is at least the given version.
+     */
+    static boolean atLeast(SQLiteDatabase db, int major, int minor) {
+        return getVersionNumber(db) >= major * 1000000 + minor * 1000;
+    }
+
+    /**
+     * Returns whether INSERT ... ON CONFLICT DO UPDATE is supported (SQLite 3.24).
+     */
+    static boolean supportsUpsert(SQLiteDatabase db) {
+        return atLeast(db, 3, 24);
+    }
+
+    /**
+     * Returns whether VACUUM INTO is supported (SQLite 3.27).
+     */
+    static boolean supportsVacuumInto(SQLiteDatabase db) {
+        return atLeast(db, 3, 27);
+    }
+
+    private static synchronized int getVersionNumber(SQLiteDatabase db) {
+        if (versionNumber == -1) {
+            String version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null);
+
+            // The version has the form "3.24.0", sometimes with a fourth part that is ignored.
+            String[] parts = version.split("\\.");
+            int number = 0;
+            for (int i = 0; i < 3; i++) {
+                number *= 1000;
+                if (i < parts.length)
+                    number += Integer.parseInt(parts[i]);
+            }
+            versionNumber = number;
+        }
+        return versionNumber;
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.pets.data;
+
+import java.io.IOException;
+
+/**
+ * The server that {@link PetSyncEngine} syncs the pets with. {@link HttpSyncTransport} talks to
+ * the real server over HTTP, and any other implementation, such as one that keeps the server's
+ * data in memory, can take its place.
+ */
+public interface SyncTransport {
+
+    /**
+     * Upload a batch of local changes, a JSON array of changes compressed with gzip. The server
+     * must apply a batch only once per idempotency key, so that a batch that may or may not have
+     * arrived can be uploaded again.
+     *
+     * @throws IOException if the batch couldn't be uploaded
+     */
+    void upload(byte[] gzippedBatch, String idempotencyKey) throws IOException;
+
+    /**
+     * Returns the changes on the server after the given cursor, as a JSON object with the
+     * cursor to continue from, the changes and whether there are more of them, see
+     * {@link PetSyncEngine}.
+     *
+     * @param cursor as returned with the last changes, or null for all changes
+     * @throws IOException if the changes couldn't be fetched
+     */
+    String fetchChanges(String cursor) throws IOException;
+}
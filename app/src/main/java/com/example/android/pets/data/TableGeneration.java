@@ -0,0 +1,54 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Tracks a generation number for the pets table. The number is bumped every time
+ * {@link PetProvider} changes the table, so anything derived from the table (for example the
+ * catalog snapshot) can record the generation it was built from and tell if it has gone stale.
+ */
+public final class TableGeneration {
+
+    /** Name of the shared preferences file that holds the generation number */
+    private static final String PREFS_NAME = "table_generation";
+
+    /** Key of the pets table generation inside the shared preferences file */
+    private static final String KEY_PETS = "pets";
+
+    /** Cached copy of the generation number, or -1 if it hasn't been read yet */
+    private static long generation = -1;
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private TableGeneration() {
+    }
+
+    /**
+     * Returns the current generation number of the pets table.
+     *
+     * @param context of the app
+     */
+    public static synchronized long current(Context context) {
+        if (generation < 0) {
+            generation = getPreferences(context).getLong(KEY_PETS, 0);
+        }
+        return generation;
+    }
+
+    /**
+     * Moves the pets table on to a new generation. Called by {@link PetProvider} after every
+     * change to the table.
+     *
+     * @param context of the app
+     */
+    static synchronized void bump(Context context) {
+        generation = current(context) + 1;
+        getPreferences(context).edit().putLong(KEY_PETS, generation).apply();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
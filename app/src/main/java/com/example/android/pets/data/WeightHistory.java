@@ -0,0 +1,222 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.HistoryEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads and writes the weight history of pets.
+ *
+ * Every weight a pet has had is appended to the raw history table. At the same time, the daily and
+ * weekly rollup tables keep the minimum, maximum, total and number of weights for each pet per
+ * day and per week, so a long range can be answered from a few rollup rows instead of scanning
+ * every raw point. Days and weeks are in UTC, and weeks start on Monday.
+ *
+ * The history of a pet is deleted with the pet, by a trigger on the pets table. Archiving a pet
+ * also deletes it from the pets table, but the trigger leaves the history of a pet that is in the
+ * archive on purpose, so the history of an archived pet can still be read by its ID.
+ */
+final class WeightHistory {
+
+    /** Name of the table with every recorded weight */
+    static final String TABLE_RAW = "pet_weight_history";
+
+    /** Names of the rollup tables */
+    static final String TABLE_DAILY = "pet_weight_daily";
+    static final String TABLE_WEEKLY = "pet_weight_weekly";
+
+    /** Columns of the raw history table */
+    static final String COLUMN_PET_ID = "pet_id";
+    static final String COLUMN_WEIGHT = "weight";
+    static final String COLUMN_RECORDED_AT = "recorded_at";
+
+    /** Columns of the rollup tables, which also have {@link #COLUMN_PET_ID} */
+    static final String COLUMN_PERIOD_START = "period_start";
+    static final String COLUMN_MIN_WEIGHT = "min_weight";
+    static final String COLUMN_MAX_WEIGHT = "max_weight";
+    static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+    static final String COLUMN_SAMPLE_COUNT = "sample_count";
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** Ranges up to this long are answered with raw points */
+    private static final long MAX_RAW_RANGE_MILLIS = TimeUnit.DAYS.toMillis(14);
+
+    /** Ranges up to this long are answered with daily rollups, longer ones with weekly rollups */
+    private static final long MAX_DAILY_RANGE_MILLIS = TimeUnit.DAYS.toMillis(366);
+
+    // To prevent someone from accidentally instantiating this class, give it an empty
+    // constructor.
+    private WeightHistory() {
+    }
+
+    /**
+     * Create the history and rollup tables.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_RAW + " ("
+                + HistoryEntry._ID + " INTEGER PRIMARY KEY, "
+                + COLUMN_PET_ID + " INTEGER NOT NULL, "
+                + COLUMN_WEIGHT + " INTEGER NOT NULL, "
+                + COLUMN_RECORDED_AT + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX " + TABLE_RAW + "_index ON " + TABLE_RAW
+                + " (" + COLUMN_PET_ID + ", " + COLUMN_RECORDED_AT + ");");
+
+        createRollupTable(db, TABLE_DAILY);
+        createRollupTable(db, TABLE_WEEKLY);
+    }
+
+    private static void createRollupTable(SQLiteDatabase db, String table) {
+        db.execSQL("CREATE TABLE " + table + " ("
+                + COLUMN_PET_ID + " INTEGER NOT NULL, "
+                + COLUMN_PERIOD_START + " INTEGER NOT NULL, "
+                + COLUMN_MIN_WEIGHT + " INTEGER NOT NULL, "
+                + COLUMN_MAX_WEIGHT + " INTEGER NOT NULL, "
+                + COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL, "
+                + COLUMN_SAMPLE_COUNT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COLUMN_PET_ID + ", " + COLUMN_PERIOD_START + "));");
+    }
+
+    /**
+     * Create the trigger that deletes the history of a pet when it is deleted, replacing the one
+     * there is. Once there is an archive, see {@link PetArchiver#createTables}, pass true so the
+     * trigger leaves the history of the pets that were moved to it.
+     */
+    static void createDeleteTrigger(SQLiteDatabase db, boolean keepArchived) {
+        String when = !keepArchived ? "" : " WHEN NOT EXISTS (SELECT 1 FROM "
+                + PetEntry.ARCHIVE_TABLE_NAME + " WHERE " + PetEntry._ID + " = OLD."
+                + PetEntry._ID + ")";
+        db.execSQL("DROP TRIGGER IF EXISTS pet_weight_history_delete_trigger;");
+        db.execSQL("CREATE TRIGGER pet_weight_history_delete_trigger AFTER DELETE ON "
+                + PetEntry.TABLE_NAME + when
+                + " BEGIN " + deleteHistoryOf(TABLE_RAW, "OLD." + PetEntry._ID)
+                + deleteHistoryOf(TABLE_DAILY, "OLD." + PetEntry._ID)
+                + deleteHistoryOf(TABLE_WEEKLY, "OLD." + PetEntry._ID) + " END;");
+    }
+
+    /**
+     * Returns the statement that deletes the rows of the given history table for the given pet.
+     */
+    private static String deleteHistoryOf(String table, String petId) {
+        return "DELETE FROM " + table + " WHERE " + COLUMN_PET_ID + " = " + petId + ";";
+    }
+
+    /**
+     * Start the history of every pet in the pets table with the weight it has now, as if it had
+     * been recorded at the given time. Used when the history tables are first created.
+     */
+    static void recordCurrentWeights(SQLiteDatabase db, long time) {
+        db.execSQL("INSERT INTO " + TABLE_RAW + " (" + COLUMN_PET_ID + ", " + COLUMN_WEIGHT + ", "
+                + COLUMN_RECORDED_AT + ") SELECT " + PetEntry._ID + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ", ? FROM " + PetEntry.TABLE_NAME + ";",
+                new Object[]{time});
+
+        recordCurrentWeightsInRollup(db, TABLE_DAILY, startOfDay(time));
+        recordCurrentWeightsInRollup(db, TABLE_WEEKLY, startOfWeek(time));
+    }
+
+    private static void recordCurrentWeightsInRollup(SQLiteDatabase db, String table,
+                                                     long periodStart) {
+        db.execSQL("INSERT INTO " + table + " (" + COLUMN_PET_ID + ", " + COLUMN_PERIOD_START + ", "
+                + COLUMN_MIN_WEIGHT + ", " + COLUMN_MAX_WEIGHT + ", " + COLUMN_TOTAL_WEIGHT + ", "
+                + COLUMN_SAMPLE_COUNT + ") SELECT " + PetEntry._ID + ", ?, "
+                + PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+                + PetEntry.COLUMN_PET_WEIGHT + ", 1 FROM " + PetEntry.TABLE_NAME + ";",
+                new Object[]{periodStart});
+    }
+
+    /**
+     * Record a weight of a pet, in the raw history and in the rollups of its day and week. Call
+     * this inside the transaction that changes the weight of the pet.
+     *
+     * @param time when the weight was recorded, in milliseconds since the epoch
+     */
+    static void record(SQLiteDatabase db, long petId, int weight, long time) {
+        db.execSQL("INSERT INTO " + TABLE_RAW + " (" + COLUMN_PET_ID + ", " + COLUMN_WEIGHT + ", "
+                + COLUMN_RECORDED_AT + ") VALUES (?, ?, ?);", new Object[]{petId, weight, time});
+
+        addToRollup(db, TABLE_DAILY, petId, startOfDay(time), weight);
+        addToRollup(db, TABLE_WEEKLY, petId, startOfWeek(time), weight);
+    }
+
+    /**
+     * Fold a weight into the rollup row of a period, creating the row if this is the first weight
+     * of the period. Both statements are lookups on the primary key of the rollup table.
+     */
+    private static void addToRollup(SQLiteDatabase db, String table, long petId, long periodStart,
+                                    int weight) {
+        db.execSQL("INSERT OR IGNORE INTO " + table + " (" + COLUMN_PET_ID + ", "
+                + COLUMN_PERIOD_START + ", " + COLUMN_MIN_WEIGHT + ", " + COLUMN_MAX_WEIGHT + ", "
+                + COLUMN_TOTAL_WEIGHT + ", " + COLUMN_SAMPLE_COUNT + ") VALUES (?, ?, ?, ?, 0, 0);",
+                new Object[]{petId, periodStart, weight, weight});
+        db.execSQL("UPDATE " + table + " SET "
+                + COLUMN_MIN_WEIGHT + " = MIN(" + COLUMN_MIN_WEIGHT + ", ?), "
+                + COLUMN_MAX_WEIGHT + " = MAX(" + COLUMN_MAX_WEIGHT + ", ?), "
+                + COLUMN_TOTAL_WEIGHT + " = " + COLUMN_TOTAL_WEIGHT + " + ?, "
+                + COLUMN_SAMPLE_COUNT + " = " + COLUMN_SAMPLE_COUNT + " + 1"
+                + " WHERE " + COLUMN_PET_ID + " = ? AND " + COLUMN_PERIOD_START + " = ?;",
+                new Object[]{weight, weight, weight, petId, periodStart});
+    }
+
+    /**
+     * Returns the start of the UTC day of the given time.
+     */
+    private static long startOfDay(long time) {
+        return time - time % DAY_MILLIS;
+    }
+
+    /**
+     * Returns the start of the Monday-to-Sunday week of the given time. Day 0 of the epoch was a
+     * Thursday, so weeks are shifted by three days.
+     */
+    private static long startOfWeek(long time) {
+        long dayNumber = time / DAY_MILLIS;
+        return ((dayNumber + 3) / 7 * 7 - 3) * DAY_MILLIS;
+    }
+
+    /**
+     * Returns the weight history of a pet between two times, with the columns of
+     * {@link HistoryEntry}. Short ranges return every raw point, longer ranges return one row per
+     * day or per week from the rollup tables.
+     */
+    static Cursor query(SQLiteDatabase db, long petId, long from, long to) {
+        long range = to - from;
+
+        if (range <= MAX_RAW_RANGE_MILLIS) {
+            String[] selectionArgs = {
+                    String.valueOf(petId), String.valueOf(from), String.valueOf(to)};
+            return db.rawQuery("SELECT " + HistoryEntry._ID + ", "
+                    + COLUMN_RECORDED_AT + " AS " + HistoryEntry.COLUMN_TIME + ", "
+                    + COLUMN_WEIGHT + " AS " + HistoryEntry.COLUMN_MIN_WEIGHT + ", "
+                    + COLUMN_WEIGHT + " AS " + HistoryEntry.COLUMN_AVG_WEIGHT + ", "
+                    + COLUMN_WEIGHT + " AS " + HistoryEntry.COLUMN_MAX_WEIGHT + ", "
+                    + "1 AS " + HistoryEntry.COLUMN_SAMPLE_COUNT
+                    + " FROM " + TABLE_RAW
+                    + " WHERE " + COLUMN_PET_ID + " = ?"
+                    + " AND " + COLUMN_RECORDED_AT + " BETWEEN ? AND ?"
+                    + " ORDER BY " + COLUMN_RECORDED_AT, selectionArgs);
+        }
+
+        // Include the period that the range starts in, even though it starts a little earlier.
+        boolean daily = range <= MAX_DAILY_RANGE_MILLIS;
+        String table = daily ? TABLE_DAILY : TABLE_WEEKLY;
+        long periodFrom = daily ? startOfDay(from) : startOfWeek(from);
+        String[] selectionArgs = {
+                String.valueOf(petId), String.valueOf(periodFrom), String.valueOf(to)};
+        return db.rawQuery("SELECT " + COLUMN_PERIOD_START + " AS " + HistoryEntry._ID + ", "
+                + COLUMN_PERIOD_START + " AS " + HistoryEntry.COLUMN_TIME + ", "
+                + COLUMN_MIN_WEIGHT + " AS " + HistoryEntry.COLUMN_MIN_WEIGHT + ", "
+                + COLUMN_TOTAL_WEIGHT + " * 1.0 / " + COLUMN_SAMPLE_COUNT
+                + " AS " + HistoryEntry.COLUMN_AVG_WEIGHT + ", "
+                + COLUMN_MAX_WEIGHT + " AS " + HistoryEntry.COLUMN_MAX_WEIGHT + ", "
+                + COLUMN_SAMPLE_COUNT + " AS " + HistoryEntry.COLUMN_SAMPLE_COUNT
+                + " FROM " + table
+                + " WHERE " + COLUMN_PET_ID + " = ?"
+                + " AND " + COLUMN_PERIOD_START + " BETWEEN ? AND ?"
+                + " ORDER BY " + COLUMN_PERIOD_START, selectionArgs);
+    }
+}
@@ -0,0 +1,72 @@
+package com.example.android.pets.data;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects the sections of {@link PetTrace} in memory, and writes them in the JSON format of the
+ * Chrome trace viewer, which chrome://tracing and Perfetto open. Tests set it with
+ * {@link PetTrace#setCollector}, so traces of the same scenario can be compared offline.
+ *
+ * Timestamps are in microseconds from when the collector was created.
+ */
+final class ChromeTraceCollector implements PetTrace.Collector {
+
+    private final long startNanos = System.nanoTime();
+
+    /** Events in the order they happened, guarded by this collector */
+    private final List<Event> events = new ArrayList<>();
+
+    @Override
+    public void beginSection(String name) {
+        add(new Event('B', name));
+    }
+
+    @Override
+    public void endSection() {
+        add(new Event('E', null));
+    }
+
+    private synchronized void add(Event event) {
+        events.add(event);
+    }
+
+    /**
+     * Write the events collected so far as a Chrome trace. The writer isn't closed.
+     */
+    synchronized void writeTo(Writer out) throws IOException {
+        out.write("{\"traceEvents\":[");
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            if (i > 0)
+                out.write(",\n");
+            out.write("{\"ph\":\"" + event.phase + "\",\"ts\":"
+                    + (event.nanos - startNanos) / 1000 + ",\"pid\":1,\"tid\":" + event.threadId);
+            if (event.name != null)
+                out.write(",\"name\":" + JSONObject.quote(event.name));
+            out.write("}");
+        }
+        out.write("]}\n");
+    }
+
+    /**
+     * The beginning or end of a section.
+     */
+    private static final class Event {
+
+        /** "B" for the beginning of a section, "E" for its end */
+        final char phase;
+        final String name;
+        final long nanos = System.nanoTime();
+        final long threadId = Thread.currentThread().getId();
+
+        Event(char phase, String name) {
+            this.phase = phase;
+            this.name = name;
+        }
+    }
+}
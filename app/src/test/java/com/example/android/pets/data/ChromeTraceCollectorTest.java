@@ -0,0 +1,146 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records the sections of a provider insert and query with a {@link ChromeTraceCollector}, and
+ * checks the Chrome trace it writes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ChromeTraceCollectorTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private PetProvider provider;
+    private ChromeTraceCollector collector;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(PetProvider.class).create().get();
+        collector = new ChromeTraceCollector();
+        PetTrace.setCollector(collector);
+    }
+
+    @After
+    public void tearDown() {
+        PetTrace.setCollector(null);
+    }
+
+    @Test
+    public void traceOfInsertAndQueryHasNestedSections() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        provider.insert(PetEntry.CONTENT_URI, values);
+
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID}, null,
+                null, null);
+        cursor.close();
+
+        JSONArray events = writeAndRead().getJSONArray("traceEvents");
+
+        // The provider's background work may add sections on other threads, so only look at the
+        // sections of this thread.
+        long threadId = Thread.currentThread().getId();
+        List<String> sections = new ArrayList<>();
+        long lastTimestamp = 0;
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            if (event.getLong("tid") != threadId)
+                continue;
+
+            long timestamp = event.getLong("ts");
+            assertTrue("Timestamps go back at event " + i, timestamp >= lastTimestamp);
+            lastTimestamp = timestamp;
+
+            String phase = event.getString("ph");
+            sections.add("B".equals(phase) ? "B " + event.getString("name") : phase);
+        }
+
+        List<String> expected = new ArrayList<>();
+        expected.add("B PetProvider.insert");
+        expected.add("B PetProvider.insert.sql");
+        expected.add("E");
+        expected.add("B PetProvider.notify");
+        expected.add("E");
+        expected.add("E");
+        expected.add("B PetProvider.query");
+        expected.add("B PetProvider.fillWindow");
+        expected.add("E");
+        expected.add("E");
+        assertEquals(expected, sections);
+    }
+
+    @Test
+    public void nothingIsCollectedOnceTheCollectorIsRemoved() throws Exception {
+        PetTrace.setCollector(null);
+        provider.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID}, null, null, null)
+                .close();
+
+        // Only sections of other threads, if any, could have come in before it was removed.
+        JSONArray events = writeAndRead().getJSONArray("traceEvents");
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < events.length(); i++)
+            assertTrue(events.getJSONObject(i).getLong("tid") != threadId);
+    }
+
+    /**
+     * Write the trace to a file, the way a test run keeps it to compare later, and read it back.
+     */
+    private JSONObject writeAndRead() throws Exception {
+        File file = folder.newFile("trace.json");
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            collector.writeTo(out);
+        } finally {
+            out.close();
+        }
+        return new JSONObject(readFile(file));
+    }
+
+    private static String readFile(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                text.append(buffer, 0, count);
+            return text.toString();
+        } finally {
+            in.close();
+        }
+    }
+}
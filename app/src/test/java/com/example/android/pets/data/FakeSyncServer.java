@@ -0,0 +1,159 @@
+package com.example.android.pets.data;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Sync server that runs in the test's own process, behind a {@link
+ * okhttp3.mockwebserver.MockWebServer}, and speaks the protocol of {@link HttpSyncTransport}.
+ *
+ * Uploaded batches are applied to the server's pets once per idempotency key. The changes the
+ * server hands out are the ones added with {@link #addRemoteChange}, which stand for the changes
+ * of other devices, in pages of {@link #PAGE_SIZE}, with the position in the list as the cursor.
+ * The server doesn't hand a device its own uploads back.
+ */
+final class FakeSyncServer extends Dispatcher {
+
+    /** Maximum number of changes in one page */
+    static final int PAGE_SIZE = 1000;
+
+    private static final String CHANGES_PATH = "/changes";
+
+    /** Pets on the server, by external ID */
+    private final Map<String, JSONObject> pets = new HashMap<>();
+
+    /** Changes of other devices, in the order they were made */
+    private final List<JSONObject> remoteChanges = new ArrayList<>();
+
+    private final Set<String> appliedKeys = new HashSet<>();
+
+    private int uploadCount;
+    private int failuresAfterApplying;
+
+    /**
+     * Add a change made by another device, to be handed out after the changes added before it.
+     */
+    synchronized void addRemoteChange(JSONObject change) {
+        remoteChanges.add(change);
+    }
+
+    /**
+     * Answer the next given number of uploads with a 503 status after applying them, as if the
+     * response had been lost on the way back.
+     */
+    synchronized void failNextUploadsAfterApplying(int count) {
+        failuresAfterApplying = count;
+    }
+
+    /**
+     * Returns the pets on the server that aren't deleted, by external ID.
+     */
+    synchronized Map<String, JSONObject> getPets() {
+        return new HashMap<>(pets);
+    }
+
+    /**
+     * Returns the number of batches that were uploaded, including the ones uploaded again.
+     */
+    synchronized int getUploadCount() {
+        return uploadCount;
+    }
+
+    /**
+     * Returns the number of batches that were applied, which is one per idempotency key.
+     */
+    synchronized int getAppliedBatchCount() {
+        return appliedKeys.size();
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+        if (!request.getRequestUrl().encodedPath().endsWith(CHANGES_PATH))
+            return new MockResponse().setResponseCode(404);
+
+        try {
+            switch (request.getMethod()) {
+                case "POST":
+                    return upload(request);
+                case "GET":
+                    return fetchChanges(request.getRequestUrl().queryParameter("since"));
+                default:
+                    return new MockResponse().setResponseCode(405);
+            }
+        } catch (IOException | JSONException e) {
+            return new MockResponse().setResponseCode(400).setBody(e.toString());
+        }
+    }
+
+    private MockResponse upload(RecordedRequest request) throws IOException, JSONException {
+        uploadCount++;
+        String key = request.getHeader("Idempotency-Key");
+        if (key == null || !"gzip".equals(request.getHeader("Content-Encoding")))
+            return new MockResponse().setResponseCode(400);
+
+        if (appliedKeys.add(key)) {
+            JSONArray changes = new JSONArray(gunzip(request.getBody().inputStream()));
+            for (int i = 0; i < changes.length(); i++)
+                apply(changes.getJSONObject(i));
+        }
+
+        if (failuresAfterApplying > 0) {
+            failuresAfterApplying--;
+            return new MockResponse().setResponseCode(503);
+        }
+        return new MockResponse().setResponseCode(204);
+    }
+
+    private void apply(JSONObject change) throws JSONException {
+        String externalId = change.getString(PetSyncEngine.KEY_EXTERNAL_ID);
+        if (change.getBoolean(PetSyncEngine.KEY_DELETED))
+            pets.remove(externalId);
+        else
+            pets.put(externalId, change);
+    }
+
+    private MockResponse fetchChanges(String since) throws JSONException {
+        int from = since == null ? 0 : Integer.parseInt(since);
+        int to = Math.min(from + PAGE_SIZE, remoteChanges.size());
+
+        JSONArray changes = new JSONArray();
+        for (int i = from; i < to; i++)
+            changes.put(remoteChanges.get(i));
+
+        JSONObject page = new JSONObject();
+        page.put(PetSyncEngine.KEY_CURSOR, String.valueOf(to));
+        page.put(PetSyncEngine.KEY_CHANGES, changes);
+        page.put(PetSyncEngine.KEY_HAS_MORE, to < remoteChanges.size());
+        return new MockResponse().setBody(page.toString());
+    }
+
+    private static String gunzip(InputStream body) throws IOException {
+        InputStream in = new GZIPInputStream(body);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                out.write(buffer, 0, count);
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
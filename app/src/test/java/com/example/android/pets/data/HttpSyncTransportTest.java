@@ -0,0 +1,107 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks which failures {@link HttpSyncTransport} tries again, against a {@link MockWebServer}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class HttpSyncTransportTest {
+
+    private static final String PAGE = "{\"cursor\":\"1\",\"changes\":[],\"has_more\":false}";
+
+    private MockWebServer webServer;
+    private HttpSyncTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        webServer = new MockWebServer();
+        webServer.start();
+        transport = new HttpSyncTransport(webServer.url("/pets").toString(), 1000, 200, 10);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        webServer.shutdown();
+    }
+
+    @Test
+    public void readTimeoutIsTriedAgain() throws IOException {
+        webServer.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        webServer.enqueue(new MockResponse().setBody(PAGE));
+
+        assertEquals(PAGE, transport.fetchChanges(null));
+        assertEquals(2, webServer.getRequestCount());
+    }
+
+    @Test
+    public void serverErrorIsTriedAgain() throws IOException {
+        webServer.enqueue(new MockResponse().setResponseCode(503));
+        webServer.enqueue(new MockResponse().setResponseCode(429));
+        webServer.enqueue(new MockResponse().setBody(PAGE));
+
+        assertEquals(PAGE, transport.fetchChanges("0"));
+        assertEquals(3, webServer.getRequestCount());
+    }
+
+    @Test
+    public void badRequestIsNotTriedAgain() {
+        webServer.enqueue(new MockResponse().setResponseCode(400));
+
+        try {
+            transport.fetchChanges(null);
+            fail("Bad request succeeded");
+        } catch (IOException expected) {
+            assertEquals(1, webServer.getRequestCount());
+        }
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        for (int i = 0; i < HttpSyncTransport.MAX_ATTEMPTS; i++)
+            webServer.enqueue(new MockResponse().setResponseCode(503));
+
+        try {
+            transport.fetchChanges(null);
+            fail("Request succeeded without a working server");
+        } catch (IOException expected) {
+            assertEquals(HttpSyncTransport.MAX_ATTEMPTS, webServer.getRequestCount());
+        }
+    }
+
+    @Test
+    public void uploadSendsGzippedBatchWithKey() throws Exception {
+        webServer.enqueue(new MockResponse().setResponseCode(503));
+        webServer.enqueue(new MockResponse().setResponseCode(204));
+
+        transport.upload(new byte[]{1, 2, 3}, "key-1-3");
+
+        // The retry carries the same idempotency key.
+        for (int i = 0; i < 2; i++) {
+            RecordedRequest request = webServer.takeRequest();
+            assertEquals("POST", request.getMethod());
+            assertEquals("/pets/changes", request.getPath());
+            assertEquals("gzip", request.getHeader("Content-Encoding"));
+            assertEquals("key-1-3", request.getHeader("Idempotency-Key"));
+            assertEquals(3, request.getBodySize());
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.android.pets.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link JobRunner} on a plain JVM, with fake jobs that count their chunks and a queue that
+ * hands them out in order.
+ */
+public class JobRunnerTest {
+
+    private FakeQueue queue;
+    private CountingLock lock;
+    private JobRunner runner;
+
+    @Before
+    public void setUp() {
+        queue = new FakeQueue();
+        lock = new CountingLock();
+        runner = new JobRunner(queue, lock);
+    }
+
+    @Test
+    public void runsEveryJobUntilItIsFinished() {
+        FakeJob first = queue.add(new FakeJob(3));
+        FakeJob second = queue.add(new FakeJob(1));
+
+        assertTrue(runner.run());
+
+        assertEquals(3, first.chunks);
+        assertEquals(1, second.chunks);
+        assertTrue(queue.failed.isEmpty());
+    }
+
+    @Test
+    public void runsEachChunkUnderTheLockAndLetsGoInBetween() {
+        FakeJob job = queue.add(new FakeJob(4));
+
+        runner.run();
+
+        assertEquals(4, job.chunksUnderLock);
+        assertEquals(4, lock.lockCount);
+        assertFalse(lock.isLocked());
+    }
+
+    @Test
+    public void givesEachChunkADeadlineInTheFuture() {
+        FakeJob job = queue.add(new FakeJob(1));
+
+        long before = System.nanoTime();
+        runner.run();
+
+        assertTrue(job.lastDeadlineNanos > before);
+    }
+
+    @Test
+    public void failedJobIsRecordedAndTheRunGoesOn() {
+        final RuntimeException failure = new IllegalStateException("Broken job");
+        FakeJob broken = queue.add(new FakeJob(3) {
+            @Override
+            public boolean runChunk(long deadlineNanos) {
+                super.runChunk(deadlineNanos);
+                throw failure;
+            }
+        });
+        FakeJob next = queue.add(new FakeJob(2));
+
+        assertTrue(runner.run());
+
+        assertEquals(1, broken.chunks);
+        assertEquals(1, queue.failed.size());
+        assertSame(broken, queue.failed.get(0));
+        assertSame(failure, queue.failures.get(0));
+        assertEquals(2, next.chunks);
+        assertFalse(lock.isLocked());
+    }
+
+    @Test
+    public void stopEndsTheRunAfterTheRunningChunk() {
+        FakeJob stopping = queue.add(new FakeJob(10) {
+            @Override
+            public boolean runChunk(long deadlineNanos) {
+                boolean finished = super.runChunk(deadlineNanos);
+                if (chunks == 2)
+                    runner.stop();
+                return finished;
+            }
+        });
+        FakeJob next = queue.add(new FakeJob(1));
+
+        assertFalse(runner.run());
+
+        assertEquals(2, stopping.chunks);
+        assertEquals(0, next.chunks);
+        assertFalse(lock.isLocked());
+    }
+
+    @Test
+    public void stoppedRunnerDoesNothing() {
+        FakeJob job = queue.add(new FakeJob(1));
+
+        runner.stop();
+
+        assertFalse(runner.run());
+        assertEquals(0, job.chunks);
+    }
+
+    @Test
+    public void emptyQueueFinishesAtOnce() {
+        assertTrue(runner.run());
+        assertEquals(0, lock.lockCount);
+    }
+
+    /**
+     * Job that is finished after a given number of chunks.
+     */
+    private class FakeJob implements JobRunner.Job {
+
+        private final int chunksToFinish;
+
+        int chunks;
+        int chunksUnderLock;
+        long lastDeadlineNanos;
+
+        FakeJob(int chunksToFinish) {
+            this.chunksToFinish = chunksToFinish;
+        }
+
+        @Override
+        public boolean runChunk(long deadlineNanos) {
+            chunks++;
+            if (lock.isHeldByCurrentThread() && lock.getHoldCount() == 1)
+                chunksUnderLock++;
+            lastDeadlineNanos = deadlineNanos;
+            return chunks >= chunksToFinish;
+        }
+    }
+
+    /**
+     * Queue that hands out its jobs in the order they were added, until each is finished or
+     * failed.
+     */
+    private static final class FakeQueue implements JobRunner.Queue {
+
+        private final LinkedList<FakeJob> jobs = new LinkedList<>();
+
+        final List<JobRunner.Job> failed = new ArrayList<>();
+        final List<RuntimeException> failures = new ArrayList<>();
+
+        FakeJob add(FakeJob job) {
+            jobs.add(job);
+            return job;
+        }
+
+        @Override
+        public JobRunner.Job next() {
+            while (!jobs.isEmpty()) {
+                FakeJob job = jobs.getFirst();
+                if (job.chunks < job.chunksToFinish && !failed.contains(job))
+                    return job;
+                jobs.removeFirst();
+            }
+            return null;
+        }
+
+        @Override
+        public void fail(JobRunner.Job job, RuntimeException e) {
+            failed.add(job);
+            failures.add(e);
+        }
+    }
+
+    /**
+     * Lock that counts how many times it was taken.
+     */
+    private static final class CountingLock extends ReentrantLock {
+
+        int lockCount;
+
+        @Override
+        public void lock() {
+            super.lock();
+            lockCount++;
+        }
+    }
+}
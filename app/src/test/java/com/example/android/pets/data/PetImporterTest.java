@@ -0,0 +1,164 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Imports more than {@link PetImporter#CHUNK_SIZE} lines of inserted and upserted pets, with bad
+ * lines spread through them, on more than one parser thread, into a provider that tracks how far
+ * the input has been read each time a run of pets is written.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetImporterTest {
+
+    private static final int PARSER_THREADS = 2;
+    private static final int LINE_COUNT = 10 * PetImporter.CHUNK_SIZE + 137;
+
+    /** Size of the buffer of the BufferedReader the importer reads through */
+    private static final int READ_AHEAD_CHARS = 8192;
+
+    private TrackingPetProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(TrackingPetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void importKeepsTheOrderOfTheInputAndReportsTheSkippedLines() throws IOException {
+        StringBuilder input = new StringBuilder();
+        List<String> expectedNames = new ArrayList<>();
+        List<Integer> expectedSkipped = new ArrayList<>();
+        int shortestLine = Integer.MAX_VALUE;
+
+        for (int lineNumber = 1; lineNumber <= LINE_COUNT; lineNumber++) {
+            String name = String.format(Locale.US, "Pet %05d", lineNumber);
+            String line;
+            if (lineNumber % 250 == 0) {
+                // Empty lines are passed over without being reported.
+                line = "";
+            } else if (lineNumber % 97 == 0) {
+                line = name + "\tCollie";
+                expectedSkipped.add(lineNumber);
+            } else if (lineNumber % 151 == 0) {
+                line = name + "\tCollie\t7\t12";
+                expectedSkipped.add(lineNumber);
+            } else if (lineNumber % 3 == 0) {
+                line = name + "\tCollie\t" + PetEntry.GENDER_MALE + "\t12\text-" + lineNumber;
+                expectedNames.add(name);
+            } else {
+                line = name + "\t\t" + PetEntry.GENDER_FEMALE + "\t4";
+                expectedNames.add(name);
+            }
+            if (!line.isEmpty())
+                shortestLine = Math.min(shortestLine, line.length() + 1);
+            input.append(line).append('\n');
+        }
+
+        CountingReader reader = new CountingReader(input.toString());
+        provider.input = reader;
+        PetImporter.Result result = new PetImporter(
+                RuntimeEnvironment.application.getContentResolver(), PARSER_THREADS)
+                .importPets(reader);
+
+        assertEquals(expectedNames.size(), result.getRowsWritten());
+        assertEquals(expectedNames, readNamesInTableOrder());
+
+        List<Integer> skipped = new ArrayList<>();
+        for (PetImporter.SkippedLine line : result.getSkippedLines())
+            skipped.add(line.getLineNumber());
+        assertEquals(expectedSkipped, skipped);
+
+        // Reading stops once the parsed chunks are that far ahead of the writer, give or take
+        // what the BufferedReader reads ahead into its buffer.
+        int maxChunksAhead = PARSER_THREADS * PetImporter.MAX_PENDING_CHUNKS_PER_THREAD + 1;
+        int maxLinesAhead = maxChunksAhead * PetImporter.CHUNK_SIZE
+                + READ_AHEAD_CHARS / shortestLine + 1;
+        assertTrue("Lines read ahead of the writer: " + provider.maxLinesAhead,
+                provider.maxLinesAhead <= maxLinesAhead);
+        assertTrue(maxLinesAhead < LINE_COUNT);
+    }
+
+    private List<String> readNamesInTableOrder() {
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI,
+                new String[]{PetEntry.COLUMN_PET_NAME}, null, null, PetEntry._ID);
+        try {
+            List<String> names = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext())
+                names.add(cursor.getString(0));
+            return names;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Provider that records, for every bulk insert, how many lines the input had been read past
+     * the line of the first pet of the insert.
+     */
+    public static class TrackingPetProvider extends PetProvider {
+
+        volatile CountingReader input;
+        volatile int maxLinesAhead;
+
+        @Override
+        public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+            if (input != null && values.length > 0) {
+                String name = values[0].getAsString(PetEntry.COLUMN_PET_NAME);
+                int firstLine = Integer.parseInt(name.substring("Pet ".length()));
+                maxLinesAhead = Math.max(maxLinesAhead, input.getLinesRead() - firstLine);
+            }
+            return super.bulkInsert(uri, values);
+        }
+    }
+
+    /**
+     * Reader that counts the lines it has handed out.
+     */
+    private static final class CountingReader extends StringReader {
+
+        private volatile int linesRead;
+
+        CountingReader(String s) {
+            super(s);
+        }
+
+        @Override
+        public int read(@NonNull char[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            for (int i = offset; i < offset + count; i++) {
+                if (buffer[i] == '\n')
+                    linesRead++;
+            }
+            return count;
+        }
+
+        int getLinesRead() {
+            return linesRead;
+        }
+    }
+}
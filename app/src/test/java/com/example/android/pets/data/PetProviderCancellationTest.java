@@ -0,0 +1,151 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link PetProvider} stops a query once its {@link CancellationSignal} is cancelled,
+ * both before it starts and while SQLite is running it.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetProviderCancellationTest {
+
+    private static final int PET_COUNT = 500;
+
+    private static final String[] PROJECTION = {PetEntry._ID, PetEntry.COLUMN_PET_NAME};
+
+    /** Number of pets the slow query returns */
+    private static final int SLOW_ROWS = 200;
+
+    /**
+     * Selection that scans every pair of pets, without an index, for each of the first
+     * {@link #SLOW_ROWS} pets, so the query runs long enough to be cancelled halfway.
+     */
+    private static final String SLOW_SELECTION = PetEntry._ID + " <= " + SLOW_ROWS
+            + " AND (SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME + " a, " + PetEntry.TABLE_NAME
+            + " b WHERE a." + PetEntry.COLUMN_PET_WEIGHT + " + b." + PetEntry.COLUMN_PET_WEIGHT
+            + " + " + PetEntry.VIEW_NAME + "." + PetEntry._ID + " > a." + PetEntry._ID + ") >= 0";
+
+    private PetProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(PetProvider.class).create().get();
+
+        ContentValues[] pets = new ContentValues[PET_COUNT];
+        for (int i = 0; i < PET_COUNT; i++) {
+            pets[i] = new ContentValues();
+            pets[i].put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            pets[i].put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        }
+        provider.bulkInsert(PetEntry.CONTENT_URI, pets);
+    }
+
+    @Test
+    public void queryWithSignalReturnsEveryRow() {
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null,
+                new CancellationSignal());
+        try {
+            assertEquals(PET_COUNT, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void cancelledQueryStopsBeforeReadingRows() {
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+
+        try {
+            Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null,
+                    signal);
+            cursor.close();
+            fail("Cancelled query returned a cursor");
+        } catch (OperationCanceledException expected) {
+            // The query gave up without filling a window.
+        }
+    }
+
+    @Test
+    public void queryInFlightStopsSoonAfterCancel() throws InterruptedException {
+        long start = System.nanoTime();
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, SLOW_SELECTION, null,
+                null, new CancellationSignal());
+        try {
+            assertEquals(SLOW_ROWS, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+        long uncancelledMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("The slow query only took " + uncancelledMillis + " ms",
+                uncancelledMillis >= 50);
+
+        // Cancel from another thread a tenth of the way into the same query.
+        final CancellationSignal signal = new CancellationSignal();
+        final long cancelAfterMillis = uncancelledMillis / 10;
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(cancelAfterMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                signal.cancel();
+            }
+        });
+
+        start = System.nanoTime();
+        canceller.start();
+        try {
+            provider.query(PetEntry.CONTENT_URI, PROJECTION, SLOW_SELECTION, null, null, signal)
+                    .close();
+            fail("Query cancelled in flight returned a cursor");
+        } catch (OperationCanceledException expected) {
+            long cancelledMillis = (System.nanoTime() - start) / 1000000;
+            assertTrue("Cancelled after " + cancelledMillis + " ms, the whole query takes "
+                    + uncancelledMillis + " ms", cancelledMillis < uncancelledMillis / 2);
+        } finally {
+            canceller.interrupt();
+            canceller.join();
+        }
+    }
+
+    @Test
+    public void cancelledQueryLeavesTheProviderUsable() {
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null, signal);
+            fail("Cancelled query returned a cursor");
+        } catch (OperationCanceledException expected) {
+            // The next query must still get the database lock.
+        }
+
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, PROJECTION, null, null, null,
+                new CancellationSignal());
+        try {
+            assertEquals(PET_COUNT, cursor.getCount());
+        } finally {
+            cursor.close();
+        }
+    }
+}
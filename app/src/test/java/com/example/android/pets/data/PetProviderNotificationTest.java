@@ -0,0 +1,112 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Checks that the writes of the sync and of batches notify the listeners once, after the commit,
+ * rather than once for every row inside the transaction.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetProviderNotificationTest {
+
+    private PetProvider provider;
+    private ShadowContentResolver contentResolver;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+        contentResolver = shadowOf(RuntimeEnvironment.application.getContentResolver());
+    }
+
+    @Test
+    public void syncWriteNotifiesOnce() {
+        provider.insert(PetContract.asSyncAdapter(PetEntry.UPSERT_URI), pet("remote-1", "Bella"));
+
+        assertEquals(1, contentResolver.getNotifiedUris().size());
+    }
+
+    @Test
+    public void syncWriteThatChangesNothingDoesNotNotify() {
+        provider.delete(PetContract.asSyncAdapter(PetEntry.CONTENT_URI),
+                PetEntry.COLUMN_PET_EXTERNAL_ID + "=?", new String[]{"missing"});
+
+        assertEquals(0, contentResolver.getNotifiedUris().size());
+    }
+
+    @Test
+    public void batchOfSyncWritesNotifiesOnceAfterTheCommit() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            operations.add(ContentProviderOperation
+                    .newInsert(PetContract.asSyncAdapter(PetEntry.UPSERT_URI))
+                    .withValues(pet("remote-" + i, "Remote " + i))
+                    .build());
+        }
+        operations.add(ContentProviderOperation
+                .newDelete(PetContract.asSyncAdapter(PetEntry.CONTENT_URI))
+                .withSelection(PetEntry.COLUMN_PET_EXTERNAL_ID + "=?", new String[]{"remote-0"})
+                .build());
+
+        provider.applyBatch(operations);
+
+        assertEquals(1, contentResolver.getNotifiedUris().size());
+        assertEquals(PetContract.BASE_CONTENT_URI, contentResolver.getNotifiedUris().get(0).uri);
+    }
+
+    @Test
+    public void failedBatchDoesNotNotify() throws Exception {
+        ContentValues invalid = pet("remote-2", "Max");
+        invalid.put(PetEntry.COLUMN_PET_GENDER, -1);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(PetEntry.CONTENT_URI)
+                .withValues(pet("remote-1", "Bella")).build());
+        operations.add(ContentProviderOperation
+                .newInsert(PetContract.asSyncAdapter(PetEntry.UPSERT_URI))
+                .withValues(invalid).build());
+
+        try {
+            provider.applyBatch(operations);
+            fail("Batch with an invalid pet was applied");
+        } catch (IllegalArgumentException expected) {
+            // The whole batch was rolled back.
+        }
+
+        assertEquals(0, contentResolver.getNotifiedUris().size());
+
+        // The thread isn't left holding back the notifications of later writes.
+        provider.insert(PetEntry.CONTENT_URI, pet("remote-3", "Luna"));
+        assertEquals(1, contentResolver.getNotifiedUris().size());
+        assertEquals(PetEntry.CONTENT_URI, contentResolver.getNotifiedUris().get(0).uri);
+    }
+
+    private static ContentValues pet(String externalId, String name) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        values.put(PetEntry.COLUMN_PET_EXTERNAL_ID, externalId);
+        return values;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.Map;
+
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Syncs the provider end to end with a {@link FakeSyncServer}, through
+ * {@link HttpSyncTransport} and a real HTTP connection to the server in the test's process.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetSyncEngineTest {
+
+    /** Number of changes each way in the throughput test */
+    private static final int THROUGHPUT_CHANGES = 100000;
+
+    private PetProvider provider;
+    private FakeSyncServer server;
+    private MockWebServer webServer;
+    private PetSyncEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        provider = Robolectric.buildContentProvider(PetProvider.class)
+                .create(PetContract.CONTENT_AUTHORITY).get();
+
+        server = new FakeSyncServer();
+        webServer = new MockWebServer();
+        webServer.setDispatcher(server);
+        webServer.start();
+
+        // Short pauses between tries, so the retries don't slow the tests down.
+        engine = new PetSyncEngine(RuntimeEnvironment.application, new HttpSyncTransport(
+                webServer.url("/pets").toString(), 5000, 5000, 10));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        webServer.shutdown();
+    }
+
+    @Test
+    public void syncUploadsLocalChangesAndAppliesServerChanges() throws Exception {
+        insertLocalPets(3);
+        server.addRemoteChange(remoteChange("remote-1", "Bella"));
+        server.addRemoteChange(remoteChange("remote-2", "Max"));
+
+        PetSyncEngine.Result result = engine.sync();
+
+        assertEquals(3, result.getUploaded());
+        assertEquals(2, result.getDownloaded());
+
+        Map<String, JSONObject> serverPets = server.getPets();
+        assertEquals(3, serverPets.size());
+        assertEquals("Local 0", serverPets.get("local-0").getString(PetSyncEngine.KEY_NAME));
+
+        assertEquals(5, countLocalPets());
+        assertEquals("Bella", readLocalName("remote-1"));
+    }
+
+    @Test
+    public void secondSyncHasNothingToDo() throws Exception {
+        insertLocalPets(3);
+        server.addRemoteChange(remoteChange("remote-1", "Bella"));
+        engine.sync();
+
+        PetSyncEngine.Result result = engine.sync();
+
+        assertEquals(0, result.getUploaded());
+        assertEquals(0, result.getDownloaded());
+        assertEquals(1, server.getUploadCount());
+    }
+
+    @Test
+    public void serverChangesAreNotUploadedBack() throws Exception {
+        server.addRemoteChange(remoteChange("remote-1", "Bella"));
+        engine.sync();
+
+        assertEquals(0, engine.sync().getUploaded());
+        assertTrue(server.getPets().isEmpty());
+    }
+
+    @Test
+    public void batchWhoseResponseWasLostIsAppliedOnce() throws Exception {
+        insertLocalPets(3);
+        server.failNextUploadsAfterApplying(2);
+
+        PetSyncEngine.Result result = engine.sync();
+
+        // The same batch was sent three times under one key, and applied the first time.
+        assertEquals(3, result.getUploaded());
+        assertEquals(3, server.getUploadCount());
+        assertEquals(1, server.getAppliedBatchCount());
+        assertEquals(3, server.getPets().size());
+    }
+
+    @Test
+    public void deletedPetIsDeletedOnTheServer() throws Exception {
+        insertLocalPets(2);
+        engine.sync();
+
+        provider.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_EXTERNAL_ID + "=?",
+                new String[]{"local-0"});
+        assertEquals(1, engine.sync().getUploaded());
+
+        Map<String, JSONObject> serverPets = server.getPets();
+        assertFalse(serverPets.containsKey("local-0"));
+        assertTrue(serverPets.containsKey("local-1"));
+    }
+
+    @Test
+    public void throughputOfHundredThousandChanges() throws Exception {
+        insertLocalPets(THROUGHPUT_CHANGES);
+        for (int i = 0; i < THROUGHPUT_CHANGES; i++)
+            server.addRemoteChange(remoteChange("remote-" + i, "Remote " + i));
+
+        long start = System.nanoTime();
+        PetSyncEngine.Result result = engine.sync();
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+
+        assertEquals(THROUGHPUT_CHANGES, result.getUploaded());
+        assertEquals(THROUGHPUT_CHANGES, result.getDownloaded());
+        assertEquals(THROUGHPUT_CHANGES, server.getPets().size());
+        assertEquals(2 * THROUGHPUT_CHANGES, countLocalPets());
+
+        System.out.println("Synced " + 2 * THROUGHPUT_CHANGES + " changes in " + millis + " ms ("
+                + 2L * THROUGHPUT_CHANGES * 1000 / millis + " changes/s), in "
+                + server.getUploadCount() + " uploads");
+    }
+
+    /**
+     * Insert the given number of pets, with the external IDs "local-0", "local-1" and so on.
+     */
+    private void insertLocalPets(int count) {
+        final int batchSize = 1000;
+        for (int first = 0; first < count; first += batchSize) {
+            ContentValues[] pets = new ContentValues[Math.min(batchSize, count - first)];
+            for (int i = 0; i < pets.length; i++) {
+                pets[i] = new ContentValues();
+                pets[i].put(PetEntry.COLUMN_PET_NAME, "Local " + (first + i));
+                pets[i].put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+                pets[i].put(PetEntry.COLUMN_PET_WEIGHT, 4);
+                pets[i].put(PetEntry.COLUMN_PET_EXTERNAL_ID, "local-" + (first + i));
+            }
+            provider.bulkInsert(PetEntry.CONTENT_URI, pets);
+        }
+    }
+
+    private static JSONObject remoteChange(String externalId, String name) throws JSONException {
+        JSONObject change = new JSONObject();
+        change.put(PetSyncEngine.KEY_EXTERNAL_ID, externalId);
+        change.put(PetSyncEngine.KEY_DELETED, false);
+        change.put(PetSyncEngine.KEY_NAME, name);
+        change.put(PetSyncEngine.KEY_BREED, "Collie");
+        change.put(PetSyncEngine.KEY_GENDER, PetEntry.GENDER_MALE);
+        change.put(PetSyncEngine.KEY_WEIGHT, 12);
+        return change;
+    }
+
+    private long countLocalPets() {
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, new String[]{PetEntry._ID}, null,
+                null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String readLocalName(String externalId) {
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI,
+                new String[]{PetEntry.COLUMN_PET_NAME},
+                PetEntry.COLUMN_PET_EXTERNAL_ID + "=?", new String[]{externalId}, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
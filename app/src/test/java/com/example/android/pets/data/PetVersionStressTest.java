@@ -0,0 +1,126 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.pets.BuildConfig;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs several writers that compare-and-set the same pet at the same time, round after round, and
+ * checks that exactly one of them wins each version while the others get a
+ * {@link PetVersionConflictException}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PetVersionStressTest {
+
+    private static final int WRITER_COUNT = 8;
+    private static final int ROUND_COUNT = 50;
+
+    /** Outcomes of one write */
+    private static final int WON = 1;
+    private static final int CONFLICT = 2;
+
+    private PetProvider provider;
+    private ExecutorService executor;
+    private Uri petUri;
+
+    @Before
+    public void setUp() {
+        provider = Robolectric.buildContentProvider(PetProvider.class).create().get();
+        executor = Executors.newFixedThreadPool(WRITER_COUNT);
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 0);
+        petUri = provider.insert(PetEntry.CONTENT_URI, values);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void exactlyOneWriterWinsEachVersion() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(WRITER_COUNT);
+
+        for (int round = 0; round < ROUND_COUNT; round++) {
+            final long version = readVersion();
+
+            List<Future<Integer>> outcomes = new ArrayList<>(WRITER_COUNT);
+            for (int writer = 0; writer < WRITER_COUNT; writer++) {
+                final int weight = round * WRITER_COUNT + writer + 1;
+                outcomes.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        ContentValues values = new ContentValues();
+                        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+
+                        // Every writer has read the same version, now they all write at once.
+                        barrier.await(10, TimeUnit.SECONDS);
+                        try {
+                            int rowsUpdated = provider.update(
+                                    PetEntry.buildVersionedUri(petUri, version), values, null,
+                                    null);
+                            assertEquals(1, rowsUpdated);
+                            return WON;
+                        } catch (PetVersionConflictException e) {
+                            assertEquals(ContentUris.parseId(petUri), e.getPetId());
+                            assertEquals(version, e.getExpectedVersion());
+                            return CONFLICT;
+                        }
+                    }
+                }));
+            }
+
+            int won = 0;
+            int conflicts = 0;
+            for (Future<Integer> outcome : outcomes) {
+                if (outcome.get(10, TimeUnit.SECONDS) == WON)
+                    won++;
+                else
+                    conflicts++;
+            }
+
+            assertEquals("Writers that won version " + version, 1, won);
+            assertEquals("Writers that lost version " + version, WRITER_COUNT - 1, conflicts);
+            assertEquals(version + 1, readVersion());
+        }
+    }
+
+    private long readVersion() {
+        Cursor cursor = provider.query(petUri, new String[]{PetEntry.COLUMN_PET_VERSION}, null,
+                null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}